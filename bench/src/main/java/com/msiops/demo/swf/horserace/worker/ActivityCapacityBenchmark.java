@@ -0,0 +1,219 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.flow.ActivityWorker;
+import com.amazonaws.services.simpleworkflow.flow.WorkerBase;
+import com.amazonaws.services.simpleworkflow.flow.WorkflowWorker;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionInfo;
+import com.msiops.demo.swf.local.LocalSwf;
+
+/**
+ * <p>
+ * Capacity and memory of the horse worker with a platform thread pool versus
+ * one virtual thread per task. Each invocation starts enough one lap races on
+ * {@link LocalSwf} to put {@link #inFlight} blocking horse tasks on the worker
+ * at once and waits for them all to finish. Both executors are allowed
+ * {@link #inFlight} tasks, so the time shows whether the worker really held
+ * them all in flight, and the peak live threads and resident set size,
+ * printed after each iteration, show what that cost.
+ * </p>
+ * <p>
+ * The virtual executor needs Java 21 and a main project built with the
+ * {@code jdk21} profile.
+ * </p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActivityCapacityBenchmark {
+
+	private static final int FIELD_SIZE = 10;
+
+	private static final int LAP_TIME_MS = 1000;
+
+	/**
+	 * Resident set size of this process in KiB, -1 if not on Linux.
+	 */
+	private static long residentKb() {
+
+		long rval = -1;
+		try (BufferedReader status = new BufferedReader(new FileReader(
+				"/proc/self/status"))) {
+			String line = status.readLine();
+			while (line != null) {
+				if (line.startsWith("VmRSS:")) {
+					rval = Long.parseLong(line.substring(6).replace("kB", "")
+						.trim());
+				}
+				line = status.readLine();
+			}
+		} catch (final IOException e) {
+			rval = -1;
+		}
+		return rval;
+
+	}
+
+	@Param({ "platform", "virtual" })
+	public String executor;
+
+	@Param({ "1000", "5000" })
+	public int inFlight;
+
+	private ActivityWorker announcer;
+
+	private WorkflowWorker flow;
+
+	private WorkerBase horses;
+
+	private final AtomicInteger peakResidentKb = new AtomicInteger();
+
+	private final AtomicInteger peakThreads = new AtomicInteger();
+
+	private final AtomicInteger raceIds = new AtomicInteger();
+
+	private LocalSwf swf;
+
+	private volatile CountDownLatch wave;
+
+	@Setup
+	public void setup() throws Exception {
+
+		System.setProperty("horserace.horses.virtualThreads",
+				String.valueOf("virtual".equals(this.executor)));
+		System.setProperty("horserace.horses.executorThreads",
+				String.valueOf(this.inFlight));
+		System.setProperty("horserace.horses.pollThreads", "4");
+
+		this.swf = new LocalSwf(200);
+		final AmazonSimpleWorkflow client = this.swf.client();
+		this.swf.setCloseListener(new LocalSwf.CloseListener() {
+
+			@Override
+			public void closed(final WorkflowExecutionInfo info) {
+				ActivityCapacityBenchmark.this.wave.countDown();
+			}
+
+		});
+
+		this.flow = new WorkflowWorker(client, RaceFlowWorker.DOMAIN,
+				RaceFlowWorker.TASKLIST);
+		this.flow.setPollThreadCount(4);
+		this.flow.addWorkflowImplementationType(RaceFlowImpl.class);
+		this.horses = ActivityWorkers.create(client,
+				HorseActivitiesWorker.DOMAIN, HorseActivitiesWorker.TASKLIST,
+				"horses", HorseActivities.class, new HorseActivitiesImpl(1,
+						LAP_TIME_MS));
+		this.announcer = new ActivityWorker(client,
+				AnnouncerActivitiesWorker.DOMAIN,
+				AnnouncerActivitiesWorker.TASKLIST);
+		this.announcer.setTaskExecutorThreadPoolSize(100);
+		this.announcer.addActivitiesImplementation(new AnnouncerActivitiesImpl(
+				1));
+
+		this.flow.start();
+		this.horses.start();
+		this.announcer.start();
+
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.flow.shutdownNow();
+		this.horses.shutdownNow();
+		this.announcer.shutdownNow();
+		this.swf.shutdown();
+	}
+
+	@TearDown(Level.Iteration)
+	public void report() {
+		System.err.printf(
+				"%s executor, %d in flight: peak %d threads, %d MiB resident%n",
+				this.executor, this.inFlight, this.peakThreads.get(),
+				this.peakResidentKb.get() / 1024);
+	}
+
+	@Benchmark
+	public void wave() throws Exception {
+
+		final int races = this.inFlight / FIELD_SIZE;
+		final List<String> field = new ArrayList<>(FIELD_SIZE);
+		for (int i = 1; i <= FIELD_SIZE; i = i + 1) {
+			field.add("Horse-" + i);
+		}
+
+		this.peakThreads.set(0);
+		this.peakResidentKb.set(0);
+		this.wave = new CountDownLatch(races);
+
+		final RaceFlowClientExternalFactory clients = new RaceFlowClientExternalFactoryImpl(
+				this.swf.client(), RaceFlowWorker.DOMAIN);
+		for (int i = 0; i < races; i = i + 1) {
+			clients.getClient("capacity-" + this.raceIds.incrementAndGet())
+				.go(field, 1, new RaceOptions(), null);
+		}
+
+		while (!this.wave.await(50, TimeUnit.MILLISECONDS)) {
+			sample();
+		}
+
+	}
+
+	private void sample() {
+
+		final int threads = ManagementFactory.getThreadMXBean()
+			.getThreadCount();
+		if (threads > this.peakThreads.get()) {
+			this.peakThreads.set(threads);
+		}
+		final int resident = (int) residentKb();
+		if (resident > this.peakResidentKb.get()) {
+			this.peakResidentKb.set(resident);
+		}
+
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.simpleworkflow.flow.pojo.POJOWorkflowDefinitionFactoryFactory;
+import com.amazonaws.services.simpleworkflow.flow.worker.AsyncDecisionTaskHandler;
+import com.amazonaws.services.simpleworkflow.model.DecisionTask;
+import com.amazonaws.services.simpleworkflow.model.HistoryEvent;
+import com.amazonaws.services.simpleworkflow.model.RespondDecisionTaskCompletedRequest;
+
+/**
+ * <p>
+ * Cost of one race decision. Each invocation hands the same decision task to
+ * the flow framework decision handler, which creates a new
+ * {@link RaceFlowImpl}, replays the history up to the task and produces the
+ * decisions. This is exactly the work a flow worker does per decision task,
+ * minus the SWF calls.
+ * </p>
+ * <p>
+ * Histories come from real races (see {@link RaceHistories}) of
+ * {@link #horses} horses over {@link #laps} laps. {@link #progress} picks the
+ * decision within the race, so larger values replay more completed events.
+ * Run with {@code -prof gc} to report allocation per decision
+ * ({@code gc.alloc.rate.norm}).
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeciderReplayBenchmark {
+
+	@Param({ "7", "50" })
+	public int horses;
+
+	@Param({ "10", "50" })
+	public int laps;
+
+	@Param({ "0.25", "0.5", "1.0" })
+	public double progress;
+
+	private AsyncDecisionTaskHandler handler;
+
+	private DecisionTask task;
+
+	@Benchmark
+	public RespondDecisionTaskCompletedRequest replay() throws Exception {
+		return this.handler.handleDecisionTask(Collections.singletonList(
+				this.task).iterator());
+	}
+
+	@Setup
+	public void setup() throws Exception {
+
+		final List<HistoryEvent> history = RaceHistories.record(this.horses,
+				this.laps);
+		this.task = RaceHistories.decisionAt(history, this.progress);
+
+		final POJOWorkflowDefinitionFactoryFactory definitions = new POJOWorkflowDefinitionFactoryFactory();
+		definitions.addWorkflowImplementationType(RaceFlowImpl.class);
+		this.handler = new AsyncDecisionTaskHandler(definitions);
+
+		System.err.printf("replaying %d of %d events%n", this.task.getEvents()
+			.size(), history.size());
+
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.flow.ActivityWorker;
+import com.amazonaws.services.simpleworkflow.flow.WorkflowWorker;
+import com.amazonaws.services.simpleworkflow.model.DecisionTask;
+import com.amazonaws.services.simpleworkflow.model.DescribeWorkflowExecutionRequest;
+import com.amazonaws.services.simpleworkflow.model.EventType;
+import com.amazonaws.services.simpleworkflow.model.GetWorkflowExecutionHistoryRequest;
+import com.amazonaws.services.simpleworkflow.model.HistoryEvent;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecution;
+import com.amazonaws.services.simpleworkflow.model.WorkflowType;
+import com.msiops.demo.swf.local.LocalSwf;
+
+/**
+ * <p>
+ * Source of realistic race histories for replay benchmarks. Rather than
+ * synthesizing events by hand, which would have to track the activity ids
+ * the decider generates, a race is run to completion on {@link LocalSwf} with
+ * zero lap time and its history is captured.
+ * </p>
+ * <p>
+ * A decision task for any point in the race is then cut from the history.
+ * </p>
+ */
+final class RaceHistories {
+
+	private static final String WORKFLOW_ID = "bench-race";
+
+	/**
+	 * Cut a decision task from a recorded history.
+	 *
+	 * @param history
+	 *            full history of a race.
+	 *
+	 * @param progress
+	 *            how far into the race, from 0 (the first decision) to 1 (the
+	 *            last decision).
+	 *
+	 * @return the decision task the decider received at that point.
+	 */
+	static DecisionTask decisionAt(final List<HistoryEvent> history,
+			final double progress) {
+
+		final List<Integer> started = new ArrayList<>();
+		for (int i = 0; i < history.size(); i = i + 1) {
+			if (EventType.DecisionTaskStarted.toString().equals(
+					history.get(i).getEventType())) {
+				started.add(i);
+			}
+		}
+
+		final int which = Math.min(Math.max(
+				(int) Math.ceil(progress * started.size()) - 1, 0), started
+			.size() - 1);
+		final int end = started.get(which);
+		final long previous = which == 0 ? 0 : history.get(
+				started.get(which - 1)).getEventId();
+
+		final HistoryEvent first = history.get(0);
+		final WorkflowType type = first
+			.getWorkflowExecutionStartedEventAttributes().getWorkflowType();
+
+		return new DecisionTask()
+			.withTaskToken("bench")
+			.withWorkflowExecution(
+					new WorkflowExecution().withWorkflowId(WORKFLOW_ID)
+						.withRunId("bench"))
+			.withWorkflowType(type)
+			.withEvents(new ArrayList<>(history.subList(0, end + 1)))
+			.withPreviousStartedEventId(previous)
+			.withStartedEventId(history.get(end).getEventId());
+
+	}
+
+	/**
+	 * Run one race locally and return its history.
+	 *
+	 * @param fieldSize
+	 *            number of horses.
+	 *
+	 * @param laps
+	 *            number of laps.
+	 *
+	 * @return every event of the race.
+	 */
+	static List<HistoryEvent> record(final int fieldSize, final int laps)
+			throws Exception {
+
+		final LocalSwf swf = new LocalSwf(200);
+		final AmazonSimpleWorkflow client = swf.client();
+
+		final WorkflowWorker flow = new WorkflowWorker(client,
+				RaceFlowWorker.DOMAIN, RaceFlowWorker.TASKLIST);
+		flow.addWorkflowImplementationType(RaceFlowImpl.class);
+		final ActivityWorker horses = new ActivityWorker(client,
+				HorseActivitiesWorker.DOMAIN, HorseActivitiesWorker.TASKLIST);
+		horses.addActivitiesImplementation(new HorseActivitiesImpl(1, 0));
+		final ActivityWorker announcer = new ActivityWorker(client,
+				AnnouncerActivitiesWorker.DOMAIN,
+				AnnouncerActivitiesWorker.TASKLIST);
+		announcer.addActivitiesImplementation(new AnnouncerActivitiesImpl(1));
+
+		flow.start();
+		horses.start();
+		announcer.start();
+		try {
+
+			final List<String> field = new ArrayList<>(fieldSize);
+			for (int i = 1; i <= fieldSize; i = i + 1) {
+				field.add("Horse-" + i);
+			}
+			final RaceFlowClientExternal race = new RaceFlowClientExternalFactoryImpl(
+					client, RaceFlowWorker.DOMAIN).getClient(WORKFLOW_ID);
+			race.go(field, laps, new RaceOptions(), null);
+			final WorkflowExecution execution = race.getWorkflowExecution();
+
+			while (!"CLOSED".equals(client
+				.describeWorkflowExecution(
+						new DescribeWorkflowExecutionRequest().withDomain(
+								RaceFlowWorker.DOMAIN).withExecution(execution))
+				.getExecutionInfo().getExecutionStatus())) {
+				Thread.sleep(100);
+			}
+
+			return client.getWorkflowExecutionHistory(
+					new GetWorkflowExecutionHistoryRequest().withDomain(
+							RaceFlowWorker.DOMAIN).withExecution(execution))
+				.getEvents();
+
+		} finally {
+			flow.shutdownNow();
+			horses.shutdownNow();
+			announcer.shutdownNow();
+			swf.shutdown();
+		}
+
+	}
+
+	private RaceHistories() {
+		/*
+		 * static only.
+		 */
+	}
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProviderImpl;
+import com.amazonaws.services.simpleworkflow.model.ActivityTask;
+import com.amazonaws.services.simpleworkflow.model.GetWorkflowExecutionHistoryRequest;
+import com.amazonaws.services.simpleworkflow.model.History;
+import com.amazonaws.services.simpleworkflow.model.HistoryEvent;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecution;
+
+/**
+ * <p>
+ * Per activity type latency histograms for one activity worker. Like
+ * {@link ActivityUtilization}, an activities implementation is wrapped in a
+ * proxy, see {@link #instrument(Class, Object)}, which times every task and
+ * records it under the name of the activity method. Tasks the proxy cannot
+ * see, such as manually completed ones, are reported through
+ * {@link #taskStarted(String)} and {@link #taskFinished(String, long, boolean)}.
+ * </p>
+ * <p>
+ * The activity task that reaches the worker does not say when it was
+ * scheduled. For a sample of tasks, the scheduled and started events are
+ * looked up in the workflow history, newest first, on a background thread
+ * and the difference recorded as schedule to start time. These calls count
+ * against the SWF rate limit so keep the sample small.
+ * </p>
+ * <p>
+ * SWF has no attempt number for flow framework retries, each retry being a
+ * new activity, so retries show only as failed tasks of the type.
+ * </p>
+ */
+public final class ActivityLatencies implements ActivityLatenciesMXBean {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(ActivityLatencies.class);
+
+	/**
+	 * Most history pages read per lookup, so a lookup on a huge history gives
+	 * up rather than reading all of it.
+	 */
+	private static final int MAX_PAGES = 10;
+
+	/**
+	 * Most lookups waiting at once. Further samples are dropped.
+	 */
+	private static final int MAX_PENDING_LOOKUPS = 1000;
+
+	private static final int PAGE_SIZE = 100;
+
+	/**
+	 * Create latency metrics for a worker and publish them through JMX.
+	 *
+	 * @param swf
+	 *            client used to look up histories.
+	 *
+	 * @param domain
+	 *            the worker's domain.
+	 *
+	 * @param taskList
+	 *            the worker's task list, used to name the MBeans.
+	 *
+	 * @param sampleRate
+	 *            fraction of tasks whose schedule to start time is looked up.
+	 *
+	 * @return metrics.
+	 */
+	public static ActivityLatencies forTaskList(final AmazonSimpleWorkflow swf,
+			final String domain, final String taskList, final double sampleRate) {
+
+		final ActivityLatencies rval = new ActivityLatencies(swf, domain,
+				taskList, sampleRate);
+		Jmx.register("com.msiops.demo.swf:type=ActivityLatencies,name="
+				+ taskList, rval);
+		return rval;
+
+	}
+
+	private final ConcurrentMap<String, ActivityLatency> byType = new ConcurrentHashMap<>();
+
+	private final ActivityExecutionContextProvider contexts = new ActivityExecutionContextProviderImpl();
+
+	private final String domain;
+
+	private final ThreadPoolExecutor lookups;
+
+	private final AtomicLong lookupsDropped = new AtomicLong();
+
+	private final AtomicLong lookupsFailed = new AtomicLong();
+
+	private final double sampleRate;
+
+	private final AmazonSimpleWorkflow swf;
+
+	private final String taskList;
+
+	private ActivityLatencies(final AmazonSimpleWorkflow swf,
+			final String domain, final String taskList, final double sampleRate) {
+
+		this.swf = swf;
+		this.domain = domain;
+		this.taskList = taskList;
+		this.sampleRate = sampleRate;
+
+		this.lookups = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_PENDING_LOOKUPS),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread rval = new Thread(r, "latency-lookup "
+								+ taskList);
+						rval.setDaemon(true);
+						return rval;
+					}
+
+				});
+
+	}
+
+	@Override
+	public void dump(final String file) throws IOException {
+
+		final Map<String, ActivityLatency> sorted = new TreeMap<>(this.byType);
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(
+				Paths.get(file), StandardCharsets.UTF_8))) {
+			for (final Map.Entry<String, ActivityLatency> e : sorted.entrySet()) {
+				out.printf("== %s %s%n", this.taskList, e.getKey());
+				e.getValue().print(out);
+				out.println();
+			}
+		}
+
+	}
+
+	@Override
+	public long getLookupsDropped() {
+		return this.lookupsDropped.get();
+	}
+
+	@Override
+	public long getLookupsFailed() {
+		return this.lookupsFailed.get();
+	}
+
+	@Override
+	public double getSampleRate() {
+		return this.sampleRate;
+	}
+
+	/**
+	 * Wrap an activities implementation so its tasks are timed.
+	 *
+	 * @param activities
+	 *            the activities interface, the one annotated with
+	 *            {@code @Activities}.
+	 *
+	 * @param implementation
+	 *            the implementation.
+	 *
+	 * @return timed implementation.
+	 */
+	public <T> T instrument(final Class<T> activities, final T implementation) {
+
+		return activities.cast(Proxy.newProxyInstance(
+				activities.getClassLoader(), new Class<?>[] { activities },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args)
+							throws Throwable {
+						return measure(implementation, method, args);
+					}
+
+				}));
+
+	}
+
+	/**
+	 * Metrics of one activity type, created and published on first use.
+	 */
+	private ActivityLatency latency(final String type) {
+
+		ActivityLatency rval = this.byType.get(type);
+		if (rval == null) {
+			final ActivityLatency created = new ActivityLatency();
+			rval = this.byType.putIfAbsent(type, created);
+			if (rval == null) {
+				rval = created;
+				Jmx.register("com.msiops.demo.swf:type=ActivityLatency,name="
+						+ this.taskList + ",activity=" + type, created);
+			}
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Find when a task was scheduled and started and record the difference.
+	 *
+	 * @param latency
+	 *            where to record.
+	 *
+	 * @param execution
+	 *            the task's workflow execution.
+	 *
+	 * @param startedEventId
+	 *            the task's started event.
+	 */
+	private void lookUp(final ActivityLatency latency,
+			final WorkflowExecution execution, final long startedEventId) {
+
+		HistoryEvent started = null;
+		HistoryEvent scheduled = null;
+		String nextPageToken = null;
+		int pages = 0;
+		do {
+			final History page = this.swf
+				.getWorkflowExecutionHistory(new GetWorkflowExecutionHistoryRequest()
+					.withDomain(this.domain).withExecution(execution)
+					.withReverseOrder(true).withMaximumPageSize(PAGE_SIZE)
+					.withNextPageToken(nextPageToken));
+			for (final HistoryEvent event : page.getEvents()) {
+				if (event.getEventId() == startedEventId) {
+					started = event;
+				} else if (started != null
+						&& event.getEventId().equals(
+								started.getActivityTaskStartedEventAttributes()
+									.getScheduledEventId())) {
+					scheduled = event;
+				}
+			}
+			nextPageToken = page.getNextPageToken();
+			pages = pages + 1;
+		} while (scheduled == null && nextPageToken != null
+				&& pages < MAX_PAGES);
+
+		if (scheduled == null) {
+			this.lookupsFailed.incrementAndGet();
+		} else {
+			latency.waited(TimeUnit.MILLISECONDS.toMicros(started
+				.getEventTimestamp().getTime()
+					- scheduled.getEventTimestamp().getTime()));
+		}
+
+	}
+
+	private Object measure(final Object implementation, final Method method,
+			final Object[] args) throws Throwable {
+
+		if (method.getDeclaringClass() == Object.class) {
+			/*
+			 * not a task.
+			 */
+			return method.invoke(implementation, args);
+		}
+
+		/*
+		 * activities interfaces are usually package private.
+		 */
+		method.setAccessible(true);
+
+		final long start = taskStarted(method.getName());
+		boolean ok = false;
+		try {
+			final Object rval = method.invoke(implementation, args);
+			ok = true;
+			return rval;
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		} finally {
+			taskFinished(method.getName(), start, ok);
+		}
+
+	}
+
+	/**
+	 * Queue a schedule to start lookup for the current task.
+	 */
+	private void sample(final ActivityLatency latency) {
+
+		final ActivityTask task = this.contexts.getActivityExecutionContext()
+			.getTask();
+		final WorkflowExecution execution = task.getWorkflowExecution();
+		final long startedEventId = task.getStartedEventId();
+		try {
+			this.lookups.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						lookUp(latency, execution, startedEventId);
+					} catch (final AmazonClientException e) {
+						ActivityLatencies.this.lookupsFailed.incrementAndGet();
+						LOG.debug("cannot look up task history", e);
+					}
+				}
+
+			});
+		} catch (final RejectedExecutionException e) {
+			this.lookupsDropped.incrementAndGet();
+		}
+
+	}
+
+	/**
+	 * Record the end of a task. Use this with {@link #taskStarted(String)} for
+	 * tasks that are not measured by {@link #instrument(Class, Object)}, such
+	 * as manually completed ones.
+	 *
+	 * @param type
+	 *            name of the activity method.
+	 *
+	 * @param started
+	 *            value returned by {@link #taskStarted(String)}.
+	 *
+	 * @param ok
+	 *            true if the task produced a result, false if it failed.
+	 */
+	public void taskFinished(final String type, final long started,
+			final boolean ok) {
+		latency(type).ran(
+				TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started), ok);
+	}
+
+	/**
+	 * Record the start of a task. Call this on the thread running the task so
+	 * that a sample of tasks can be looked up in their histories.
+	 *
+	 * @param type
+	 *            name of the activity method.
+	 *
+	 * @return start time to pass to
+	 *         {@link #taskFinished(String, long, boolean)}.
+	 */
+	public long taskStarted(final String type) {
+
+		if (this.sampleRate > 0
+				&& ThreadLocalRandom.current().nextDouble() < this.sampleRate) {
+			sample(latency(type));
+		}
+		return System.nanoTime();
+
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.io.IOException;
+
+/**
+ * JMX view of the latencies of an activity worker, see
+ * {@link ActivityLatencies}.
+ */
+public interface ActivityLatenciesMXBean {
+
+	/**
+	 * Write the distributions of every activity type to a file.
+	 *
+	 * @param file
+	 *            file to write, replaced if it exists.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	void dump(String file) throws IOException;
+
+	/**
+	 * @return schedule to start lookups dropped because too many were already
+	 *         waiting.
+	 */
+	long getLookupsDropped();
+
+	/**
+	 * @return schedule to start lookups that did not find the events.
+	 */
+	long getLookupsFailed();
+
+	/**
+	 * @return fraction of tasks whose schedule to start time is looked up.
+	 */
+	double getSampleRate();
+
+}
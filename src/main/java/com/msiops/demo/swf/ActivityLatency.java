@@ -0,0 +1,140 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies of one activity type: how long tasks ran in the worker and, for
+ * a sample of tasks, how long they waited in SWF to be started.
+ */
+public final class ActivityLatency implements ActivityLatencyMXBean {
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final LatencyHistogram run = new LatencyHistogram();
+
+	private final LatencyHistogram scheduleToStart = new LatencyHistogram();
+
+	@Override
+	public long getCompleted() {
+		return this.completed.get();
+	}
+
+	@Override
+	public long getFailed() {
+		return this.failed.get();
+	}
+
+	@Override
+	public long getRunMaxMicros() {
+		return this.run.getMax();
+	}
+
+	@Override
+	public double getRunMeanMicros() {
+		return this.run.getMean();
+	}
+
+	@Override
+	public long getRunP50Micros() {
+		return this.run.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getRunP999Micros() {
+		return this.run.getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public long getRunP99Micros() {
+		return this.run.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getScheduleToStartMaxMicros() {
+		return this.scheduleToStart.getMax();
+	}
+
+	@Override
+	public long getScheduleToStartP50Micros() {
+		return this.scheduleToStart.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getScheduleToStartP999Micros() {
+		return this.scheduleToStart.getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public long getScheduleToStartP99Micros() {
+		return this.scheduleToStart.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getScheduleToStartSamples() {
+		return this.scheduleToStart.getCount();
+	}
+
+	/**
+	 * Write both distributions.
+	 *
+	 * @param out
+	 *            where to write.
+	 */
+	void print(final PrintWriter out) {
+
+		out.printf("completed %d, failed %d%n", getCompleted(), getFailed());
+		out.println("run:");
+		this.run.print(out, "us");
+		out.println("schedule to start (sampled):");
+		this.scheduleToStart.print(out, "us");
+
+	}
+
+	/**
+	 * Record a task run in the worker.
+	 *
+	 * @param micros
+	 *            time from invocation to return.
+	 *
+	 * @param ok
+	 *            true if it returned a result.
+	 */
+	void ran(final long micros, final boolean ok) {
+		this.run.record(micros);
+		if (ok) {
+			this.completed.incrementAndGet();
+		} else {
+			this.failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record a sampled wait in SWF.
+	 *
+	 * @param micros
+	 *            time from scheduled to started.
+	 */
+	void waited(final long micros) {
+		this.scheduleToStart.record(micros);
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+/**
+ * JMX view of the latencies of one activity type, see
+ * {@link ActivityLatencies}. Times are in microseconds.
+ */
+public interface ActivityLatencyMXBean {
+
+	/**
+	 * @return tasks that returned a result.
+	 */
+	long getCompleted();
+
+	/**
+	 * @return tasks that threw. Each is normally followed by a retry, so this
+	 *         is also the best available count of retries.
+	 */
+	long getFailed();
+
+	long getRunMaxMicros();
+
+	double getRunMeanMicros();
+
+	long getRunP50Micros();
+
+	long getRunP999Micros();
+
+	long getRunP99Micros();
+
+	long getScheduleToStartMaxMicros();
+
+	long getScheduleToStartP50Micros();
+
+	long getScheduleToStartP999Micros();
+
+	long getScheduleToStartP99Micros();
+
+	/**
+	 * @return number of tasks whose schedule to start time was looked up.
+	 */
+	long getScheduleToStartSamples();
+
+}
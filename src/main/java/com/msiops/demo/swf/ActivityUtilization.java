@@ -0,0 +1,213 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Measures how busy an activity worker is. An activities implementation is
+ * wrapped in a proxy, see {@link #instrument(Class, Object)}, that counts
+ * tasks in flight and the time spent in them. The wrapped implementation is
+ * registered with the flow framework worker in place of the original.
+ * </p>
+ * <p>
+ * Utilization near 1 means the worker is saturated and more executor threads
+ * (or workers) would help. Utilization well below 1 with tasks waiting on the
+ * task list means the pollers cannot keep up.
+ * </p>
+ */
+public final class ActivityUtilization implements ActivityUtilizationMXBean {
+
+	/**
+	 * Create utilization metrics for a worker and publish them through JMX.
+	 *
+	 * @param taskList
+	 *            the worker's task list, used to name the MBean.
+	 *
+	 * @param capacity
+	 *            the worker's executor size, zero if not limited by threads.
+	 *
+	 * @return metrics.
+	 */
+	public static ActivityUtilization forTaskList(final String taskList,
+			final int capacity) {
+
+		final ActivityUtilization rval = new ActivityUtilization(capacity);
+		Jmx.register("com.msiops.demo.swf:type=ActivityUtilization,name="
+				+ taskList, rval);
+		return rval;
+
+	}
+
+	private final AtomicLong busyNanos = new AtomicLong();
+
+	private final int capacity;
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicInteger peakInFlight = new AtomicInteger();
+
+	public ActivityUtilization(final int capacity) {
+		this.capacity = capacity;
+	}
+
+	@Override
+	public long getBusyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.busyNanos.get());
+	}
+
+	@Override
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	@Override
+	public long getCompleted() {
+		return this.completed.get();
+	}
+
+	@Override
+	public long getFailed() {
+		return this.failed.get();
+	}
+
+	@Override
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	@Override
+	public int getPeakInFlight() {
+		return this.peakInFlight.get();
+	}
+
+	@Override
+	public double getUtilization() {
+		return this.capacity > 0 ? (double) this.inFlight.get()
+				/ this.capacity : 0;
+	}
+
+	/**
+	 * Wrap an activities implementation so its tasks are measured.
+	 *
+	 * @param activities
+	 *            the activities interface, the one annotated with
+	 *            {@code @Activities}.
+	 *
+	 * @param implementation
+	 *            the implementation.
+	 *
+	 * @return measured implementation.
+	 */
+	public <T> T instrument(final Class<T> activities, final T implementation) {
+
+		return activities.cast(Proxy.newProxyInstance(
+				activities.getClassLoader(), new Class<?>[] { activities },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args)
+							throws Throwable {
+						return measure(implementation, method, args);
+					}
+
+				}));
+
+	}
+
+	/**
+	 * Record the end of a task. Use this with {@link #taskStarted()} for
+	 * tasks that are not measured by {@link #instrument(Class, Object)}, such
+	 * as manually completed ones.
+	 *
+	 * @param started
+	 *            value returned by {@link #taskStarted()}.
+	 *
+	 * @param ok
+	 *            true if the task produced a result, false if it failed.
+	 */
+	public void taskFinished(final long started, final boolean ok) {
+
+		if (ok) {
+			this.completed.incrementAndGet();
+		} else {
+			this.failed.incrementAndGet();
+		}
+		this.inFlight.decrementAndGet();
+		this.busyNanos.addAndGet(System.nanoTime() - started);
+
+	}
+
+	/**
+	 * Record the start of a task.
+	 *
+	 * @return start time to pass to {@link #taskFinished(long, boolean)}.
+	 */
+	public long taskStarted() {
+
+		final long rval = System.nanoTime();
+		final int now = this.inFlight.incrementAndGet();
+		int peak = this.peakInFlight.get();
+		while (now > peak && !this.peakInFlight.compareAndSet(peak, now)) {
+			peak = this.peakInFlight.get();
+		}
+		return rval;
+
+	}
+
+	private Object measure(final Object implementation, final Method method,
+			final Object[] args) throws Throwable {
+
+		if (method.getDeclaringClass() == Object.class) {
+			/*
+			 * not a task.
+			 */
+			return method.invoke(implementation, args);
+		}
+
+		/*
+		 * activities interfaces are usually package private.
+		 */
+		method.setAccessible(true);
+
+		final long start = taskStarted();
+		boolean ok = false;
+		try {
+			final Object rval = method.invoke(implementation, args);
+			ok = true;
+			return rval;
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		} finally {
+			taskFinished(start, ok);
+		}
+
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+/**
+ * JMX view of an {@link ActivityUtilization}.
+ */
+public interface ActivityUtilizationMXBean {
+
+	/**
+	 * @return total time spent in activity tasks, summed over tasks. The rate
+	 *         of change divided by {@link #getCapacity()} is utilization over
+	 *         any interval.
+	 */
+	long getBusyMillis();
+
+	/**
+	 * @return maximum number of tasks the worker runs at once, zero if there
+	 *         is no fixed limit.
+	 */
+	int getCapacity();
+
+	/**
+	 * @return number of tasks that returned a result.
+	 */
+	long getCompleted();
+
+	/**
+	 * @return number of tasks that threw.
+	 */
+	long getFailed();
+
+	/**
+	 * @return number of tasks running now.
+	 */
+	int getInFlight();
+
+	/**
+	 * @return highest number of tasks running at once so far.
+	 */
+	int getPeakInFlight();
+
+	/**
+	 * @return fraction of capacity in use now, from 0 to 1.
+	 */
+	double getUtilization();
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.model.DecisionTask;
+import com.amazonaws.services.simpleworkflow.model.PollForDecisionTaskRequest;
+import com.amazonaws.services.simpleworkflow.model.RespondDecisionTaskCompletedRequest;
+
+/**
+ * <p>
+ * Cost of each decision task handled by a workflow worker. The worker's SWF
+ * client is wrapped, see {@link #wrap(AmazonSimpleWorkflow)}, and the
+ * measurements are taken between the calls the flow framework makes on its
+ * poll thread: a decision task starts when the poll returns it and ends when
+ * its decisions are sent. For each task this records
+ * </p>
+ * <ul>
+ * <li>the history events replayed, across all pages of the task,</li>
+ * <li>the time spent deciding, which is the framework's replay plus the
+ * workflow code, less the time spent fetching further history pages,</li>
+ * <li>the decisions sent and</li>
+ * <li>the heap allocated by the poll thread while deciding, where the JVM
+ * can say.</li>
+ * </ul>
+ * <p>
+ * Each goes into a {@link LatencyHistogram} published through JMX. The flow
+ * framework gives no hook into promise creation, so promises are not
+ * counted; allocation is the nearest measure of the same cost.
+ * </p>
+ */
+public final class DecisionMetrics implements DecisionMetricsMXBean {
+
+	/**
+	 * Decision task in progress on a poll thread.
+	 */
+	private static final class Task {
+
+		final long allocatedBefore;
+
+		int events;
+
+		long pagingNanos;
+
+		final long polled;
+
+		Task(final long polled, final long allocatedBefore) {
+			this.polled = polled;
+			this.allocatedBefore = allocatedBefore;
+		}
+
+	}
+
+	private static final ThreadMXBean THREADS = ManagementFactory
+		.getThreadMXBean();
+
+	/**
+	 * Create metrics for a workflow worker and publish them through JMX.
+	 *
+	 * @param taskList
+	 *            the worker's task list, used to name the MBean.
+	 *
+	 * @return metrics.
+	 */
+	public static DecisionMetrics forTaskList(final String taskList) {
+
+		final DecisionMetrics rval = new DecisionMetrics();
+		Jmx.register("com.msiops.demo.swf:type=DecisionMetrics,name="
+				+ taskList, rval);
+		return rval;
+
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far or -1 if the JVM
+	 *         does not say.
+	 */
+	private static long allocatedBytes() {
+
+		long rval = -1;
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			rval = ((com.sun.management.ThreadMXBean) THREADS)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return rval;
+
+	}
+
+	private final LatencyHistogram allocated = new LatencyHistogram();
+
+	private final LatencyHistogram decide = new LatencyHistogram();
+
+	private final LatencyHistogram decisions = new LatencyHistogram();
+
+	private final LatencyHistogram events = new LatencyHistogram();
+
+	private final ThreadLocal<Task> inProgress = new ThreadLocal<>();
+
+	@Override
+	public void dump(final String file) throws IOException {
+
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(
+				Paths.get(file), StandardCharsets.UTF_8))) {
+			out.println("== events replayed");
+			this.events.print(out, "events");
+			out.println();
+			out.println("== time deciding");
+			this.decide.print(out, "us");
+			out.println();
+			out.println("== decisions sent");
+			this.decisions.print(out, "decisions");
+			out.println();
+			out.println("== heap allocated");
+			this.allocated.print(out, "bytes");
+		}
+
+	}
+
+	@Override
+	public long getAllocatedBytesMax() {
+		return this.allocated.getMax();
+	}
+
+	@Override
+	public long getAllocatedBytesP50() {
+		return this.allocated.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getAllocatedBytesP99() {
+		return this.allocated.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getDecideMicrosMax() {
+		return this.decide.getMax();
+	}
+
+	@Override
+	public long getDecideMicrosP50() {
+		return this.decide.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getDecideMicrosP999() {
+		return this.decide.getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public long getDecideMicrosP99() {
+		return this.decide.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getDecisionTasks() {
+		return this.decide.getCount();
+	}
+
+	@Override
+	public long getDecisionsMax() {
+		return this.decisions.getMax();
+	}
+
+	@Override
+	public long getDecisionsP50() {
+		return this.decisions.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getDecisionsP99() {
+		return this.decisions.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getEventsMax() {
+		return this.events.getMax();
+	}
+
+	@Override
+	public long getEventsP50() {
+		return this.events.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getEventsP99() {
+		return this.events.getValueAtPercentile(99);
+	}
+
+	/**
+	 * Wrap the SWF client of a workflow worker so its decision tasks are
+	 * measured. Only the worker's own client should be wrapped, since the
+	 * measurements rely on a task being polled and completed on one thread.
+	 *
+	 * @param delegate
+	 *            the client.
+	 *
+	 * @return measured client.
+	 */
+	public AmazonSimpleWorkflow wrap(final AmazonSimpleWorkflow delegate) {
+
+		return (AmazonSimpleWorkflow) Proxy.newProxyInstance(
+				AmazonSimpleWorkflow.class.getClassLoader(),
+				new Class<?>[] { AmazonSimpleWorkflow.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args)
+							throws Throwable {
+						return measure(delegate, method, args);
+					}
+
+				});
+
+	}
+
+	/**
+	 * Record a finished decision task.
+	 */
+	private void completed(final RespondDecisionTaskCompletedRequest request) {
+
+		final long now = System.nanoTime();
+		final Task task = this.inProgress.get();
+		if (task != null) {
+			this.inProgress.remove();
+			this.events.record(task.events);
+			this.decide.record(TimeUnit.NANOSECONDS.toMicros(now - task.polled
+					- task.pagingNanos));
+			this.decisions.record(request.getDecisions() == null ? 0 : request
+				.getDecisions().size());
+			final long allocatedAfter = allocatedBytes();
+			if (task.allocatedBefore >= 0 && allocatedAfter >= 0) {
+				this.allocated.record(allocatedAfter - task.allocatedBefore);
+			}
+		}
+
+	}
+
+	private Object measure(final AmazonSimpleWorkflow delegate,
+			final Method method, final Object[] args) throws Throwable {
+
+		final String name = method.getName();
+		if ("respondDecisionTaskCompleted".equals(name)) {
+			completed((RespondDecisionTaskCompletedRequest) args[0]);
+		}
+
+		final long start = System.nanoTime();
+		final Object rval;
+		try {
+			rval = method.invoke(delegate, args);
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		}
+
+		if ("pollForDecisionTask".equals(name)) {
+			polled((PollForDecisionTaskRequest) args[0], (DecisionTask) rval,
+					start);
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Start or continue a decision task after a poll returns.
+	 */
+	private void polled(final PollForDecisionTaskRequest request,
+			final DecisionTask page, final long pollStarted) {
+
+		final long now = System.nanoTime();
+		if (page != null && page.getTaskToken() != null) {
+			final Task task;
+			if (request.getNextPageToken() == null) {
+				/*
+				 * first page of a new task. A task left over on this thread
+				 * never completed and is dropped.
+				 */
+				task = new Task(now, allocatedBytes());
+				this.inProgress.set(task);
+			} else {
+				task = this.inProgress.get();
+				if (task != null) {
+					task.pagingNanos = task.pagingNanos + now - pollStarted;
+				}
+			}
+			if (task != null && page.getEvents() != null) {
+				task.events = task.events + page.getEvents().size();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.io.IOException;
+
+/**
+ * JMX view of {@link DecisionMetrics}. Values are per decision task.
+ */
+public interface DecisionMetricsMXBean {
+
+	/**
+	 * Write the full distributions to a file.
+	 *
+	 * @param file
+	 *            file to write, replaced if it exists.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	void dump(String file) throws IOException;
+
+	long getAllocatedBytesMax();
+
+	long getAllocatedBytesP50();
+
+	long getAllocatedBytesP99();
+
+	long getDecideMicrosMax();
+
+	long getDecideMicrosP50();
+
+	long getDecideMicrosP999();
+
+	long getDecideMicrosP99();
+
+	/**
+	 * @return decision tasks completed.
+	 */
+	long getDecisionTasks();
+
+	long getDecisionsMax();
+
+	long getDecisionsP50();
+
+	long getDecisionsP99();
+
+	long getEventsMax();
+
+	long getEventsP50();
+
+	long getEventsP99();
+
+}
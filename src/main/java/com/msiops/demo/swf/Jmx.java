@@ -0,0 +1,67 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publish metrics through the platform MBean server.
+ */
+public final class Jmx {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Jmx.class);
+
+	/**
+	 * Register an MBean. Metrics are nice to have so a failure is logged
+	 * rather than thrown.
+	 *
+	 * @param name
+	 *            object name.
+	 *
+	 * @param mbean
+	 *            the bean.
+	 */
+	public static void register(final String name, final Object mbean) {
+
+		try {
+			final ObjectName oname = new ObjectName(name);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(oname)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+						oname);
+			}
+		} catch (final JMException e) {
+			LOG.warn("cannot register MBean " + name, e);
+		}
+
+	}
+
+	/**
+	 * No instances.
+	 */
+	private Jmx() {
+		/*
+		 * no instances
+		 */
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Concurrent histogram of non-negative values such as latencies, in the
+ * manner of HdrHistogram. Values are counted in buckets whose width grows
+ * with the value so that every value is kept to within 1/64 (about 1.6%) of
+ * its size, from 1 to {@link Long#MAX_VALUE}, in a fixed array of counters.
+ * Recording is a couple of shifts and an atomic increment, cheap enough for
+ * every task.
+ * </p>
+ * <p>
+ * Percentiles report the highest value equivalent to the bucket they fall
+ * in, so they are never understated.
+ * </p>
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * Values below this are counted exactly, above it with this many buckets
+	 * per power of two.
+	 */
+	private static final int SUB_BUCKETS = 128;
+
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+	private static final int SUB_BUCKET_BITS = 7;
+
+	private static final int SIZE = (64 - SUB_BUCKET_BITS + 1)
+			* HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+
+	/**
+	 * Highest value counted in a bucket.
+	 */
+	private static long highest(final int index) {
+
+		final int shift = Math.max(0, index / HALF_SUB_BUCKETS - 1);
+		final long mantissa = index - (long) shift * HALF_SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+
+	}
+
+	private static int index(final long value) {
+
+		final int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value)
+				- SUB_BUCKET_BITS);
+		return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+
+	private final AtomicLong max = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	/**
+	 * @return number of values recorded.
+	 */
+	public long getCount() {
+		return this.total.get();
+	}
+
+	/**
+	 * @return largest value recorded, exactly.
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * @return mean of the values recorded, 0 if none.
+	 */
+	public double getMean() {
+		final long n = this.total.get();
+		return n == 0 ? 0 : (double) this.sum.get() / n;
+	}
+
+	/**
+	 * Find a percentile.
+	 *
+	 * @param percentile
+	 *            percentile from 0 to 100.
+	 *
+	 * @return the value at or below which that percentage of recorded values
+	 *         fall, 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(final double percentile) {
+
+		final long n = this.total.get();
+		final long target = Math.max(1,
+				(long) Math.ceil(Math.min(percentile, 100) / 100 * n));
+		long rval = 0;
+		if (n > 0) {
+			long seen = 0;
+			int i = 0;
+			while (i < SIZE && seen < target) {
+				seen = seen + this.counts.get(i);
+				i = i + 1;
+			}
+			rval = Math.min(highest(i - 1), this.max.get());
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Write the percentile distribution, one line per percentile.
+	 *
+	 * @param out
+	 *            where to write.
+	 *
+	 * @param unit
+	 *            unit of the values, for the heading.
+	 */
+	public void print(final PrintWriter out, final String unit) {
+
+		out.printf("%12s %10s%n", "value(" + unit + ")", "percentile");
+		for (final double p : new double[] { 0, 10, 25, 50, 75, 90, 95, 99,
+				99.9, 99.99, 100 }) {
+			out.printf("%12d %10s%n", getValueAtPercentile(p), p);
+		}
+		out.printf("count %d, mean %.1f, max %d%n", getCount(), getMean(),
+				getMax());
+
+	}
+
+	/**
+	 * Record a value.
+	 *
+	 * @param value
+	 *            the value, negative values are counted as 0.
+	 */
+	public void record(final long value) {
+
+		final long v = Math.max(0, value);
+		this.counts.incrementAndGet(index(v));
+		this.sum.addAndGet(v);
+		this.total.incrementAndGet();
+		long m = this.max.get();
+		while (v > m && !this.max.compareAndSet(m, v)) {
+			m = this.max.get();
+		}
+
+	}
+
+}
@@ -6,9 +6,66 @@ import java.util.List;
 import com.amazonaws.services.simpleworkflow.flow.annotations.Asynchronous;
 import com.amazonaws.services.simpleworkflow.flow.annotations.Wait;
 import com.amazonaws.services.simpleworkflow.flow.core.Promise;
+import com.amazonaws.services.simpleworkflow.flow.core.Settable;
 
 public final class PromiseUtil {
 
+	/**
+	 * Hands out values in the order their promises are fulfilled. Like
+	 * everything else in a workflow this runs on a single thread so the slot
+	 * counter needs no synchronization.
+	 */
+	private static final class CompletionOrder<T> {
+
+		private int next = 0;
+
+		private final List<Settable<T>> slots;
+
+		CompletionOrder(final int size) {
+			this.slots = new ArrayList<>(size);
+			for (int i = 0; i < size; i = i + 1) {
+				this.slots.add(new Settable<T>());
+			}
+		}
+
+		/**
+		 * Put a value in the next free slot once it is ready.
+		 */
+		@Asynchronous
+		void deliver(final Promise<T> value) {
+			this.slots.get(this.next).set(value.get());
+			this.next = this.next + 1;
+		}
+
+	}
+
+	/**
+	 * Reorder promises by fulfillment. The first promise returned produces
+	 * the first value to be fulfilled, the second the second and so on. Use
+	 * this to react to each value as it arrives in arrival order rather than
+	 * waiting for all of them.
+	 *
+	 * Values fulfilled in the same decision are ordered as the flow framework
+	 * delivers them, which is deterministic on replay. If an input fails, the
+	 * failure propagates to the caller just as it would from
+	 * {@link #join(List, Promise...)}.
+	 *
+	 * @param async
+	 *            independent promises.
+	 *
+	 * @return promises in order of fulfillment, one per input.
+	 */
+	public static <T> List<Promise<T>> inCompletionOrder(
+			final List<Promise<T>> async) {
+
+		final CompletionOrder<T> order = new CompletionOrder<>(async.size());
+		for (final Promise<T> pt : async) {
+			order.deliver(pt);
+		}
+		return new ArrayList<Promise<T>>(order.slots);
+
+	}
+
 	/**
 	 * Convert a list of promised values into a promised list of values. Use
 	 * this to synchronize multiple independent promises.
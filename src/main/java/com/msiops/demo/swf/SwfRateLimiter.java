@@ -0,0 +1,324 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+
+/**
+ * <p>
+ * Client side rate limiter for SWF API calls. SWF throttles calls per account
+ * so every client in a JVM should share one limiter, see {@link #shared()}.
+ * </p>
+ * <p>
+ * Calls draw permits from a token bucket. The refill rate adapts: it grows
+ * additively with each successful call and is cut multiplicatively when SWF
+ * responds with a throttling error. Throttling errors are still passed to the
+ * caller, which has its own retry logic.
+ * </p>
+ * <p>
+ * Long polls for decision and activity tasks do not wait for permits and do
+ * not count as successes. A poll is held open by SWF for up to a minute, so
+ * pollers are already limited by their own threads, and counting them would
+ * grow the rate on idle workers.
+ * </p>
+ * <p>
+ * Activity heartbeats do not wait for permits either. A lap that reports its
+ * progress has only a few seconds between heartbeats before SWF gives up on
+ * it, and a queue of decision and activity calls must not push it past that.
+ * SWF throttles heartbeats under their own quota, so this assumes the laps in
+ * flight across the account, each heartbeating every
+ * {@code Lap.HEARTBEAT_INTERVAL_MS}, stay within it. A throttled heartbeat
+ * still cuts the rate of the other calls.
+ * </p>
+ */
+public final class SwfRateLimiter implements SwfRateLimiterMXBean {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(SwfRateLimiter.class);
+
+	/**
+	 * Minimum time between two rate cuts. A burst of calls all throttled at
+	 * once cuts the rate only once.
+	 */
+	private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS
+		.toNanos(1);
+
+	private static final double DECREASE_FACTOR = 0.5;
+
+	private static final double INCREASE_PER_CALL = 0.05;
+
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private static final Object SHARED_LOCK = new Object();
+
+	/**
+	 * Client methods that are passed through without waiting for a permit.
+	 */
+	private static final Set<String> UNLIMITED = Collections
+		.unmodifiableSet(new HashSet<>(Arrays.asList("pollForActivityTask",
+				"pollForDecisionTask", "recordActivityTaskHeartbeat")));
+
+	private static SwfRateLimiter shared;
+
+	/**
+	 * The limiter shared by every SWF client in this JVM. It is configured
+	 * from the system properties {@code horserace.swf.initialRate},
+	 * {@code horserace.swf.minRate}, {@code horserace.swf.maxRate} (calls per
+	 * second) and {@code horserace.swf.burst} (permits) and is published
+	 * through JMX.
+	 *
+	 * @return the shared limiter.
+	 */
+	public static SwfRateLimiter shared() {
+
+		synchronized (SHARED_LOCK) {
+			if (shared == null) {
+				shared = new SwfRateLimiter(doubleProperty(
+						"horserace.swf.initialRate", 50), doubleProperty(
+						"horserace.swf.minRate", 1), doubleProperty(
+						"horserace.swf.maxRate", 200), doubleProperty(
+						"horserace.swf.burst", 100));
+				Jmx.register("com.msiops.demo.swf:type=SwfRateLimiter", shared);
+			}
+			return shared;
+		}
+
+	}
+
+	private static double doubleProperty(final String name, final double dflt) {
+		final String value = System.getProperty(name);
+		return value == null ? dflt : Double.parseDouble(value);
+	}
+
+	private static boolean isThrottling(final Throwable t) {
+		if (t instanceof AmazonServiceException) {
+			final String code = ((AmazonServiceException) t).getErrorCode();
+			return "ThrottlingException".equals(code)
+					|| "Throttling".equals(code);
+		}
+		return false;
+	}
+
+	private final double burst;
+
+	private final AtomicLong denied = new AtomicLong();
+
+	private final AtomicLong granted = new AtomicLong();
+
+	private long lastDecreaseNanos;
+
+	private long lastRefillNanos = System.nanoTime();
+
+	private final double maxRate;
+
+	private final double minRate;
+
+	private double rate;
+
+	private final AtomicLong throttled = new AtomicLong();
+
+	/**
+	 * Permits available. This goes negative when callers have reserved
+	 * permits that are not yet refilled.
+	 */
+	private double tokens;
+
+	/**
+	 * Create a limiter. Most code should use {@link #shared()} instead.
+	 *
+	 * @param initialRate
+	 *            starting rate in calls per second.
+	 *
+	 * @param minRate
+	 *            the rate is never cut below this.
+	 *
+	 * @param maxRate
+	 *            the rate never grows beyond this.
+	 *
+	 * @param burst
+	 *            maximum permits that accumulate while idle.
+	 */
+	public SwfRateLimiter(final double initialRate, final double minRate,
+			final double maxRate, final double burst) {
+
+		if (minRate <= 0 || minRate > maxRate || burst < 1) {
+			throw new IllegalArgumentException("bad rate limits");
+		}
+
+		this.rate = Math.max(minRate, Math.min(initialRate, maxRate));
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.burst = burst;
+		this.tokens = burst;
+
+	}
+
+	/**
+	 * Take a permit, waiting as long as necessary.
+	 */
+	public void acquire() {
+
+		final long waitNanos;
+		synchronized (this) {
+			refill();
+			this.tokens = this.tokens - 1;
+			waitNanos = this.tokens < 0 ? (long) (-this.tokens / this.rate
+					* NANOS_PER_SECOND) : 0;
+		}
+
+		if (waitNanos == 0) {
+			this.granted.incrementAndGet();
+		} else {
+			this.denied.incrementAndGet();
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (final InterruptedException e) {
+				// re-assert
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Rate limit wait interrupted");
+			}
+		}
+
+	}
+
+	@Override
+	public long getPermitsDenied() {
+		return this.denied.get();
+	}
+
+	@Override
+	public long getPermitsGranted() {
+		return this.granted.get();
+	}
+
+	@Override
+	public synchronized double getRate() {
+		return this.rate;
+	}
+
+	@Override
+	public long getThrottled() {
+		return this.throttled.get();
+	}
+
+	/**
+	 * Record a call that SWF accepted.
+	 */
+	public synchronized void onSuccess() {
+		this.rate = Math.min(this.maxRate, this.rate + INCREASE_PER_CALL);
+	}
+
+	/**
+	 * Record a call that SWF throttled.
+	 */
+	public void onThrottled() {
+
+		this.throttled.incrementAndGet();
+		synchronized (this) {
+			final long now = System.nanoTime();
+			if (now - this.lastDecreaseNanos >= DECREASE_INTERVAL_NANOS) {
+				this.lastDecreaseNanos = now;
+				refill();
+				this.rate = Math.max(this.minRate, this.rate * DECREASE_FACTOR);
+				this.tokens = Math.min(this.tokens, 0);
+				LOG.warn("SWF throttling, rate cut to {}/s", this.rate);
+			}
+		}
+
+	}
+
+	/**
+	 * Wrap a client so that every API call it makes is limited by this
+	 * limiter. The delegate can be any implementation, including a local fake.
+	 *
+	 * @param delegate
+	 *            client that makes the calls.
+	 *
+	 * @return limited client.
+	 */
+	public AmazonSimpleWorkflow wrap(final AmazonSimpleWorkflow delegate) {
+
+		return (AmazonSimpleWorkflow) Proxy.newProxyInstance(
+				AmazonSimpleWorkflow.class.getClassLoader(),
+				new Class<?>[] { AmazonSimpleWorkflow.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args)
+							throws Throwable {
+						return limit(delegate, method, args);
+					}
+
+				});
+
+	}
+
+	private Object limit(final AmazonSimpleWorkflow delegate,
+			final Method method, final Object[] args) throws Throwable {
+
+		/*
+		 * only service requests count against the SWF throttles.
+		 */
+		final boolean apiCall = args != null && args.length == 1
+				&& args[0] instanceof AmazonWebServiceRequest
+				&& !UNLIMITED.contains(method.getName());
+
+		if (apiCall) {
+			acquire();
+		}
+		try {
+			final Object rval = method.invoke(delegate, args);
+			if (apiCall) {
+				onSuccess();
+			}
+			return rval;
+		} catch (final InvocationTargetException e) {
+			if (isThrottling(e.getCause())) {
+				onThrottled();
+			}
+			throw e.getCause();
+		}
+
+	}
+
+	private void refill() {
+
+		final long now = System.nanoTime();
+		this.tokens = Math.min(this.burst, this.tokens
+				+ (now - this.lastRefillNanos) / NANOS_PER_SECOND * this.rate);
+		this.lastRefillNanos = now;
+
+	}
+
+}
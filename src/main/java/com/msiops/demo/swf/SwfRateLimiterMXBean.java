@@ -0,0 +1,44 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+/**
+ * JMX view of a {@link SwfRateLimiter}.
+ */
+public interface SwfRateLimiterMXBean {
+
+	/**
+	 * @return current permitted call rate in calls per second.
+	 */
+	double getRate();
+
+	/**
+	 * @return number of calls that found a permit immediately.
+	 */
+	long getPermitsGranted();
+
+	/**
+	 * @return number of calls that found no permit and were made to wait.
+	 */
+	long getPermitsDenied();
+
+	/**
+	 * @return number of calls rejected by SWF with a throttling error.
+	 */
+	long getThrottled();
+
+}
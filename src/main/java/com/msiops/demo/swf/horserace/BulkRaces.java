@@ -0,0 +1,403 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflowClient;
+import com.amazonaws.services.simpleworkflow.model.ExecutionTimeFilter;
+import com.amazonaws.services.simpleworkflow.model.ListClosedWorkflowExecutionsRequest;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionFilter;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionAlreadyStartedException;
+import com.msiops.demo.swf.SwfRateLimiter;
+import com.msiops.demo.swf.horserace.worker.RaceFlowClientExternalFactory;
+import com.msiops.demo.swf.horserace.worker.RaceFlowClientExternalFactoryImpl;
+import com.msiops.demo.swf.horserace.worker.RaceOptions;
+
+/**
+ * <p>
+ * Start every race on a card file. The file is read a line at a time, so it
+ * can be any size, and starts are made concurrently through one SWF client.
+ * </p>
+ * <p>
+ * A file ending in {@code .jsonl} or {@code .json} holds one race per line
+ * as {@code {"id": "...", "laps": 10, "horses": ["...", ...]}}. Any other file
+ * is comma separated as {@code id,laps,horse,horse,...}. Blank lines and lines
+ * starting with {@code #} are skipped. Race tuning is read from the same
+ * system properties as {@link HorseRace}.
+ * </p>
+ * <p>
+ * The id becomes the workflow id, or if it is empty the file name and line
+ * number do. SWF refuses to start a race whose execution is still open, but
+ * not one whose execution has already closed. After a crash the submitter
+ * can simply be run again: the checkpoint file holds the line below which
+ * every race has been started and reading resumes there. Races past the
+ * checkpoint may have been started before the crash, so a resumed run looks
+ * each one up among the closed executions of the domain before starting it.
+ * Races found there, or refused as open, are counted as already started.
+ * Races that cannot be started for any other reason are copied to a rejects
+ * file to be fixed and resubmitted.
+ * </p>
+ * <ul>
+ * <li>{@code horserace.bulk.parallelism} starts in flight at once, default
+ * 16.</li>
+ * <li>{@code horserace.bulk.checkpoint} checkpoint file, default the card file
+ * with {@code .checkpoint} appended.</li>
+ * <li>{@code horserace.bulk.checkpointEvery} races between checkpoint writes,
+ * default 100.</li>
+ * <li>{@code horserace.bulk.rejects} rejects file, default the card file with
+ * {@code .rejects} appended.</li>
+ * </ul>
+ */
+public final class BulkRaces {
+
+	/**
+	 * One race read from the card file.
+	 */
+	private static final class Card {
+
+		final List<String> horses = new ArrayList<>();
+
+		String id;
+
+		int laps;
+
+	}
+
+	private static final String DOMAIN = "Demo";
+
+	private static final ObjectMapper JSON = new ObjectMapper();
+
+	public static void main(final String[] args) throws Exception {
+
+		if (args.length != 1) {
+			System.err.println("usage: BulkRaces <card file>");
+			System.exit(2);
+		}
+
+		final Path cards = Paths.get(args[0]);
+		final int parallelism = Integer.getInteger(
+				"horserace.bulk.parallelism", 16);
+		final AmazonSimpleWorkflow swf = SwfRateLimiter.shared().wrap(
+				new AmazonSimpleWorkflowClient(new ClientConfiguration()
+					.withMaxConnections(parallelism)));
+
+		final BulkRaces bulk = new BulkRaces(swf, DOMAIN, cards, parallelism,
+				HorseRace.optionsFromSystemProperties());
+		bulk.run();
+
+	}
+
+	/**
+	 * Line numbers above {@link #next} already started, held until the lines
+	 * before them are too.
+	 */
+	private final TreeSet<Long> ahead = new TreeSet<>();
+
+	private final AtomicInteger already = new AtomicInteger();
+
+	private final Path cards;
+
+	private final int checkpointEvery = Integer.getInteger(
+			"horserace.bulk.checkpointEvery", 100);
+
+	private final Path checkpointFile;
+
+	private final RaceFlowClientExternalFactory clients;
+
+	private final String domain;
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * First line not known to have been started. Guarded by {@link #ahead}.
+	 */
+	private long next;
+
+	private final RaceOptions options;
+
+	private final int parallelism;
+
+	private final BufferedWriter rejects;
+
+	/**
+	 * Whether this run resumes from a checkpoint, so races may already have
+	 * been started and closed.
+	 */
+	private volatile boolean resumed;
+
+	/**
+	 * Value of {@link #next} at the last checkpoint. Guarded by {@link #ahead}.
+	 */
+	private long saved;
+
+	private final AtomicInteger started = new AtomicInteger();
+
+	private final AmazonSimpleWorkflow swf;
+
+	public BulkRaces(final AmazonSimpleWorkflow swf, final String domain,
+			final Path cards, final int parallelism, final RaceOptions options)
+			throws IOException {
+
+		this.cards = cards;
+		this.parallelism = parallelism;
+		this.options = options;
+		this.swf = swf;
+		this.domain = domain;
+		this.clients = new RaceFlowClientExternalFactoryImpl(swf, domain);
+		this.checkpointFile = Paths.get(System.getProperty(
+				"horserace.bulk.checkpoint", cards + ".checkpoint"));
+		this.rejects = Files.newBufferedWriter(Paths.get(System.getProperty(
+				"horserace.bulk.rejects", cards + ".rejects")),
+				StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+
+	}
+
+	/**
+	 * Write the checkpoint. The file is replaced in one step so a crash
+	 * leaves either the old or the new checkpoint.
+	 */
+	private void checkpoint(final long line) throws IOException {
+
+		final Path tmp = this.checkpointFile.resolveSibling(this.checkpointFile
+			.getFileName() + ".tmp");
+		Files.write(tmp, Long.toString(line).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, this.checkpointFile,
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/**
+	 * Note that a line is finished with and advance the checkpoint past every
+	 * line that now is.
+	 */
+	private void done(final long line) {
+
+		synchronized (this.ahead) {
+			this.ahead.add(line);
+			while (!this.ahead.isEmpty() && this.ahead.first() == this.next) {
+				this.ahead.pollFirst();
+				this.next = this.next + 1;
+			}
+			if (this.next - this.saved >= this.checkpointEvery) {
+				try {
+					checkpoint(this.next);
+					this.saved = this.next;
+				} catch (final IOException e) {
+					System.err.println("cannot checkpoint: " + e);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Whether a race has a closed execution, which SWF would not refuse to
+	 * start again.
+	 */
+	private boolean closed(final String id) {
+
+		return !this.swf
+			.listClosedWorkflowExecutions(
+					new ListClosedWorkflowExecutionsRequest()
+						.withDomain(this.domain)
+						.withStartTimeFilter(
+								new ExecutionTimeFilter()
+									.withOldestDate(new Date(0)))
+						.withExecutionFilter(
+								new WorkflowExecutionFilter().withWorkflowId(id))
+						.withMaximumPageSize(1)).getExecutionInfos()
+			.isEmpty();
+
+	}
+
+	/**
+	 * Parse one card.
+	 *
+	 * @return the race, or null for a line to skip.
+	 */
+	private Card parse(final long line, final String text) throws IOException {
+
+		final String trimmed = text.trim();
+		Card rval = null;
+		if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+			final String name = this.cards.getFileName().toString();
+			rval = new Card();
+			if (name.endsWith(".jsonl") || name.endsWith(".json")) {
+				final JsonNode card = JSON.readTree(trimmed);
+				rval.id = card.path("id").getValueAsText();
+				rval.laps = card.path("laps").getValueAsInt();
+				for (final JsonNode horse : card.path("horses")) {
+					rval.horses.add(horse.getValueAsText());
+				}
+			} else {
+				final String[] fields = trimmed.split("\\s*,\\s*");
+				if (fields.length < 3) {
+					throw new IOException("expected id,laps,horse,...");
+				}
+				rval.id = fields[0];
+				rval.laps = Integer.parseInt(fields[1]);
+				rval.horses.addAll(Arrays.asList(fields).subList(2,
+						fields.length));
+			}
+			if (rval.id == null || rval.id.isEmpty()) {
+				rval.id = name + "-" + line;
+			}
+			if (rval.laps <= 0 || rval.horses.isEmpty()) {
+				throw new IOException("race needs laps and horses");
+			}
+		}
+		return rval;
+
+	}
+
+	private void reject(final long line, final String text, final Exception e) {
+
+		this.failed.incrementAndGet();
+		System.err.println("line " + line + ": " + e);
+		synchronized (this.rejects) {
+			try {
+				this.rejects.write(text);
+				this.rejects.newLine();
+				this.rejects.flush();
+			} catch (final IOException x) {
+				System.err.println("cannot write reject: " + x);
+			}
+		}
+
+	}
+
+	/**
+	 * Start every race from the checkpoint to the end of the file, then write
+	 * the final checkpoint.
+	 */
+	public void run() throws IOException, InterruptedException {
+
+		long first = 1;
+		if (Files.exists(this.checkpointFile)) {
+			first = Long.parseLong(new String(Files
+				.readAllBytes(this.checkpointFile), StandardCharsets.UTF_8)
+				.trim());
+			this.resumed = true;
+		}
+		synchronized (this.ahead) {
+			this.next = first;
+			this.saved = first;
+		}
+
+		final ExecutorService starters = Executors
+			.newFixedThreadPool(this.parallelism);
+		final Semaphore slots = new Semaphore(this.parallelism);
+		final long began = System.nanoTime();
+		long line = 0;
+		try (final BufferedReader in = Files.newBufferedReader(this.cards,
+				StandardCharsets.UTF_8)) {
+			String text = in.readLine();
+			while (text != null) {
+				line = line + 1;
+				if (line >= first) {
+					slots.acquire();
+					submit(starters, slots, line, text);
+				}
+				text = in.readLine();
+			}
+		}
+		starters.shutdown();
+		starters.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+		synchronized (this.ahead) {
+			checkpoint(this.next);
+		}
+		this.rejects.close();
+
+		final double seconds = (System.nanoTime() - began) / 1e9;
+		System.err.printf(
+				"%d started, %d already started, %d rejected in %.1f s (%.0f/s)%n",
+				this.started.get(), this.already.get(), this.failed.get(),
+				seconds, this.started.get() / seconds);
+
+	}
+
+	/**
+	 * Start one race on a start thread.
+	 */
+	private void submit(final ExecutorService starters, final Semaphore slots,
+			final long line, final String text) {
+
+		starters.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					start(line, text);
+				} finally {
+					done(line);
+					slots.release();
+				}
+
+			}
+
+		});
+
+	}
+
+	private void start(final long line, final String text) {
+
+		try {
+			final Card card = parse(line, text);
+			if (card != null && this.resumed && closed(card.id)) {
+				this.already.incrementAndGet();
+			} else if (card != null) {
+				this.clients.getClient(card.id).go(card.horses, card.laps,
+						this.options, null);
+				this.started.incrementAndGet();
+			}
+		} catch (final WorkflowExecutionAlreadyStartedException e) {
+			this.already.incrementAndGet();
+		} catch (final IOException | RuntimeException e) {
+			reject(line, text, e);
+		}
+
+	}
+
+}
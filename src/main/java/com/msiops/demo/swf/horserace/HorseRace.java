@@ -21,11 +21,27 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.TreeMap;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
 import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflowClient;
+import com.amazonaws.services.simpleworkflow.flow.DataConverter;
+import com.amazonaws.services.simpleworkflow.flow.JsonDataConverter;
+import com.amazonaws.services.simpleworkflow.model.DescribeWorkflowExecutionRequest;
+import com.amazonaws.services.simpleworkflow.model.ExecutionTimeFilter;
+import com.amazonaws.services.simpleworkflow.model.ListOpenWorkflowExecutionsRequest;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecution;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionDetail;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionFilter;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionInfo;
+import com.msiops.demo.swf.SwfRateLimiter;
 import com.msiops.demo.swf.horserace.worker.RaceFlowClientExternal;
 import com.msiops.demo.swf.horserace.worker.RaceFlowClientExternalFactory;
 import com.msiops.demo.swf.horserace.worker.RaceFlowClientExternalFactoryImpl;
+import com.msiops.demo.swf.horserace.worker.RaceOptions;
+import com.msiops.demo.swf.horserace.worker.RaceProgress;
+import com.msiops.demo.swf.horserace.worker.RetrySettings;
 
 /**
  * Kick off a horse race. When run, this request the start of a new workflow in
@@ -38,22 +54,36 @@ public final class HorseRace {
 
 	private static final RaceFlowClientExternalFactory CLIENTS;
 
+	/**
+	 * Reads race progress. This must match the workflow's data converter,
+	 * which is the flow framework default.
+	 */
+	private static final DataConverter CONVERTER = new JsonDataConverter();
+
 	private static final String DOMAIN = "Demo";
 
+	/**
+	 * Prefix of retry settings properties. Settings for one activity type add
+	 * the type, as in {@code horserace.retry.runLap.maximumAttempts}.
+	 */
+	private static final String RETRY = "horserace.retry.";
+
 	/**
 	 * This is the actual client interface used by the generated external flow
 	 * client. Its credentials can be configured like any other client in the
 	 * AWS Java SDK. By default, it checks the environment, system properties,
 	 * and (if running on EC2) the host role.
+	 * Calls go through the rate limiter shared by every client in the JVM.
 	 */
-	private static final AmazonSimpleWorkflowClient SWF = new AmazonSimpleWorkflowClient();
+	private static final AmazonSimpleWorkflow SWF = SwfRateLimiter.shared()
+		.wrap(new AmazonSimpleWorkflowClient());
 
 	static {
 		CLIENTS = new RaceFlowClientExternalFactoryImpl(SWF, DOMAIN);
 
 	}
 
-	public static void main(final String[] args) {
+	public static void main(final String[] args) throws InterruptedException {
 		final HorseRace hr;
 		if (args.length == 0) {
 			hr = new HorseRace(DEFAULT_HORSES, DEFAULT_LAPS);
@@ -64,6 +94,11 @@ public final class HorseRace {
 					args.length - 1)), Integer.valueOf(args[args.length - 1]));
 		}
 		hr.go();
+		final long watchIntervalMs = Long.getLong(
+				"horserace.watchIntervalMs", 0);
+		if (watchIntervalMs > 0) {
+			hr.watch(watchIntervalMs);
+		}
 
 	}
 
@@ -85,6 +120,11 @@ public final class HorseRace {
 	 */
 	private final int laps;
 
+	/**
+	 * Race tuning. This becomes a parameter to the workflow creation.
+	 */
+	private final RaceOptions options;
+
 	/**
 	 * Default horse names are taken from "Mr. Magoo and the Seven Dwarfs"
 	 */
@@ -96,8 +136,90 @@ public final class HorseRace {
 
 	public HorseRace(final Collection<String> horses, final int laps) {
 
+		this(horses, laps, optionsFromSystemProperties());
+
+	}
+
+	public HorseRace(final Collection<String> horses, final int laps,
+			final RaceOptions options) {
+
 		this.horses = new ArrayList<>(horses);
 		this.laps = laps;
+		this.options = options;
+
+	}
+
+	/**
+	 * Read race tuning from system properties. Any property not set keeps the
+	 * default from {@link RaceOptions}.
+	 *
+	 * @return race options.
+	 */
+	public static RaceOptions optionsFromSystemProperties() {
+
+		final RaceOptions rval = new RaceOptions();
+		rval.setLapsPerTask(Integer.getInteger("horserace.lapsPerTask",
+				rval.getLapsPerTask()));
+		rval.setLapsPerExecution(Integer.getInteger(
+				"horserace.lapsPerExecution", rval.getLapsPerExecution()));
+		rval.setShardSize(Integer.getInteger("horserace.shardSize",
+				rval.getShardSize()));
+		rval.setMaxOutstanding(Integer.getInteger("horserace.maxOutstanding",
+				rval.getMaxOutstanding()));
+		rval.setPartitions(Integer.getInteger("horserace.partitions",
+				rval.getPartitions()));
+		rval.setHedgePercentile(Double.parseDouble(System.getProperty(
+				"horserace.hedgePercentile",
+				Double.toString(rval.getHedgePercentile()))));
+		rval.setRetry(retrySettingsFromSystemProperties(RETRY,
+				rval.getRetry()));
+		for (final String name : System.getProperties().stringPropertyNames()) {
+			final int dot = name.lastIndexOf('.');
+			if (name.startsWith(RETRY) && dot > RETRY.length()) {
+				final String type = name.substring(RETRY.length(), dot);
+				if (!rval.getRetries().containsKey(type)) {
+					rval.getRetries().put(
+							type,
+							retrySettingsFromSystemProperties(RETRY + type
+									+ ".", rval.getRetry()));
+				}
+			}
+		}
+		rval.setRetryBudget(Integer.getInteger("horserace.retryBudget",
+				rval.getRetryBudget()));
+		rval.setBreakerThreshold(Integer.getInteger(
+				"horserace.breakerThreshold", rval.getBreakerThreshold()));
+		rval.setBreakerCooldownSeconds(Integer.getInteger(
+				"horserace.breakerCooldownSeconds",
+				rval.getBreakerCooldownSeconds()));
+		return rval;
+
+	}
+
+	/**
+	 * Read retry settings from system properties.
+	 *
+	 * @param prefix
+	 *            property name prefix, ending with a dot.
+	 *
+	 * @param defaults
+	 *            settings for properties that are not set.
+	 *
+	 * @return retry settings.
+	 */
+	private static RetrySettings retrySettingsFromSystemProperties(
+			final String prefix, final RetrySettings defaults) {
+
+		final RetrySettings rval = new RetrySettings();
+		rval.setInitialIntervalSeconds(Long.getLong(prefix
+				+ "initialIntervalSeconds", defaults.getInitialIntervalSeconds()));
+		rval.setMaximumIntervalSeconds(Long.getLong(prefix
+				+ "maximumIntervalSeconds", defaults.getMaximumIntervalSeconds()));
+		rval.setMaximumAttempts(Integer.getInteger(prefix + "maximumAttempts",
+				defaults.getMaximumAttempts()));
+		rval.setJitter(Double.parseDouble(System.getProperty(prefix + "jitter",
+				Double.toString(defaults.getJitter()))));
+		return rval;
 
 	}
 
@@ -112,6 +234,110 @@ public final class HorseRace {
 		 * Other interface methods can be marked with @Signal. Any such methods
 		 * become methods in the client stub for signaling an active workflow.
 		 */
-		this.race.go(this.horses, this.laps);
+		this.race.go(this.horses, this.laps, this.options, null);
+	}
+
+	/**
+	 * <p>
+	 * Poll the progress of the race until it ends, printing it whenever it
+	 * changes. Each poll is a single call to describe the execution, which
+	 * returns the {@link RaceProgress} the race last published along with its
+	 * status, so the history is never read.
+	 * </p>
+	 * <p>
+	 * When the race continues as a new execution, polling moves to the new
+	 * execution.
+	 * </p>
+	 *
+	 * @param intervalMs
+	 *            time between polls.
+	 */
+	public void watch(final long intervalMs) throws InterruptedException {
+
+		WorkflowExecution execution = this.race.getWorkflowExecution();
+		String published = null;
+		boolean closed = false;
+		while (!closed) {
+			Thread.sleep(intervalMs);
+			WorkflowExecutionDetail detail = null;
+			try {
+				detail = SWF
+					.describeWorkflowExecution(new DescribeWorkflowExecutionRequest()
+						.withDomain(DOMAIN).withExecution(execution));
+			} catch (final AmazonClientException e) {
+				/*
+				 * try again next interval.
+				 */
+			}
+			if (detail != null) {
+				final String context = detail.getLatestExecutionContext();
+				if (context != null && !context.equals(published)) {
+					published = context;
+					print(CONVERTER.fromData(context, RaceProgress.class));
+				}
+				final WorkflowExecutionInfo info = detail.getExecutionInfo();
+				if ("CONTINUED_AS_NEW".equals(info.getCloseStatus())) {
+					execution = continuation(info);
+				} else {
+					closed = "CLOSED".equals(info.getExecutionStatus());
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Find the execution a race continued as.
+	 *
+	 * @param info
+	 *            the execution that continued.
+	 *
+	 * @return the open execution of the race, or the given one if there is
+	 *         none yet.
+	 */
+	private static WorkflowExecution continuation(
+			final WorkflowExecutionInfo info) {
+
+		WorkflowExecution rval = info.getExecution();
+		try {
+			final List<WorkflowExecutionInfo> open = SWF
+				.listOpenWorkflowExecutions(
+						new ListOpenWorkflowExecutionsRequest()
+							.withDomain(DOMAIN)
+							.withStartTimeFilter(
+									new ExecutionTimeFilter()
+										.withOldestDate(info.getStartTimestamp()))
+							.withExecutionFilter(
+									new WorkflowExecutionFilter()
+										.withWorkflowId(rval.getWorkflowId())))
+				.getExecutionInfos();
+			if (!open.isEmpty()) {
+				rval = open.get(0).getExecution();
+			}
+		} catch (final AmazonClientException e) {
+			/*
+			 * try again next interval.
+			 */
+		}
+		return rval;
+
+	}
+
+	private static void print(final RaceProgress progress) {
+
+		System.out.printf(
+				"lap %d of %d: %d finished, %d injured, %d missing, placed %s%n",
+				progress.getLeaderLap(), progress.getLaps(),
+				progress.getFinished(), progress.getInjuredCount(),
+				progress.getMissing(), progress.getPlaced());
+		if (!progress.getLapsCompleted().isEmpty()) {
+			System.out.printf("  laps %s%n", new TreeMap<>(
+					progress.getLapsCompleted()));
+		}
+		if (!progress.getInjured().isEmpty()) {
+			System.out.printf("  injured %s%n", progress.getInjured());
+		}
+
 	}
+
 }
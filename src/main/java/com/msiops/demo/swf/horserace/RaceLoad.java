@@ -0,0 +1,378 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflowClient;
+import com.amazonaws.services.simpleworkflow.model.DescribeWorkflowExecutionRequest;
+import com.amazonaws.services.simpleworkflow.model.ExecutionTimeFilter;
+import com.amazonaws.services.simpleworkflow.model.ListOpenWorkflowExecutionsRequest;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecution;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionFilter;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionInfo;
+import com.msiops.demo.swf.LatencyHistogram;
+import com.msiops.demo.swf.SwfRateLimiter;
+import com.msiops.demo.swf.horserace.worker.RaceFlowClientExternal;
+import com.msiops.demo.swf.horserace.worker.RaceFlowClientExternalFactory;
+import com.msiops.demo.swf.horserace.worker.RaceFlowClientExternalFactoryImpl;
+import com.msiops.demo.swf.horserace.worker.RaceOptions;
+
+/**
+ * <p>
+ * Capacity test for a fleet of workers. Where {@link HorseRace} starts one
+ * race, this starts races in SWF at a steady rate, follows each one to its
+ * close and reports throughput and the distribution of race latency.
+ * </p>
+ * <p>
+ * Arguments are the number of races, horses per race, laps and races started
+ * per second. Race tuning is read from the same system properties as
+ * {@link HorseRace}. In addition:
+ * </p>
+ * <ul>
+ * <li>{@code horserace.load.startThreads} threads making start calls, default
+ * 4.</li>
+ * <li>{@code horserace.load.pollThreads} threads describing open races,
+ * default 4.</li>
+ * <li>{@code horserace.load.pollIntervalMs} time between describes of an open
+ * race, default 1000.</li>
+ * <li>{@code horserace.load.prefix} workflow id prefix, default
+ * {@code load-} and the current time.</li>
+ * </ul>
+ * <p>
+ * A race's latency runs from the time it was due to start, not the time the
+ * start call was made, so a starter that falls behind shows up in the
+ * figures rather than slowing the offered load. The rest of the latency is
+ * the time SWF records between the start of the race's first execution and
+ * the close of its last, so it does not depend on how often open races are
+ * described. A race that continues as a new execution is followed to the new
+ * one, the way {@link HorseRace#watch(long)} does.
+ * </p>
+ */
+public final class RaceLoad {
+
+	private static final String DOMAIN = "Demo";
+
+	public static void main(final String[] args) throws Exception {
+
+		final int races = args.length > 0 ? Integer.valueOf(args[0]) : 100;
+		final int fieldSize = args.length > 1 ? Integer.valueOf(args[1]) : 7;
+		final int laps = args.length > 2 ? Integer.valueOf(args[2]) : 10;
+		final double rate = args.length > 3 ? Double.valueOf(args[3]) : 1;
+
+		final AmazonSimpleWorkflow swf = SwfRateLimiter.shared().wrap(
+				new AmazonSimpleWorkflowClient());
+		new RaceLoad(swf, DOMAIN).run(races, fieldSize, laps, rate,
+				HorseRace.optionsFromSystemProperties());
+
+	}
+
+	private final RaceFlowClientExternalFactory clients;
+
+	private final AtomicInteger completed = new AtomicInteger();
+
+	private final String domain;
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private final AtomicLong lastClosed = new AtomicLong();
+
+	/**
+	 * End to end race latency in milliseconds.
+	 */
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private final long pollIntervalMs = Long.getLong(
+			"horserace.load.pollIntervalMs", 1000);
+
+	private final ScheduledExecutorService pollers = Executors
+		.newScheduledThreadPool(Integer.getInteger(
+				"horserace.load.pollThreads", 4));
+
+	private final String prefix = System.getProperty("horserace.load.prefix",
+			"load-" + System.currentTimeMillis() + "-");
+
+	/**
+	 * Time from when a race was due to start to when its start call returned,
+	 * in milliseconds.
+	 */
+	private final LatencyHistogram startDelay = new LatencyHistogram();
+
+	private final AtomicInteger startFailed = new AtomicInteger();
+
+	private final ExecutorService starters = Executors
+		.newFixedThreadPool(Integer.getInteger("horserace.load.startThreads",
+				4));
+
+	private final AtomicInteger started = new AtomicInteger();
+
+	private final AmazonSimpleWorkflow swf;
+
+	public RaceLoad(final AmazonSimpleWorkflow swf, final String domain) {
+
+		this.swf = swf;
+		this.domain = domain;
+		this.clients = new RaceFlowClientExternalFactoryImpl(swf, domain);
+
+	}
+
+	/**
+	 * Close out a race.
+	 *
+	 * @param info
+	 *            the last execution of the race.
+	 *
+	 * @param startDelayMs
+	 *            time from when the race was due to when it was started.
+	 *
+	 * @param firstStartMs
+	 *            SWF start time of the first execution of the race.
+	 */
+	private void closed(final WorkflowExecutionInfo info,
+			final long startDelayMs, final long firstStartMs,
+			final CountDownLatch done) {
+
+		if ("COMPLETED".equals(info.getCloseStatus())) {
+			this.latency.record(startDelayMs
+					+ info.getCloseTimestamp().getTime() - firstStartMs);
+			this.completed.incrementAndGet();
+		} else {
+			this.failed.incrementAndGet();
+		}
+		this.lastClosed.set(System.nanoTime());
+		done.countDown();
+
+	}
+
+	/**
+	 * Find the execution a race continued as.
+	 *
+	 * @param info
+	 *            the execution that continued.
+	 *
+	 * @return the open execution of the race, or the given one if there is
+	 *         none yet.
+	 */
+	private WorkflowExecution continuation(final WorkflowExecutionInfo info) {
+
+		WorkflowExecution rval = info.getExecution();
+		try {
+			final List<WorkflowExecutionInfo> open = this.swf
+				.listOpenWorkflowExecutions(
+						new ListOpenWorkflowExecutionsRequest()
+							.withDomain(this.domain)
+							.withStartTimeFilter(
+									new ExecutionTimeFilter()
+										.withOldestDate(info.getStartTimestamp()))
+							.withExecutionFilter(
+									new WorkflowExecutionFilter()
+										.withWorkflowId(rval.getWorkflowId())))
+				.getExecutionInfos();
+			if (!open.isEmpty()) {
+				rval = open.get(0).getExecution();
+			}
+		} catch (final AmazonClientException e) {
+			/*
+			 * try again next interval.
+			 */
+		}
+		return rval;
+
+	}
+
+	private void progress() {
+
+		final int closed = this.completed.get() + this.failed.get();
+		System.err.printf("started %d, closed %d, open %d, p99 %d ms%n",
+				this.started.get(), closed, this.started.get() - closed,
+				this.latency.getValueAtPercentile(99));
+
+	}
+
+	private void report(final int races, final long began) {
+
+		final long last = this.completed.get() + this.failed.get() == 0 ? System
+			.nanoTime() : this.lastClosed.get();
+		final double seconds = Math.max(last - began, 1) / 1e9;
+		final PrintWriter out = new PrintWriter(System.err, true);
+
+		out.printf("races       %d (%d did not start, %d not completed)%n",
+				races, this.startFailed.get(), this.failed.get());
+		out.printf("elapsed     %.1f s%n", seconds);
+		out.printf("throughput  %.1f races/min%n", this.completed.get() * 60
+				/ seconds);
+		out.printf("latency     p50 %d ms, p99 %d ms, p999 %d ms, max %d ms%n",
+				this.latency.getValueAtPercentile(50),
+				this.latency.getValueAtPercentile(99),
+				this.latency.getValueAtPercentile(99.9),
+				this.latency.getMax());
+		out.printf("start delay p50 %d ms, p99 %d ms, max %d ms%n",
+				this.startDelay.getValueAtPercentile(50),
+				this.startDelay.getValueAtPercentile(99),
+				this.startDelay.getMax());
+		out.println();
+		out.println("race latency");
+		this.latency.print(out, "ms");
+
+	}
+
+	/**
+	 * Start races and wait for all of them to close.
+	 *
+	 * @param races
+	 *            number of races.
+	 *
+	 * @param fieldSize
+	 *            horses per race.
+	 *
+	 * @param laps
+	 *            laps per race.
+	 *
+	 * @param rate
+	 *            races started per second.
+	 *
+	 * @param options
+	 *            race tuning.
+	 */
+	public void run(final int races, final int fieldSize, final int laps,
+			final double rate, final RaceOptions options)
+			throws InterruptedException {
+
+		final List<String> field = new ArrayList<>(fieldSize);
+		for (int i = 1; i <= fieldSize; i = i + 1) {
+			field.add("Horse-" + i);
+		}
+
+		final CountDownLatch done = new CountDownLatch(races);
+		this.pollers.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				progress();
+			}
+		}, 10, 10, TimeUnit.SECONDS);
+
+		final long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		final long began = System.nanoTime();
+		for (int i = 0; i < races; i = i + 1) {
+			final long due = began + i * period;
+			final long wait = due - System.nanoTime();
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			start(this.prefix + i, field, laps, options, due, done);
+		}
+		done.await();
+
+		this.starters.shutdown();
+		this.pollers.shutdownNow();
+		report(races, began);
+
+	}
+
+	/**
+	 * Start a race on a start thread and begin tracking it.
+	 */
+	private void start(final String id, final List<String> field,
+			final int laps, final RaceOptions options, final long due,
+			final CountDownLatch done) {
+
+		this.starters.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					final RaceFlowClientExternal race = RaceLoad.this.clients
+						.getClient(id);
+					race.go(field, laps, options, null);
+					final long delayMs = TimeUnit.NANOSECONDS.toMillis(System
+						.nanoTime() - due);
+					RaceLoad.this.startDelay.record(delayMs);
+					RaceLoad.this.started.incrementAndGet();
+					track(race.getWorkflowExecution(), delayMs, -1, done);
+				} catch (final RuntimeException x) {
+					System.err.println("cannot start " + id + ": " + x);
+					RaceLoad.this.startFailed.incrementAndGet();
+					done.countDown();
+				}
+
+			}
+
+		});
+
+	}
+
+	/**
+	 * Describe a race after the poll interval, again and again until its last
+	 * execution closes.
+	 *
+	 * @param firstStartMs
+	 *            SWF start time of the first execution of the race, or -1 if
+	 *            it has not been described yet.
+	 */
+	private void track(final WorkflowExecution execution,
+			final long startDelayMs, final long firstStartMs,
+			final CountDownLatch done) {
+
+		this.pollers.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+
+				WorkflowExecutionInfo info = null;
+				try {
+					info = RaceLoad.this.swf.describeWorkflowExecution(
+							new DescribeWorkflowExecutionRequest().withDomain(
+									RaceLoad.this.domain).withExecution(
+									execution)).getExecutionInfo();
+				} catch (final AmazonClientException x) {
+					/*
+					 * try again next interval.
+					 */
+				}
+				if (info == null) {
+					track(execution, startDelayMs, firstStartMs, done);
+				} else {
+					final long firstMs = firstStartMs < 0 ? info
+						.getStartTimestamp().getTime() : firstStartMs;
+					if ("CONTINUED_AS_NEW".equals(info.getCloseStatus())) {
+						track(continuation(info), startDelayMs, firstMs, done);
+					} else if ("CLOSED".equals(info.getExecutionStatus())) {
+						closed(info, startDelayMs, firstMs, done);
+					} else {
+						track(execution, startDelayMs, firstMs, done);
+					}
+				}
+
+			}
+
+		}, this.pollIntervalMs, TimeUnit.MILLISECONDS);
+
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.journal;
+
+/**
+ * One record read from a {@link RaceJournal}. A reader fills the same entry
+ * over and over so scanning a large journal allocates little; copy the values
+ * out to keep them.
+ */
+public final class JournalEntry {
+
+	private JournalEvent event;
+
+	private String horse;
+
+	private long index;
+
+	private int number;
+
+	private String raceId;
+
+	private long timestamp;
+
+	public JournalEvent getEvent() {
+		return this.event;
+	}
+
+	/**
+	 * @return horse name, empty for events about the whole race.
+	 */
+	public String getHorse() {
+		return this.horse;
+	}
+
+	/**
+	 * @return position of the record in the journal, from 0.
+	 */
+	public long getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * @return lap, place or number of laps depending on the event, otherwise
+	 *         0.
+	 */
+	public int getNumber() {
+		return this.number;
+	}
+
+	/**
+	 * @return workflow id of the race.
+	 */
+	public String getRaceId() {
+		return this.raceId;
+	}
+
+	/**
+	 * @return when the event was announced, in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return this.index + " " + this.timestamp + " " + this.raceId + " "
+				+ this.event + " " + this.horse + " " + this.number;
+	}
+
+	void set(final long index, final long timestamp, final JournalEvent event,
+			final String raceId, final String horse, final int number) {
+		this.index = index;
+		this.timestamp = timestamp;
+		this.event = event;
+		this.raceId = raceId;
+		this.horse = horse;
+		this.number = number;
+	}
+
+}
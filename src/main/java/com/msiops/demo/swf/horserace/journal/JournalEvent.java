@@ -0,0 +1,65 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.journal;
+
+/**
+ * What a journal record says happened. The ordinal is stored in the journal
+ * so new events may only be added at the end.
+ */
+public enum JournalEvent {
+
+	/**
+	 * The race started. The number is the number of laps.
+	 */
+	START,
+
+	/**
+	 * A horse completed a lap. The number is the lap.
+	 */
+	LAP,
+
+	/**
+	 * A horse was injured.
+	 */
+	INJURY,
+
+	/**
+	 * A horse placed. The number is the place.
+	 */
+	PLACE,
+
+	/**
+	 * A horse finished without placing.
+	 */
+	FINISHED,
+
+	/**
+	 * A horse went missing.
+	 */
+	MISSING,
+
+	/**
+	 * A horse is on the podium. The number is the place.
+	 */
+	PODIUM,
+
+	/**
+	 * The race is over.
+	 */
+	END;
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * Append-only binary journal of race events. Every record is
+ * {@value #RECORD_SIZE} bytes so a reader can find any record by position
+ * and skip through millions of them without parsing text. The file is written
+ * through a memory mapped region that is moved forward, growing the file, as
+ * it fills, so an append is a handful of stores and no system call.
+ * </p>
+ * <p>
+ * Record layout, all values big endian:
+ * </p>
+ * <ul>
+ * <li>0: int commit marker, written last so a reader never sees a record
+ * before its body on platforms that keep stores in order.</li>
+ * <li>4: int lap, place or number of laps.</li>
+ * <li>8: long timestamp in milliseconds since the epoch.</li>
+ * <li>16: byte {@link JournalEvent} ordinal.</li>
+ * <li>17, 18: byte lengths of the race id and the horse name.</li>
+ * <li>20: race id, UTF-8, at most {@value #RACE_SIZE} bytes.</li>
+ * <li>68: horse name, UTF-8, at most {@value #HORSE_SIZE} bytes.</li>
+ * <li>124: int hash of the run id of the workflow execution that made the
+ * announcement.</li>
+ * </ul>
+ * <p>
+ * Longer ids and names are truncated. Records reach the operating system as
+ * soon as they are appended and so survive a crash of this process but are
+ * only forced to disk on {@link #close()}. Reopening a journal continues
+ * after the last complete record.
+ * </p>
+ * <p>
+ * Race, run, event, horse and number identify a record, so an append that
+ * repeats one of the last {@value #RECENT} records, as a retried
+ * announcement does, is ignored. A new race that reuses the workflow id of an
+ * earlier one has a new run id and so is recorded in full. The recent
+ * records are read back when the journal is reopened.
+ * Two journals written by different processes are not compared, so a retry
+ * that lands on another announcer may still appear in both of their journals.
+ * </p>
+ */
+public final class RaceJournal implements Closeable {
+
+	static final int COMMITTED = 0x52414345;
+
+	static final int EVENT_OFFSET = 16;
+
+	static final int HORSE_LENGTH_OFFSET = 18;
+
+	static final int HORSE_OFFSET = 68;
+
+	static final int HORSE_SIZE = 56;
+
+	static final int NUMBER_OFFSET = 4;
+
+	static final int RACE_LENGTH_OFFSET = 17;
+
+	static final int RACE_OFFSET = 20;
+
+	static final int RACE_SIZE = 48;
+
+	/**
+	 * Number of records remembered to recognize a repeated append.
+	 */
+	static final int RECENT = 65536;
+
+	static final int RECORD_SIZE = 128;
+
+	static final int RUN_OFFSET = 124;
+
+	/**
+	 * Bytes mapped at a time, a whole number of records.
+	 */
+	static final long REGION_SIZE = RECORD_SIZE * 65536L;
+
+	static final int TIMESTAMP_OFFSET = 8;
+
+	/**
+	 * Count the complete records at the start of a journal. Records are only
+	 * ever appended so the complete ones form a prefix and a binary search on
+	 * the commit marker finds its end.
+	 */
+	private static long committedRecords(final FileChannel channel)
+			throws IOException {
+
+		final ByteBuffer marker = ByteBuffer.allocate(4);
+		long lo = 0;
+		long hi = channel.size() / RECORD_SIZE;
+		while (lo < hi) {
+			final long mid = (lo + hi) >>> 1;
+			marker.clear();
+			channel.read(marker, mid * RECORD_SIZE);
+			if (marker.position() == 4 && marker.getInt(0) == COMMITTED) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+
+	}
+
+	/**
+	 * Identify a record by everything but its time.
+	 */
+	private static String key(final byte[] race, final int run,
+			final int event, final byte[] horse, final int number) {
+
+		return new String(race, StandardCharsets.UTF_8) + '\n' + run + '\n'
+				+ event + '\n' + new String(horse, StandardCharsets.UTF_8)
+				+ '\n' + number;
+
+	}
+
+	/**
+	 * Encode a string truncated to whole characters.
+	 */
+	private static byte[] truncate(final String s, final int max) {
+
+		final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(bytes.length, max);
+		while (length < bytes.length && length > 0
+				&& (bytes[length] & 0xC0) == 0x80) {
+			/*
+			 * do not split a multi-byte character.
+			 */
+			length = length - 1;
+		}
+		return Arrays.copyOf(bytes, length);
+
+	}
+
+	private final FileChannel channel;
+
+	/**
+	 * Index of the next record.
+	 */
+	private long next;
+
+	/**
+	 * Keys of the last {@value #RECENT} records, oldest first.
+	 */
+	private final Set<String> recent = Collections
+		.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Boolean> eldest) {
+				return size() > RECENT;
+			}
+
+		});
+
+	private MappedByteBuffer region;
+
+	private long regionStart;
+
+	/**
+	 * Open a journal for appending, creating it if needed.
+	 *
+	 * @param file
+	 *            journal file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened or mapped.
+	 */
+	public RaceJournal(final Path file) throws IOException {
+
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.next = committedRecords(this.channel);
+		remember();
+		this.regionStart = this.next * RECORD_SIZE / REGION_SIZE
+				* REGION_SIZE;
+		this.region = this.channel.map(FileChannel.MapMode.READ_WRITE,
+				this.regionStart, REGION_SIZE);
+
+	}
+
+	/**
+	 * Append an event stamped with the current time, unless it repeats a
+	 * recent record.
+	 *
+	 * @param raceId
+	 *            workflow id of the race.
+	 *
+	 * @param runId
+	 *            run id of the workflow execution that made the announcement.
+	 *
+	 * @param event
+	 *            what happened.
+	 *
+	 * @param horse
+	 *            horse name, empty for events about the whole race.
+	 *
+	 * @param number
+	 *            lap, place or number of laps, depending on the event.
+	 *
+	 * @return true if the event was appended, false if it was already in the
+	 *         journal.
+	 *
+	 * @throws IOException
+	 *             if the journal cannot be grown.
+	 */
+	public synchronized boolean append(final String raceId,
+			final String runId, final JournalEvent event, final String horse,
+			final int number) throws IOException {
+
+		final byte[] race = truncate(raceId, RACE_SIZE);
+		final int run = runId.hashCode();
+		final byte[] name = truncate(horse, HORSE_SIZE);
+		final boolean rval = this.recent.add(key(race, run, event.ordinal(),
+				name, number));
+		if (rval) {
+			write(race, run, event, name, number);
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Force the journal to disk and close it.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		this.region.force();
+		this.channel.close();
+	}
+
+	/**
+	 * Store bytes at an offset in the region.
+	 */
+	private void put(final int offset, final byte[] bytes) {
+
+		for (int i = 0; i < bytes.length; i = i + 1) {
+			this.region.put(offset + i, bytes[i]);
+		}
+
+	}
+
+	/**
+	 * Read the keys of the last {@value #RECENT} complete records.
+	 */
+	private void remember() throws IOException {
+
+		final long first = Math.max(this.next - RECENT, 0);
+		final ByteBuffer records = ByteBuffer
+			.allocate((int) (this.next - first) * RECORD_SIZE);
+		long position = first * RECORD_SIZE;
+		while (records.hasRemaining()) {
+			position = position + this.channel.read(records, position);
+		}
+		for (int offset = 0; offset < records.capacity(); offset = offset
+				+ RECORD_SIZE) {
+			final byte[] race = new byte[records.get(offset
+					+ RACE_LENGTH_OFFSET)];
+			final byte[] horse = new byte[Math.min(records.get(offset
+					+ HORSE_LENGTH_OFFSET), HORSE_SIZE)];
+			records.position(offset + RACE_OFFSET);
+			records.get(race);
+			records.position(offset + HORSE_OFFSET);
+			records.get(horse);
+			this.recent.add(key(race, records.getInt(offset + RUN_OFFSET),
+					records.get(offset + EVENT_OFFSET), horse,
+					records.getInt(offset + NUMBER_OFFSET)));
+		}
+
+	}
+
+	/**
+	 * @return number of records in the journal.
+	 */
+	public synchronized long size() {
+		return this.next;
+	}
+
+	/**
+	 * Write the next record.
+	 */
+	private void write(final byte[] race, final int run,
+			final JournalEvent event, final byte[] horse, final int number)
+			throws IOException {
+
+		long position = this.next * RECORD_SIZE - this.regionStart;
+		if (position == REGION_SIZE) {
+			this.regionStart = this.regionStart + REGION_SIZE;
+			this.region = this.channel.map(FileChannel.MapMode.READ_WRITE,
+					this.regionStart, REGION_SIZE);
+			position = 0;
+		}
+		final int offset = (int) position;
+
+		this.region.putInt(offset + NUMBER_OFFSET, number);
+		this.region.putLong(offset + TIMESTAMP_OFFSET,
+				System.currentTimeMillis());
+		this.region.put(offset + EVENT_OFFSET, (byte) event.ordinal());
+		this.region.put(offset + RACE_LENGTH_OFFSET, (byte) race.length);
+		put(offset + RACE_OFFSET, race);
+		this.region.put(offset + HORSE_LENGTH_OFFSET, (byte) horse.length);
+		put(offset + HORSE_OFFSET, horse);
+		this.region.putInt(offset + RUN_OFFSET, run);
+		this.region.putInt(offset, COMMITTED);
+
+		this.next = this.next + 1;
+
+	}
+
+}
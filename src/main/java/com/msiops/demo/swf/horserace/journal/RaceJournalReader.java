@@ -0,0 +1,204 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.journal;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * Read a {@link RaceJournal} from the start, through a read-only mapping.
+ * {@link #next(JournalEntry)} returns false at the end of the journal; call
+ * it again later to pick up records appended since, so the same reader serves
+ * both a scan and a tail of a journal that is still being written.
+ * </p>
+ * <p>
+ * Run from the command line with the journal file to print every record.
+ * Add {@code -f} to keep following the journal, or {@code -c} to only count
+ * records by event.
+ * </p>
+ */
+public final class RaceJournalReader implements Closeable {
+
+	private static final JournalEvent[] EVENTS = JournalEvent.values();
+
+	private static final long FOLLOW_INTERVAL_MS = 100;
+
+	public static void main(final String[] args) throws Exception {
+
+		final Path file = Paths.get(args[0]);
+		final String mode = args.length > 1 ? args[1] : "";
+
+		final PrintWriter out = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+		final long[] counts = new long[EVENTS.length];
+		final long began = System.nanoTime();
+		try (RaceJournalReader reader = new RaceJournalReader(file)) {
+			final JournalEntry entry = new JournalEntry();
+			boolean more = true;
+			while (more) {
+				if (reader.next(entry)) {
+					if ("-c".equals(mode)) {
+						final int event = entry.getEvent().ordinal();
+						counts[event] = counts[event] + 1;
+					} else {
+						out.println(entry);
+					}
+				} else if ("-f".equals(mode)) {
+					out.flush();
+					Thread.sleep(FOLLOW_INTERVAL_MS);
+				} else {
+					more = false;
+				}
+			}
+			out.flush();
+			if ("-c".equals(mode)) {
+				for (final JournalEvent event : EVENTS) {
+					out.printf("%-8s %d%n", event, counts[event.ordinal()]);
+				}
+				out.flush();
+			}
+			System.err.printf("%d records in %d ms%n", reader.position(),
+					(System.nanoTime() - began) / 1000000);
+		}
+
+	}
+
+	private final FileChannel channel;
+
+	/**
+	 * Index of the next record.
+	 */
+	private long next;
+
+	private MappedByteBuffer region;
+
+	private long regionStart;
+
+	private final byte[] scratch = new byte[Math.max(RaceJournal.RACE_SIZE,
+			RaceJournal.HORSE_SIZE)];
+
+	/**
+	 * Open a journal for reading.
+	 *
+	 * @param file
+	 *            journal file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public RaceJournalReader(final Path file) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	/**
+	 * Read the next record.
+	 *
+	 * @param entry
+	 *            filled with the record.
+	 *
+	 * @return true if a record was read, false if there is none yet.
+	 *
+	 * @throws IOException
+	 *             if the journal cannot be mapped.
+	 */
+	public boolean next(final JournalEntry entry) throws IOException {
+
+		final long position = this.next * RaceJournal.RECORD_SIZE;
+		if (this.region == null
+				|| position + RaceJournal.RECORD_SIZE > this.regionStart
+						+ this.region.capacity()) {
+			/*
+			 * past the mapped part, map the next one if the file has grown.
+			 */
+			final long size = Math.min(RaceJournal.REGION_SIZE,
+					this.channel.size() - position);
+			if (size >= RaceJournal.RECORD_SIZE) {
+				this.region = this.channel.map(FileChannel.MapMode.READ_ONLY,
+						position, size);
+				this.regionStart = position;
+			}
+		}
+
+		final int offset = (int) (position - this.regionStart);
+		final boolean rval = this.region != null
+				&& offset + RaceJournal.RECORD_SIZE <= this.region.capacity()
+				&& this.region.getInt(offset) == RaceJournal.COMMITTED;
+		if (rval) {
+			entry.set(this.next,
+					this.region.getLong(offset + RaceJournal.TIMESTAMP_OFFSET),
+					EVENTS[this.region.get(offset + RaceJournal.EVENT_OFFSET)],
+					string(offset + RaceJournal.RACE_OFFSET,
+							this.region.get(offset
+									+ RaceJournal.RACE_LENGTH_OFFSET)),
+					string(offset + RaceJournal.HORSE_OFFSET,
+							this.region.get(offset
+									+ RaceJournal.HORSE_LENGTH_OFFSET)),
+					this.region.getInt(offset + RaceJournal.NUMBER_OFFSET));
+			this.next = this.next + 1;
+		}
+		return rval;
+
+	}
+
+	/**
+	 * @return index of the next record to read, which is also the number of
+	 *         records read so far.
+	 */
+	public long position() {
+		return this.next;
+	}
+
+	/**
+	 * Skip to a record, for example to resume reading where an earlier reader
+	 * stopped.
+	 *
+	 * @param index
+	 *            index of the next record to read.
+	 */
+	public void seek(final long index) {
+		this.next = index;
+		this.region = null;
+	}
+
+	private String string(final int offset, final int length) {
+		/*
+		 * journals written before the run id was recorded allowed longer
+		 * horse names.
+		 */
+		final int n = Math.min(length, this.scratch.length);
+		for (int i = 0; i < n; i = i + 1) {
+			this.scratch[i] = this.region.get(offset + i);
+		}
+		return new String(this.scratch, 0, n, StandardCharsets.UTF_8);
+	}
+
+}
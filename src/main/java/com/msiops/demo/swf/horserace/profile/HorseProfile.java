@@ -0,0 +1,92 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.profile;
+
+/**
+ * How an individual horse runs. A lap takes up to the base lap time divided
+ * by the horse's speed. Once a horse has run more laps than its stamina it
+ * tires, taking longer and getting injured more often with every extra lap.
+ */
+public final class HorseProfile {
+
+	/**
+	 * Profile of a horse with no profile of its own. Every horse ran like this
+	 * before there were profiles.
+	 */
+	public static final HorseProfile DEFAULT = new HorseProfile(1,
+			Integer.MAX_VALUE, 0.035f);
+
+	private final float injuryRisk;
+
+	private final float speed;
+
+	private final int stamina;
+
+	/**
+	 * Create a profile.
+	 *
+	 * @param speed
+	 *            speed relative to an average horse, greater than zero.
+	 *
+	 * @param stamina
+	 *            laps run before tiring.
+	 *
+	 * @param injuryRisk
+	 *            chance of injury in a lap run before tiring, from 0 to 1.
+	 */
+	public HorseProfile(final float speed, final int stamina,
+			final float injuryRisk) {
+
+		if (!(speed > 0) || stamina < 0 || !(injuryRisk >= 0)
+				|| injuryRisk > 1) {
+			throw new IllegalArgumentException("bad profile: speed " + speed
+					+ ", stamina " + stamina + ", injury risk " + injuryRisk);
+		}
+		this.speed = speed;
+		this.stamina = stamina;
+		this.injuryRisk = injuryRisk;
+
+	}
+
+	/**
+	 * @return chance of injury in a lap run before tiring.
+	 */
+	public float getInjuryRisk() {
+		return this.injuryRisk;
+	}
+
+	/**
+	 * @return speed relative to an average horse.
+	 */
+	public float getSpeed() {
+		return this.speed;
+	}
+
+	/**
+	 * @return laps run before tiring.
+	 */
+	public int getStamina() {
+		return this.stamina;
+	}
+
+	@Override
+	public String toString() {
+		return "speed " + this.speed + ", stamina " + this.stamina
+				+ ", injury risk " + this.injuryRisk;
+	}
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.profile;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * <p>
+ * Horse profiles in a memory mapped file, so that millions of them can be
+ * looked up by name without being held on the heap. The file is an open
+ * addressing hash table of fixed size slots probed linearly, so a lookup
+ * touches one or two slots and reads them in place, with no parsing and no
+ * system call.
+ * </p>
+ * <p>
+ * Slot layout, all values big endian. The first slot is the header: magic
+ * number, int number of slots and long number of profiles.
+ * </p>
+ * <ul>
+ * <li>0: int hash of the name, never zero in a used slot. It is written last.
+ * </li>
+ * <li>4: float speed.</li>
+ * <li>8: float injury risk.</li>
+ * <li>12: int stamina.</li>
+ * <li>16: byte length of the name.</li>
+ * <li>17: name, UTF-8, at most {@value #NAME_SIZE} bytes.</li>
+ * </ul>
+ * <p>
+ * A store is built once with {@link #create(Path, long)} and
+ * {@link #put(String, HorseProfile)}, then opened read only by any number of
+ * workers. Reads are safe from any thread. Run this class to build a store
+ * from a file of {@code name,speed,stamina,injuryRisk} lines, or with
+ * {@code -n count} to make up that many horses named {@code Horse-1} and up.
+ * </p>
+ */
+public final class HorseProfileStore implements Closeable {
+
+	static final int HASH_OFFSET = 0;
+
+	static final int INJURY_OFFSET = 8;
+
+	static final int MAGIC = 0x48505246;
+
+	static final int NAME_LENGTH_OFFSET = 16;
+
+	static final int NAME_OFFSET = 17;
+
+	static final int NAME_SIZE = 47;
+
+	/**
+	 * Bytes mapped at a time, a whole number of slots.
+	 */
+	static final long REGION_SIZE = 64L << 24;
+
+	static final int SLOT_SIZE = 64;
+
+	static final int SPEED_OFFSET = 4;
+
+	static final int STAMINA_OFFSET = 12;
+
+	/**
+	 * Create an empty store, replacing any file already there.
+	 *
+	 * @param file
+	 *            store file.
+	 *
+	 * @param expected
+	 *            number of profiles it will hold. The table is sized to stay
+	 *            at most half full.
+	 *
+	 * @return the store, open for {@link #put(String, HorseProfile)}.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be created or mapped.
+	 */
+	public static HorseProfileStore create(final Path file, final long expected)
+			throws IOException {
+
+		long slots = 16;
+		while (slots < expected * 2) {
+			slots = slots * 2;
+		}
+		if (slots > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many profiles: "
+					+ expected);
+		}
+
+		final FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		final HorseProfileStore rval = new HorseProfileStore(channel,
+				FileChannel.MapMode.READ_WRITE, (int) slots, 0);
+		rval.regions[0].putInt(0, MAGIC);
+		rval.regions[0].putInt(4, (int) slots);
+		return rval;
+
+	}
+
+	public static void main(final String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err
+				.println("usage: HorseProfileStore <store> <profiles.csv> | <store> -n <count>");
+			System.exit(2);
+		}
+
+		final Path file = Paths.get(args[0]);
+		if ("-n".equals(args[1])) {
+			final int count = Integer.parseInt(args[2]);
+			final Random rng = new Random(count);
+			try (final HorseProfileStore store = create(file, count)) {
+				for (int i = 1; i <= count; i = i + 1) {
+					store.put("Horse-" + i, new HorseProfile(
+							0.8f + 0.4f * rng.nextFloat(), 5 + rng.nextInt(26),
+							0.01f + 0.04f * rng.nextFloat()));
+				}
+			}
+		} else {
+			final Path csv = Paths.get(args[1]);
+			long lines = 0;
+			try (final BufferedReader in = Files.newBufferedReader(csv,
+					StandardCharsets.UTF_8)) {
+				while (in.readLine() != null) {
+					lines = lines + 1;
+				}
+			}
+			try (final HorseProfileStore store = create(file, lines);
+					final BufferedReader in = Files.newBufferedReader(csv,
+							StandardCharsets.UTF_8)) {
+				String line = in.readLine();
+				while (line != null) {
+					final String[] f = line.trim().split("\\s*,\\s*");
+					if (f.length == 4 && !f[0].startsWith("#")) {
+						store.put(f[0], new HorseProfile(Float.parseFloat(f[1]),
+								Integer.parseInt(f[2]), Float.parseFloat(f[3])));
+					}
+					line = in.readLine();
+				}
+			}
+		}
+
+		try (final HorseProfileStore store = open(file)) {
+			System.err.printf("%d profiles in %d slots%n", store.size(),
+					store.slots);
+		}
+
+	}
+
+	/**
+	 * Open a store to read.
+	 *
+	 * @param file
+	 *            store file.
+	 *
+	 * @return the store.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or is not a profile store.
+	 */
+	public static HorseProfileStore open(final Path file) throws IOException {
+
+		final FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ);
+		final ByteBuffer header = ByteBuffer.allocate(16);
+		channel.read(header, 0);
+		if (header.position() < 16 || header.getInt(0) != MAGIC) {
+			channel.close();
+			throw new IOException(file + " is not a horse profile store");
+		}
+		return new HorseProfileStore(channel, FileChannel.MapMode.READ_ONLY,
+				header.getInt(4), header.getLong(8));
+
+	}
+
+	/**
+	 * FNV-1a hash of a name, never zero.
+	 */
+	private static int hash(final byte[] name) {
+		int rval = 0x811c9dc5;
+		for (final byte b : name) {
+			rval = (rval ^ (b & 0xff)) * 0x01000193;
+		}
+		return rval == 0 ? 1 : rval;
+	}
+
+	private final FileChannel channel;
+
+	/**
+	 * Number of profiles.
+	 */
+	private long count;
+
+	private final MappedByteBuffer[] regions;
+
+	/**
+	 * Number of slots, a power of two.
+	 */
+	private final int slots;
+
+	private HorseProfileStore(final FileChannel channel,
+			final FileChannel.MapMode mode, final int slots, final long count)
+			throws IOException {
+
+		this.channel = channel;
+		this.slots = slots;
+		this.count = count;
+		final long bytes = (slots + 1L) * SLOT_SIZE;
+		this.regions = new MappedByteBuffer[(int) ((bytes + REGION_SIZE - 1) / REGION_SIZE)];
+		for (int i = 0; i < this.regions.length; i = i + 1) {
+			final long start = i * REGION_SIZE;
+			this.regions[i] = channel.map(mode, start,
+					Math.min(REGION_SIZE, bytes - start));
+		}
+
+	}
+
+	/**
+	 * Force changes to disk and close the store.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (final MappedByteBuffer region : this.regions) {
+			if (!region.isReadOnly()) {
+				region.force();
+			}
+		}
+		this.channel.close();
+	}
+
+	/**
+	 * Look up a profile.
+	 *
+	 * @param name
+	 *            horse name.
+	 *
+	 * @return the horse's profile or null if the store does not have one.
+	 */
+	public HorseProfile get(final String name) {
+
+		final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		HorseProfile rval = null;
+		if (bytes.length <= NAME_SIZE) {
+			final long slot = find(bytes, hash(bytes));
+			final ByteBuffer region = region(slot);
+			final int offset = offset(slot);
+			if (region.getInt(offset + HASH_OFFSET) != 0) {
+				rval = new HorseProfile(region.getFloat(offset + SPEED_OFFSET),
+						region.getInt(offset + STAMINA_OFFSET),
+						region.getFloat(offset + INJURY_OFFSET));
+			}
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Add or replace a profile. Only for a store being built by
+	 * {@link #create(Path, long)}.
+	 *
+	 * @param name
+	 *            horse name, at most {@value #NAME_SIZE} bytes of UTF-8.
+	 *
+	 * @param profile
+	 *            the horse's profile.
+	 */
+	public synchronized void put(final String name, final HorseProfile profile) {
+
+		final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > NAME_SIZE) {
+			throw new IllegalArgumentException("name too long: " + name);
+		}
+		final int hash = hash(bytes);
+		final long slot = find(bytes, hash);
+		final ByteBuffer region = region(slot);
+		final int offset = offset(slot);
+		final boolean added = region.getInt(offset + HASH_OFFSET) == 0;
+		if (added && this.count >= this.slots / 4 * 3) {
+			throw new IllegalStateException("profile store is full");
+		}
+
+		region.putFloat(offset + SPEED_OFFSET, profile.getSpeed());
+		region.putFloat(offset + INJURY_OFFSET, profile.getInjuryRisk());
+		region.putInt(offset + STAMINA_OFFSET, profile.getStamina());
+		region.put(offset + NAME_LENGTH_OFFSET, (byte) bytes.length);
+		for (int i = 0; i < bytes.length; i = i + 1) {
+			region.put(offset + NAME_OFFSET + i, bytes[i]);
+		}
+		region.putInt(offset + HASH_OFFSET, hash);
+
+		if (added) {
+			this.count = this.count + 1;
+			this.regions[0].putLong(8, this.count);
+		}
+
+	}
+
+	/**
+	 * @return number of profiles in the store.
+	 */
+	public synchronized long size() {
+		return this.count;
+	}
+
+	/**
+	 * Probe for a name.
+	 *
+	 * @return the slot holding the name or, if none does, the empty slot
+	 *         where it belongs.
+	 */
+	private long find(final byte[] name, final int hash) {
+
+		final int mask = this.slots - 1;
+		long rval = hash & mask;
+		int h = hashAt(rval);
+		while (h != 0 && (h != hash || !matches(rval, name))) {
+			rval = (rval + 1) & mask;
+			h = hashAt(rval);
+		}
+		return rval;
+
+	}
+
+	private int hashAt(final long slot) {
+		return region(slot).getInt(offset(slot) + HASH_OFFSET);
+	}
+
+	private boolean matches(final long slot, final byte[] name) {
+
+		final ByteBuffer region = region(slot);
+		final int offset = offset(slot);
+		boolean rval = region.get(offset + NAME_LENGTH_OFFSET) == name.length;
+		for (int i = 0; rval && i < name.length; i = i + 1) {
+			rval = region.get(offset + NAME_OFFSET + i) == name[i];
+		}
+		return rval;
+
+	}
+
+	/**
+	 * @return offset of a slot in its region. Slot 0 follows the header.
+	 */
+	private int offset(final long slot) {
+		return (int) ((slot + 1) * SLOT_SIZE % REGION_SIZE);
+	}
+
+	private ByteBuffer region(final long slot) {
+		return this.regions[(int) ((slot + 1) * SLOT_SIZE / REGION_SIZE)];
+	}
+
+}
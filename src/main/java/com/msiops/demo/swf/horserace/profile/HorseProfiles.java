@@ -0,0 +1,157 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.profile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Horse profiles for lap computation, looked up by name on every lap. The
+ * most recently used profiles are held in memory, up to a fixed number, in
+ * front of a {@link HorseProfileStore}, and a profile is read from the store
+ * only when it is first needed or after it has been evicted. Horses the store
+ * does not know get {@link HorseProfile#DEFAULT} and that answer is held in
+ * memory too.
+ * </p>
+ * <p>
+ * The cache is split into stripes by name, each a least recently used map
+ * with its own lock, so worker threads looking up different horses seldom
+ * wait for each other.
+ * </p>
+ */
+public final class HorseProfiles implements HorseProfilesMXBean {
+
+	private static final int STRIPES = 16;
+
+	private final int capacity;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Backing store, null if every horse has the default profile.
+	 */
+	private final HorseProfileStore store;
+
+	private final List<Map<String, HorseProfile>> stripes;
+
+	/**
+	 * Put a cache in front of a store.
+	 *
+	 * @param store
+	 *            profile store, null to give every horse the default profile.
+	 *
+	 * @param capacity
+	 *            most profiles to hold in memory.
+	 */
+	public HorseProfiles(final HorseProfileStore store, final int capacity) {
+
+		this.store = store;
+		this.capacity = capacity;
+		final int perStripe = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+		this.stripes = new ArrayList<>(STRIPES);
+		for (int i = 0; i < STRIPES; i = i + 1) {
+			this.stripes.add(new LinkedHashMap<String, HorseProfile>(16, 0.75f,
+					true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						final Map.Entry<String, HorseProfile> eldest) {
+					return size() > perStripe;
+				}
+
+			});
+		}
+
+	}
+
+	/**
+	 * Look up a horse's profile.
+	 *
+	 * @param name
+	 *            horse name.
+	 *
+	 * @return the horse's profile, {@link HorseProfile#DEFAULT} if it has
+	 *         none.
+	 */
+	public HorseProfile get(final String name) {
+
+		HorseProfile rval = HorseProfile.DEFAULT;
+		if (this.store != null) {
+			final Map<String, HorseProfile> stripe = this.stripes.get((name
+				.hashCode() & Integer.MAX_VALUE) % STRIPES);
+			synchronized (stripe) {
+				rval = stripe.get(name);
+			}
+			if (rval == null) {
+				/*
+				 * read outside the lock. Two threads may both read a profile
+				 * the first time, which is harmless.
+				 */
+				this.misses.incrementAndGet();
+				final HorseProfile stored = this.store.get(name);
+				rval = stored == null ? HorseProfile.DEFAULT : stored;
+				synchronized (stripe) {
+					stripe.put(name, rval);
+				}
+			} else {
+				this.hits.incrementAndGet();
+			}
+		}
+		return rval;
+
+	}
+
+	@Override
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	@Override
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	@Override
+	public int getSize() {
+		int rval = 0;
+		for (final Map<String, HorseProfile> stripe : this.stripes) {
+			synchronized (stripe) {
+				rval = rval + stripe.size();
+			}
+		}
+		return rval;
+	}
+
+	@Override
+	public long getStored() {
+		return this.store == null ? 0 : this.store.size();
+	}
+
+}
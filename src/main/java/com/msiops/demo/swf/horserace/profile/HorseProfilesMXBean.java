@@ -0,0 +1,49 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.profile;
+
+/**
+ * JMX view of {@link HorseProfiles}.
+ */
+public interface HorseProfilesMXBean {
+
+	/**
+	 * @return most profiles held in memory.
+	 */
+	int getCapacity();
+
+	/**
+	 * @return lookups answered from memory.
+	 */
+	long getHits();
+
+	/**
+	 * @return lookups that read the store.
+	 */
+	long getMisses();
+
+	/**
+	 * @return profiles held in memory now.
+	 */
+	int getSize();
+
+	/**
+	 * @return number of profiles in the store, 0 if there is no store.
+	 */
+	long getStored();
+
+}
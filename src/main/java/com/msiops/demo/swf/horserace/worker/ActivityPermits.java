@@ -0,0 +1,166 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.amazonaws.services.simpleworkflow.flow.annotations.Asynchronous;
+import com.amazonaws.services.simpleworkflow.flow.core.Promise;
+import com.amazonaws.services.simpleworkflow.flow.core.Settable;
+import com.amazonaws.services.simpleworkflow.flow.core.TryCatchFinally;
+
+/**
+ * <p>
+ * Workflow side limit on horse activities outstanding at once. Every horse
+ * activity a workflow schedules takes a permit first and gives it back when
+ * it ends, successfully or not, so at most the limit are on the task lists or
+ * running at any time. Activities waiting for a permit get one in the order
+ * they asked, which lets every horse's next lap in as earlier laps finish
+ * rather than letting the first horses run the whole race ahead of the rest.
+ * </p>
+ * <p>
+ * A permit is held across the retries of an activity, and a hedged lap's
+ * second attempt takes a permit of its own. Like the
+ * workflow itself, this is created per decision and relies on the flow
+ * framework running all tasks on a single thread.
+ * </p>
+ */
+final class ActivityPermits {
+
+	/**
+	 * Permits free, or -1 for no limit.
+	 */
+	private int available = -1;
+
+	/**
+	 * Activities waiting for a permit, first come first served.
+	 */
+	private final Deque<Settable<Void>> waiting = new ArrayDeque<>();
+
+	/**
+	 * @return true if an activity submitted now starts without waiting.
+	 */
+	boolean isFree() {
+		return this.available != 0;
+	}
+
+	/**
+	 * Set the limit. This must be called before the first activity.
+	 *
+	 * @param limit
+	 *            maximum number of activities outstanding, zero or less for no
+	 *            limit.
+	 */
+	void setLimit(final int limit) {
+		this.available = limit > 0 ? limit : -1;
+	}
+
+	/**
+	 * Schedule an activity once a permit is free.
+	 *
+	 * @param activity
+	 *            the activity.
+	 *
+	 * @return promise to produce the activity result.
+	 */
+	<T> Promise<T> submit(final Retries.Attempt<T> activity) {
+
+		final Promise<T> rval;
+		if (this.available < 0) {
+			rval = activity.run();
+		} else {
+			final Settable<T> result = new Settable<>();
+			start(acquire(), activity, result);
+			rval = result;
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Take a permit.
+	 *
+	 * @return promise fulfilled when the permit is granted.
+	 */
+	private Promise<Void> acquire() {
+
+		final Promise<Void> rval;
+		if (this.available > 0) {
+			this.available = this.available - 1;
+			rval = Promise.Void();
+		} else {
+			final Settable<Void> granted = new Settable<>();
+			this.waiting.add(granted);
+			rval = granted;
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Deliver an activity result. Waiting for it here keeps the activity's
+	 * scope open until the result is ready.
+	 */
+	@Asynchronous
+	private <T> void deliver(final Settable<T> result, final Promise<T> value) {
+		result.set(value.get());
+	}
+
+	/**
+	 * Give a permit back, to the longest waiting activity if there is one.
+	 */
+	private void release() {
+
+		if (this.waiting.isEmpty()) {
+			this.available = this.available + 1;
+		} else {
+			this.waiting.poll().set(null);
+		}
+
+	}
+
+	/**
+	 * Schedule an activity once its permit is granted and give the permit back
+	 * when it ends.
+	 */
+	@Asynchronous
+	private <T> void start(final Promise<Void> permit,
+			final Retries.Attempt<T> activity, final Settable<T> result) {
+
+		new TryCatchFinally() {
+
+			@Override
+			protected void doCatch(final Throwable e) throws Throwable {
+				throw e;
+			}
+
+			@Override
+			protected void doFinally() throws Throwable {
+				release();
+			}
+
+			@Override
+			protected void doTry() throws Throwable {
+				deliver(result, activity.run());
+			}
+
+		};
+
+	}
+
+}
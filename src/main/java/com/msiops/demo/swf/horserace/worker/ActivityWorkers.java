@@ -0,0 +1,208 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.flow.ActivityWorker;
+import com.amazonaws.services.simpleworkflow.flow.WorkerBase;
+import com.amazonaws.services.simpleworkflow.flow.pojo.POJOActivityImplementationFactory;
+import com.amazonaws.services.simpleworkflow.flow.worker.GenericActivityWorker;
+import com.msiops.demo.swf.ActivityLatencies;
+import com.msiops.demo.swf.ActivityUtilization;
+
+/**
+ * <p>
+ * Builds activity workers with concurrency taken from system properties. For
+ * a worker named {@code horses}:
+ * </p>
+ * <ul>
+ * <li>{@code horserace.horses.pollThreads} is the number of threads polling
+ * the task list, default 1.</li>
+ * <li>{@code horserace.horses.executorThreads} is the number of threads
+ * running tasks, default 100. The flow framework polls only while an executor
+ * thread is free so this is also the maximum number of concurrent tasks.</li>
+ * <li>{@code horserace.horses.virtualThreads} runs each task on its own
+ * virtual thread instead of the executor pool. {@code executorThreads} then
+ * only limits concurrent tasks and defaults to 10000. This needs Java 21 and a
+ * build with the {@code jdk21} profile.</li>
+ * </ul>
+ * <p>
+ * Tasks are measured by an {@link ActivityUtilization} and timed per activity
+ * type by {@link ActivityLatencies}, both published through JMX under the
+ * worker's task list. {@code horserace.horses.scheduleToStartSampleRate} is
+ * the fraction of tasks whose schedule to start time is looked up in SWF,
+ * default 0.01.
+ * </p>
+ */
+final class ActivityWorkers {
+
+	private static final int DEFAULT_EXECUTOR_THREADS = 100;
+
+	private static final int DEFAULT_POLL_THREADS = 1;
+
+	private static final String DEFAULT_SAMPLE_RATE = "0.01";
+
+	private static final int DEFAULT_VIRTUAL_TASKS = 10000;
+
+	/**
+	 * Compiled only by the jdk21 profile so it is loaded by name.
+	 */
+	private static final String VIRTUAL_THREAD_WORKER = "com.msiops.demo.swf.VirtualThreadActivityWorker";
+
+	/**
+	 * Create a configured activity worker. Implementations added to it are not
+	 * measured.
+	 *
+	 * @param swf
+	 *            SWF client.
+	 *
+	 * @param domain
+	 *            SWF domain.
+	 *
+	 * @param taskList
+	 *            task list to poll.
+	 *
+	 * @param name
+	 *            worker name used in property names.
+	 *
+	 * @return worker ready to have implementations added.
+	 */
+	static ActivityWorker create(final AmazonSimpleWorkflow swf,
+			final String domain, final String taskList, final String name)
+			throws Exception {
+
+		final ActivityWorker rval = new ActivityWorker(swf, domain, taskList);
+		rval.setPollThreadCount(pollThreads(name));
+		rval.setTaskExecutorThreadPoolSize(executorThreads(name));
+		return rval;
+
+	}
+
+	/**
+	 * Create a configured, instrumented activity worker.
+	 *
+	 * @param swf
+	 *            SWF client.
+	 *
+	 * @param domain
+	 *            SWF domain.
+	 *
+	 * @param taskList
+	 *            task list to poll.
+	 *
+	 * @param name
+	 *            worker name used in property names.
+	 *
+	 * @param activities
+	 *            the activities interface.
+	 *
+	 * @param implementation
+	 *            the activities implementation.
+	 *
+	 * @return worker ready to start.
+	 */
+	static <T> WorkerBase create(final AmazonSimpleWorkflow swf,
+			final String domain, final String taskList, final String name,
+			final Class<T> activities, final T implementation) throws Exception {
+
+		final ActivityUtilization utilization = ActivityUtilization
+			.forTaskList(taskList, executorThreads(name));
+		final ActivityLatencies latencies = latencies(swf, domain, taskList,
+				name);
+		final T instrumented = utilization.instrument(activities,
+				latencies.instrument(activities, implementation));
+
+		final WorkerBase rval;
+		if (Boolean.getBoolean("horserace." + name + ".virtualThreads")) {
+			final POJOActivityImplementationFactory factory = new POJOActivityImplementationFactory();
+			factory.addActivitiesImplementation(instrumented);
+			final GenericActivityWorker worker = virtualThreadWorker(swf,
+					domain, taskList);
+			worker.setActivityImplementationFactory(factory);
+			worker.setPollThreadCount(pollThreads(name));
+			worker.setTaskExecutorThreadPoolSize(executorThreads(name));
+			rval = worker;
+		} else {
+			final ActivityWorker worker = create(swf, domain, taskList, name);
+			worker.addActivitiesImplementation(instrumented);
+			rval = worker;
+		}
+		return rval;
+
+	}
+
+	private static int executorThreads(final String name) {
+		return Integer.getInteger("horserace." + name + ".executorThreads",
+				Boolean.getBoolean("horserace." + name + ".virtualThreads")
+						? DEFAULT_VIRTUAL_TASKS : DEFAULT_EXECUTOR_THREADS);
+	}
+
+	/**
+	 * Create latency metrics for a worker, sampling schedule to start times at
+	 * the configured rate.
+	 *
+	 * @param swf
+	 *            SWF client.
+	 *
+	 * @param domain
+	 *            SWF domain.
+	 *
+	 * @param taskList
+	 *            task list the metrics are published under.
+	 *
+	 * @param name
+	 *            worker name used in property names.
+	 *
+	 * @return metrics.
+	 */
+	static ActivityLatencies latencies(final AmazonSimpleWorkflow swf,
+			final String domain, final String taskList, final String name) {
+		return ActivityLatencies.forTaskList(swf, domain, taskList, Double
+			.parseDouble(System.getProperty("horserace." + name
+					+ ".scheduleToStartSampleRate", DEFAULT_SAMPLE_RATE)));
+	}
+
+	private static int pollThreads(final String name) {
+		return Integer.getInteger("horserace." + name + ".pollThreads",
+				DEFAULT_POLL_THREADS);
+	}
+
+	private static GenericActivityWorker virtualThreadWorker(
+			final AmazonSimpleWorkflow swf, final String domain,
+			final String taskList) throws Exception {
+
+		final Class<?> type;
+		try {
+			type = Class.forName(VIRTUAL_THREAD_WORKER);
+		} catch (final ClassNotFoundException | UnsupportedClassVersionError e) {
+			throw new IllegalStateException(
+					"virtual threads need Java 21 and a build with the jdk21 profile",
+					e);
+		}
+		return (GenericActivityWorker) type.getConstructor(
+				AmazonSimpleWorkflow.class, String.class, String.class)
+			.newInstance(swf, domain, taskList);
+
+	}
+
+	private ActivityWorkers() {
+		/*
+		 * static only.
+		 */
+	}
+
+}
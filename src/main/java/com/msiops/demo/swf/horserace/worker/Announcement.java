@@ -0,0 +1,104 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+/**
+ * A single announcement about one horse. Announcements are passed to the
+ * announcer in bulk so this must remain a plain bean that the flow framework
+ * data converter can serialize.
+ */
+final class Announcement {
+
+	/**
+	 * What is being announced. Each kind corresponds to one of the single
+	 * message announcer activities.
+	 */
+	enum Kind {
+
+		FINISHED, INJURY, LAP, MISSING, PLACE;
+
+	}
+
+	static Announcement finished(final String name) {
+		return new Announcement(Kind.FINISHED, name, 0);
+	}
+
+	static Announcement injury(final String name) {
+		return new Announcement(Kind.INJURY, name, 0);
+	}
+
+	static Announcement lap(final String name, final int lap) {
+		return new Announcement(Kind.LAP, name, lap);
+	}
+
+	static Announcement missing(final String name) {
+		return new Announcement(Kind.MISSING, name, 0);
+	}
+
+	static Announcement place(final String name, final int place) {
+		return new Announcement(Kind.PLACE, name, place);
+	}
+
+	private Kind kind;
+
+	private String name;
+
+	/**
+	 * Lap number or place, depending on kind. Unused for other kinds.
+	 */
+	private int number;
+
+	/**
+	 * For the data converter.
+	 */
+	public Announcement() {
+		/*
+		 * properties are set individually.
+		 */
+	}
+
+	private Announcement(final Kind kind, final String name, final int number) {
+		this.kind = kind;
+		this.name = name;
+		this.number = number;
+	}
+
+	public Kind getKind() {
+		return this.kind;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public int getNumber() {
+		return this.number;
+	}
+
+	public void setKind(final Kind kind) {
+		this.kind = kind;
+	}
+
+	public void setName(final String name) {
+		this.name = name;
+	}
+
+	public void setNumber(final int number) {
+		this.number = number;
+	}
+
+}
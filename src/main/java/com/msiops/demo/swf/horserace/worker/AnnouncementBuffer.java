@@ -0,0 +1,288 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import static com.msiops.demo.swf.PromiseUtil.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.simpleworkflow.flow.ActivityTaskException;
+import com.amazonaws.services.simpleworkflow.flow.DecisionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.DecisionContextProviderImpl;
+import com.amazonaws.services.simpleworkflow.flow.annotations.Asynchronous;
+import com.amazonaws.services.simpleworkflow.flow.core.Promise;
+import com.amazonaws.services.simpleworkflow.flow.core.Settable;
+import com.amazonaws.services.simpleworkflow.flow.core.TryCatch;
+
+/**
+ * <p>
+ * Workflow side buffer that coalesces announcements. The first announcement
+ * added to an empty buffer schedules a flush. The flush is an asynchronous
+ * task so it runs only after the tasks that were already ready in the current
+ * decision. Everything added in the meantime goes to the announcer in
+ * {@link AnnouncerActivities#announceBatch(List)} activity tasks, as few as
+ * fit under the limit SWF places on activity input.
+ * </p>
+ * <p>
+ * Lap announcements are not essential to the race. A failed batch is retried
+ * without them, and after {@link RaceOptions#getBreakerThreshold()} failed
+ * batches in a row a circuit breaker opens and lap announcements are dropped
+ * as they are added. Once the cool down has passed lap announcements are made
+ * again: a batch that succeeds closes the breaker, one that fails opens it
+ * again. Lap announcements are also dropped once the race has spent its retry
+ * budget.
+ * </p>
+ * <p>
+ * Like the workflow itself, this is created per decision and relies on the
+ * flow framework running all tasks on a single thread. No synchronization is
+ * required.
+ * </p>
+ */
+final class AnnouncementBuffer {
+
+	/**
+	 * Most characters of serialized announcements sent in one batch, leaving
+	 * room under the 32KB SWF limit on activity input for the list around
+	 * them.
+	 */
+	private static final int BATCH_CHARACTERS = 30000;
+
+	/**
+	 * Serialized characters of an announcement apart from the horse name:
+	 * the class name, property names, kind and number.
+	 */
+	private static final int OVERHEAD_CHARACTERS = 110;
+
+	/**
+	 * Estimate the serialized size of an announcement.
+	 */
+	private static int characters(final Announcement announcement) {
+		return OVERHEAD_CHARACTERS + JsonCharacters.of(announcement.getName());
+	}
+
+	/**
+	 * Whether an announcement can be dropped when the announcer is failing.
+	 */
+	private static boolean isEssential(final Announcement announcement) {
+		return announcement.getKind() != Announcement.Kind.LAP;
+	}
+
+	private final AnnouncerActivitiesClient announcer;
+
+	private final DecisionContextProvider contexts = new DecisionContextProviderImpl();
+
+	/**
+	 * Batches failed in a row.
+	 */
+	private int failures;
+
+	/**
+	 * Workflow clock time until which the breaker stays open.
+	 */
+	private long openUntil;
+
+	private RaceOptions options = new RaceOptions();
+
+	/**
+	 * Announcements waiting for the next flush. Null when no flush is
+	 * scheduled.
+	 */
+	private List<Announcement> pending;
+
+	/**
+	 * Fulfilled when the pending announcements have been made.
+	 */
+	private Settable<Void> pendingDone;
+
+	private final Retries retries;
+
+	AnnouncementBuffer(final AnnouncerActivitiesClient announcer,
+			final Retries retries) {
+		this.announcer = announcer;
+		this.retries = retries;
+	}
+
+	/**
+	 * Queue an announcement.
+	 *
+	 * @param announcement
+	 *            what to announce.
+	 *
+	 * @return promise fulfilled when the batch holding the announcement has
+	 *         been made or, for an announcement that was dropped, at once.
+	 */
+	Promise<Void> add(final Announcement announcement) {
+
+		final Promise<Void> rval;
+		if (!isEssential(announcement) && isDegraded()) {
+			rval = Promise.Void();
+		} else {
+			if (this.pending == null) {
+				this.pending = new ArrayList<>();
+				this.pendingDone = new Settable<>();
+				flush();
+			}
+			this.pending.add(announcement);
+			rval = this.pendingDone;
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Take the circuit breaker settings from the race.
+	 */
+	void setOptions(final RaceOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Make a batch of announcements, retrying the essential ones if it fails.
+	 *
+	 * @param batch
+	 *            announcements.
+	 *
+	 * @param attempt
+	 *            attempt number, from 1.
+	 *
+	 * @return promise fulfilled when the essential announcements have been
+	 *         made.
+	 */
+	private Promise<Void> announceBatch(final List<Announcement> batch,
+			final int attempt) {
+
+		final Settable<Void> rval = new Settable<>();
+		new TryCatch() {
+
+			@Override
+			protected void doCatch(final Throwable e) throws Throwable {
+
+				if (!(e instanceof ActivityTaskException)) {
+					throw e;
+				}
+				failed();
+				final List<Announcement> essential = new ArrayList<>(
+						batch.size());
+				for (final Announcement announcement : batch) {
+					if (isEssential(announcement)) {
+						essential.add(announcement);
+					}
+				}
+				if (essential.isEmpty()) {
+					/*
+					 * nothing worth retrying.
+					 */
+					rval.set(null);
+				} else {
+					final long delay = AnnouncementBuffer.this.retries
+						.nextDelaySeconds("announceBatch", attempt);
+					if (delay < 0) {
+						throw e;
+					}
+					rval.chain(announceBatchAfter(essential, attempt + 1,
+							AnnouncementBuffer.this.retries.timer(delay)));
+				}
+
+			}
+
+			@Override
+			protected void doTry() throws Throwable {
+				rval.chain(succeeded(AnnouncementBuffer.this.announcer
+					.announceBatch(batch)));
+			}
+
+		};
+		return rval;
+
+	}
+
+	/**
+	 * Make a batch of announcements once a retry delay has passed.
+	 */
+	@Asynchronous
+	private Promise<Void> announceBatchAfter(final List<Announcement> batch,
+			final int attempt, final Promise<Void> delay) {
+		return announceBatch(batch, attempt);
+	}
+
+	/**
+	 * Count a failed batch, opening the breaker at the threshold.
+	 */
+	private void failed() {
+
+		this.failures = this.failures + 1;
+		if (this.options.getBreakerThreshold() > 0
+				&& this.failures >= this.options.getBreakerThreshold()) {
+			this.openUntil = this.contexts.getDecisionContext()
+				.getWorkflowClock().currentTimeMillis()
+					+ this.options.getBreakerCooldownSeconds() * 1000L;
+		}
+
+	}
+
+	/**
+	 * Send everything pending, in as few batches as fit under
+	 * {@link #BATCH_CHARACTERS}, and start a new buffer.
+	 */
+	@Asynchronous
+	private void flush() {
+
+		final List<Announcement> all = this.pending;
+		final Settable<Void> done = this.pendingDone;
+		this.pending = null;
+		this.pendingDone = null;
+
+		final List<Promise<Void>> made = new ArrayList<>();
+		List<Announcement> batch = new ArrayList<>();
+		int characters = 0;
+		for (final Announcement announcement : all) {
+			final int size = characters(announcement);
+			if (!batch.isEmpty() && characters + size > BATCH_CHARACTERS) {
+				made.add(announceBatch(batch, 1));
+				batch = new ArrayList<>();
+				characters = 0;
+			}
+			batch.add(announcement);
+			characters = characters + size;
+		}
+		made.add(announceBatch(batch, 1));
+
+		done.chain(subst((Void) null, join(made)));
+
+	}
+
+	/**
+	 * Whether lap announcements are being dropped.
+	 */
+	private boolean isDegraded() {
+		return this.retries.isBudgetSpent()
+				|| this.openUntil > this.contexts.getDecisionContext()
+					.getWorkflowClock().currentTimeMillis();
+	}
+
+	/**
+	 * Close the breaker once a batch has been made.
+	 */
+	@Asynchronous
+	private Promise<Void> succeeded(final Promise<Void> made) {
+		this.failures = 0;
+		this.openUntil = 0;
+		return made;
+	}
+
+}
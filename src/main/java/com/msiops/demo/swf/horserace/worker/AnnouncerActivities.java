@@ -31,6 +31,15 @@ import com.amazonaws.services.simpleworkflow.flow.annotations.ActivityRegistrati
 @ActivityRegistrationOptions(defaultTaskStartToCloseTimeoutSeconds = 15, defaultTaskScheduleToStartTimeoutSeconds = 15)
 interface AnnouncerActivities {
 
+	/**
+	 * Make several announcements in one task. Announcements are made in list
+	 * order.
+	 *
+	 * @param announcements
+	 *            what to announce.
+	 */
+	public void announceBatch(List<Announcement> announcements);
+
 	/**
 	 * Announce the end of a race.
 	 */
@@ -82,6 +91,15 @@ interface AnnouncerActivities {
 	 */
 	public void announcePlace(String name, int place);
 
+	/**
+	 * Announce the podium as soon as it is decided.
+	 *
+	 * @param names
+	 *            names of the placed horses in order of place. There may be
+	 *            fewer than three or none if too few horses finished.
+	 */
+	public void announcePodium(List<String> names);
+
 	/**
 	 * Announce the start of a race.
 	 *
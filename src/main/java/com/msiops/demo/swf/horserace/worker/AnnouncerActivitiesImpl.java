@@ -17,8 +17,15 @@
 
 package com.msiops.demo.swf.horserace.worker;
 
+import java.io.IOException;
 import java.util.List;
 
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProviderImpl;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecution;
+import com.msiops.demo.swf.horserace.journal.JournalEvent;
+import com.msiops.demo.swf.horserace.journal.RaceJournal;
+
 /**
  * Implement announcer behavior.
  * 
@@ -27,42 +34,123 @@ import java.util.List;
  */
 final class AnnouncerActivitiesImpl implements AnnouncerActivities {
 
+	private final ActivityExecutionContextProvider contexts = new ActivityExecutionContextProviderImpl();
+
 	private final int instance;
 
+	/**
+	 * Journal of everything announced, or null.
+	 */
+	private final RaceJournal journal;
+
+	private final AnnouncementSink sink;
+
 	public AnnouncerActivitiesImpl(final int instance) {
+		this(instance, new ConsoleAnnouncementSink(), null);
+	}
+
+	/**
+	 * Create an announcer.
+	 *
+	 * @param instance
+	 *            worker instance number, included in every announcement.
+	 *
+	 * @param sink
+	 *            where announcements go.
+	 *
+	 * @param journal
+	 *            where announcements are recorded, keyed by the workflow id of
+	 *            the race, also for announcements made by its shards. Null to
+	 *            keep no journal.
+	 */
+	AnnouncerActivitiesImpl(final int instance, final AnnouncementSink sink,
+			final RaceJournal journal) {
 		this.instance = instance;
+		this.sink = sink;
+		this.journal = journal;
+	}
+
+	@Override
+	public void announceBatch(final List<Announcement> announcements) {
+
+		for (final Announcement a : announcements) {
+			switch (a.getKind()) {
+			case FINISHED:
+				announceFinished(a.getName());
+				break;
+			case INJURY:
+				announceInjury(a.getName());
+				break;
+			case LAP:
+				announceLap(a.getName(), a.getNumber());
+				break;
+			case PLACE:
+				announcePlace(a.getName(), a.getNumber());
+				break;
+			default:
+				announceMissing(a.getName());
+				break;
+			}
+		}
+
 	}
 
 	@Override
 	public void announceEnd() {
 		say("...and the race is over.");
+		record(JournalEvent.END, "", 0);
 	}
 
 	@Override
 	public void announceFinished(final String name) {
 		say("'" + name + "' finished the race without placing.");
+		record(JournalEvent.FINISHED, name, 0);
 	}
 
 	@Override
 	public void announceInjury(final String name) {
 		say("'" + name + "' is injured and leaving the field.");
+		record(JournalEvent.INJURY, name, 0);
 	}
 
 	@Override
 	public void announceLap(final String name, final int lap) {
 		say("'" + name + "' just completed lap " + lap + ".");
+		record(JournalEvent.LAP, name, lap);
 	}
 
 	@Override
 	public void announceMissing(final String name) {
 
 		say("What happened to '" + name + "?!'");
+		record(JournalEvent.MISSING, name, 0);
 
 	}
 
 	@Override
 	public void announcePlace(final String name, final int place) {
 		say("'" + name + "' has finished the race in place " + place + "!");
+		record(JournalEvent.PLACE, name, place);
+	}
+
+	@Override
+	public void announcePodium(final List<String> names) {
+
+		if (names.isEmpty()) {
+			say("No horse finished, there is nobody on the podium.");
+		} else {
+			final StringBuffer mbuf = new StringBuffer();
+			mbuf.append("The podium is decided:");
+			for (int place = 1; place <= names.size(); place = place + 1) {
+				mbuf.append(' ').append(place).append(". '")
+					.append(names.get(place - 1)).append('\'');
+			}
+			say(mbuf.toString());
+			for (int place = 1; place <= names.size(); place = place + 1) {
+				record(JournalEvent.PODIUM, names.get(place - 1), place);
+			}
+		}
+
 	}
 
 	@Override
@@ -78,6 +166,40 @@ final class AnnouncerActivitiesImpl implements AnnouncerActivities {
 		say(mbuf.toString());
 
 		say("And they're off!");
+		record(JournalEvent.START, "", laps);
+	}
+
+	/**
+	 * Record an announcement in the journal, if there is one. A failure fails
+	 * the task so that the race retries the announcement rather than leaving
+	 * a gap in the journal. The journal ignores an announcement it already
+	 * holds, so a retried batch does not record its first part twice.
+	 *
+	 * @param event
+	 *            what was announced.
+	 *
+	 * @param name
+	 *            horse, empty for the whole race.
+	 *
+	 * @param number
+	 *            lap, place or laps.
+	 */
+	private void record(final JournalEvent event, final String name,
+			final int number) {
+
+		if (this.journal != null) {
+			final WorkflowExecution execution = this.contexts
+				.getActivityExecutionContext().getWorkflowExecution();
+			final String raceId = RaceShardFlowImpl.raceWorkflowId(execution
+				.getWorkflowId());
+			try {
+				this.journal.append(raceId, execution.getRunId(), event, name,
+						number);
+			} catch (final IOException e) {
+				throw new IllegalStateException("cannot write race journal", e);
+			}
+		}
+
 	}
 
 	/**
@@ -91,8 +213,7 @@ final class AnnouncerActivitiesImpl implements AnnouncerActivities {
 		/*
 		 * include the instance id to demonstrate load balancing.
 		 */
-		final String msg = String.format("ANNOUNCER %d: %s", this.instance, s);
-		System.out.println(msg);
+		this.sink.say("ANNOUNCER " + this.instance + ": " + s);
 
 	}
 
@@ -16,8 +16,15 @@
  */
 package com.msiops.demo.swf.horserace.worker;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
 import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflowClient;
-import com.amazonaws.services.simpleworkflow.flow.ActivityWorker;
+import com.amazonaws.services.simpleworkflow.flow.WorkerBase;
+import com.msiops.demo.swf.Jmx;
+import com.msiops.demo.swf.SwfRateLimiter;
+import com.msiops.demo.swf.horserace.journal.RaceJournal;
 
 /**
  * <p>
@@ -35,14 +42,16 @@ public final class AnnouncerActivitiesWorker {
 	 * Its credentials can be configured like any other client in the Java SDK.
 	 * By default, it checks the environment, system properties, and (if running
 	 * on EC2) the host role.
+	 * Calls go through the rate limiter shared by every client in the JVM.
 	 */
-	private static final AmazonSimpleWorkflowClient SWF = new AmazonSimpleWorkflowClient();
+	private static final AmazonSimpleWorkflow SWF = SwfRateLimiter.shared()
+		.wrap(new AmazonSimpleWorkflowClient());
 
 	/**
 	 * The task list that this worker listens on. It also becomes the default task
 	 * list for this worker's activity types if this worker registers them.
 	 */
-	private static final String TASKLIST = "ANNOUNCERACTIVITIES-1.0";
+	static final String TASKLIST = "ANNOUNCERACTIVITIES-1.0";
 
 	/**
 	 * <p>
@@ -56,7 +65,7 @@ public final class AnnouncerActivitiesWorker {
 	 * activity types and versions that can be registered on a domain.
 	 * </p>
 	 */
-	private static final String DOMAIN = "Demo";
+	static final String DOMAIN = "Demo";
 
 	public static void main(final String[] args) throws Exception {
 
@@ -66,25 +75,77 @@ public final class AnnouncerActivitiesWorker {
 
 	}
 
+	/**
+	 * Choose where announcements go. With {@code horserace.announcer.file}
+	 * they are appended to that file in batches, see
+	 * {@link FileAnnouncementSink}, otherwise they go to standard out.
+	 */
+	private static AnnouncementSink sinkFromSystemProperties()
+			throws IOException {
+
+		final String file = System.getProperty("horserace.announcer.file");
+		final AnnouncementSink rval;
+		if (file == null) {
+			rval = new ConsoleAnnouncementSink();
+		} else {
+			final FileAnnouncementSink sink = new FileAnnouncementSink(
+					Paths.get(file), Integer.getInteger(
+							"horserace.announcer.bufferSize", 8192),
+					Integer.getInteger("horserace.announcer.batchSize", 256),
+					Long.getLong("horserace.announcer.flushIntervalMs", 100),
+					Boolean.getBoolean("horserace.announcer.dropWhenFull"));
+			Jmx.register(
+					"com.msiops.demo.swf:type=AnnouncementSink,name=file", sink);
+			rval = sink;
+		}
+		return rval;
+
+	}
+
 	/**
 	 * Delegate worker provided by FF.
 	 */
-	private final ActivityWorker worker;
+	private final WorkerBase worker;
 
 	private AnnouncerActivitiesWorker(final int instance) throws Exception {
 
 		/*
 		 * Configure an Flow Framework ACTIVITY worker with a domain and queue.
-		 */
-		this.worker = new ActivityWorker(SWF, DOMAIN, TASKLIST);
-
-		/*
+		 * Poll and executor threads come from horserace.announcer.* system
+		 * properties.
+		 * 
 		 * Can add multiple activities implementation instances. Each is a
 		 * singleton that remains active for the duration of the worker. There
 		 * should be no shared mutable state in an activities implementation.
 		 */
-		this.worker.addActivitiesImplementation(new AnnouncerActivitiesImpl(
-				instance));
+		final AnnouncementSink sink = sinkFromSystemProperties();
+		final String journalFile = System
+			.getProperty("horserace.announcer.journal");
+		final RaceJournal journal = journalFile == null ? null
+				: new RaceJournal(Paths.get(journalFile));
+		this.worker = ActivityWorkers.create(SWF, DOMAIN, TASKLIST,
+				"announcer", AnnouncerActivities.class,
+				new AnnouncerActivitiesImpl(instance, sink, journal));
+
+		/*
+		 * the worker runs until the process is stopped. Write out whatever
+		 * the sink still holds and force the journal to disk on the way down.
+		 */
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+
+			@Override
+			public void run() {
+				sink.close();
+				if (journal != null) {
+					try {
+						journal.close();
+					} catch (final IOException e) {
+						System.err.println("cannot close race journal: " + e);
+					}
+				}
+			}
+
+		});
 
 	}
 
@@ -0,0 +1,35 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+/**
+ * Announce on standard out, one line at a time. Simple, but every
+ * announcement takes the stream lock and waits for the write.
+ */
+final class ConsoleAnnouncementSink implements AnnouncementSink {
+
+	@Override
+	public void close() {
+		System.out.flush();
+	}
+
+	@Override
+	public void say(final String line) {
+		System.out.println(line);
+	}
+
+}
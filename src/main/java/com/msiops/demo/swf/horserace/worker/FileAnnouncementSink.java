@@ -0,0 +1,340 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Announce to a file without making the announcer wait for the disk.
+ * Announcements go into a fixed size ring buffer and return at once. A single
+ * writer thread takes everything waiting, either when a batch has collected
+ * or when the flush interval passes, and appends it to the file with one
+ * {@link FileChannel} write.
+ * </p>
+ * <p>
+ * When the buffer is full an announcer either waits for the writer to make
+ * room or, if configured to drop, the announcement is discarded and counted.
+ * Queue depth, drops, waits and write times are published through JMX.
+ * </p>
+ */
+final class FileAnnouncementSink implements AnnouncementSink,
+		FileAnnouncementSinkMXBean {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(FileAnnouncementSink.class);
+
+	private final AtomicLong batches = new AtomicLong();
+
+	private final int batchSize;
+
+	private final FileChannel channel;
+
+	private boolean closed;
+
+	private int count;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final boolean dropWhenFull;
+
+	private final long flushIntervalNanos;
+
+	private final AtomicLong flushNanos = new AtomicLong();
+
+	private int head;
+
+	private final AtomicLong linesWritten = new AtomicLong();
+
+	/**
+	 * Guards the ring and the closed flag.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+
+	private final Condition notEmpty = this.lock.newCondition();
+
+	private final Condition notFull = this.lock.newCondition();
+
+	private final AtomicLong producerWaits = new AtomicLong();
+
+	private final String[] ring;
+
+	private final AtomicLong writeFailures = new AtomicLong();
+
+	private final Thread writer;
+
+	/**
+	 * Open the file for appending and start the writer.
+	 *
+	 * @param file
+	 *            file to append to, created if needed.
+	 *
+	 * @param capacity
+	 *            most announcements waiting to be written.
+	 *
+	 * @param batchSize
+	 *            number of waiting announcements that triggers a write
+	 *            before the flush interval is up.
+	 *
+	 * @param flushIntervalMs
+	 *            longest time an announcement waits to be written.
+	 *
+	 * @param dropWhenFull
+	 *            discard announcements when the buffer is full instead of
+	 *            waiting for room.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	FileAnnouncementSink(final Path file, final int capacity,
+			final int batchSize, final long flushIntervalMs,
+			final boolean dropWhenFull) throws IOException {
+
+		this.ring = new String[capacity];
+		this.batchSize = Math.max(1, Math.min(batchSize, capacity));
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS
+			.toNanos(flushIntervalMs);
+		this.dropWhenFull = dropWhenFull;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+		this.writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				drain();
+			}
+
+		}, "announcement-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+
+	}
+
+	@Override
+	public void close() {
+
+		this.lock.lock();
+		try {
+			this.closed = true;
+			this.notEmpty.signal();
+			this.notFull.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+
+		try {
+			this.writer.join();
+		} catch (final InterruptedException e) {
+			// re-assert
+			Thread.currentThread().interrupt();
+		}
+		try {
+			this.channel.close();
+		} catch (final IOException e) {
+			LOG.warn("cannot close announcement file", e);
+		}
+
+	}
+
+	@Override
+	public long getBatches() {
+		return this.batches.get();
+	}
+
+	@Override
+	public int getCapacity() {
+		return this.ring.length;
+	}
+
+	@Override
+	public long getDropped() {
+		return this.dropped.get();
+	}
+
+	@Override
+	public long getLinesWritten() {
+		return this.linesWritten.get();
+	}
+
+	@Override
+	public long getMaxFlushMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(this.maxFlushNanos.get());
+	}
+
+	@Override
+	public long getMeanFlushMicros() {
+		final long n = this.batches.get();
+		return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.flushNanos
+			.get() / n);
+	}
+
+	@Override
+	public long getProducerWaits() {
+		return this.producerWaits.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+
+		final int rval;
+		this.lock.lock();
+		try {
+			rval = this.count;
+		} finally {
+			this.lock.unlock();
+		}
+		return rval;
+
+	}
+
+	@Override
+	public long getWriteFailures() {
+		return this.writeFailures.get();
+	}
+
+	@Override
+	public void say(final String line) {
+
+		this.lock.lock();
+		try {
+			if (this.count == this.ring.length && !this.closed) {
+				if (this.dropWhenFull) {
+					this.dropped.incrementAndGet();
+				} else {
+					this.producerWaits.incrementAndGet();
+					while (this.count == this.ring.length && !this.closed) {
+						this.notFull.awaitUninterruptibly();
+					}
+				}
+			}
+			if (this.closed) {
+				throw new IllegalStateException("announcement sink is closed");
+			}
+			if (this.count < this.ring.length) {
+				this.ring[(this.head + this.count) % this.ring.length] = line;
+				this.count = this.count + 1;
+				if (this.count >= this.batchSize) {
+					this.notEmpty.signal();
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+	/**
+	 * Writer loop. Runs until the sink is closed and the buffer is empty.
+	 */
+	private void drain() {
+
+		final String[] batch = new String[this.ring.length];
+		boolean done = false;
+		while (!done) {
+
+			final int n;
+			this.lock.lock();
+			try {
+				long remaining = this.flushIntervalNanos;
+				while (this.count < this.batchSize && !this.closed
+						&& remaining > 0) {
+					remaining = this.notEmpty.awaitNanos(remaining);
+				}
+				n = this.count;
+				for (int i = 0; i < n; i = i + 1) {
+					final int slot = (this.head + i) % this.ring.length;
+					batch[i] = this.ring[slot];
+					this.ring[slot] = null;
+				}
+				this.head = (this.head + n) % this.ring.length;
+				this.count = 0;
+				this.notFull.signalAll();
+				done = this.closed && n == 0;
+			} catch (final InterruptedException e) {
+				/*
+				 * only the sink owns this thread, treat as close.
+				 */
+				this.closed = true;
+				continue;
+			} finally {
+				this.lock.unlock();
+			}
+
+			if (n > 0) {
+				write(batch, n);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Append one batch to the file.
+	 *
+	 * @param batch
+	 *            announcements, the first n are written.
+	 *
+	 * @param n
+	 *            number of announcements.
+	 */
+	private void write(final String[] batch, final int n) {
+
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < n; i = i + 1) {
+			text.append(batch[i]).append('\n');
+			batch[i] = null;
+		}
+		final ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(
+				StandardCharsets.UTF_8));
+
+		final long start = System.nanoTime();
+		try {
+			while (bytes.hasRemaining()) {
+				this.channel.write(bytes);
+			}
+			this.linesWritten.addAndGet(n);
+		} catch (final IOException e) {
+			this.writeFailures.incrementAndGet();
+			LOG.error("cannot write " + n + " announcements", e);
+		}
+		final long elapsed = System.nanoTime() - start;
+
+		this.batches.incrementAndGet();
+		this.flushNanos.addAndGet(elapsed);
+		long max = this.maxFlushNanos.get();
+		while (elapsed > max && !this.maxFlushNanos.compareAndSet(max, elapsed)) {
+			max = this.maxFlushNanos.get();
+		}
+
+	}
+
+}
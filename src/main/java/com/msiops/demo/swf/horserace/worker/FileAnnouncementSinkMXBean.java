@@ -0,0 +1,69 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+/**
+ * JMX view of a {@link FileAnnouncementSink}.
+ */
+public interface FileAnnouncementSinkMXBean {
+
+	/**
+	 * @return number of batches written.
+	 */
+	long getBatches();
+
+	/**
+	 * @return most announcements that can wait to be written.
+	 */
+	int getCapacity();
+
+	/**
+	 * @return announcements discarded because the buffer was full.
+	 */
+	long getDropped();
+
+	/**
+	 * @return announcements written to the file.
+	 */
+	long getLinesWritten();
+
+	/**
+	 * @return longest time taken to write one batch, in microseconds.
+	 */
+	long getMaxFlushMicros();
+
+	/**
+	 * @return average time taken to write one batch, in microseconds.
+	 */
+	long getMeanFlushMicros();
+
+	/**
+	 * @return number of times an announcer waited for room in the buffer.
+	 */
+	long getProducerWaits();
+
+	/**
+	 * @return announcements waiting to be written.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return batches that could not be written.
+	 */
+	long getWriteFailures();
+
+}
@@ -16,6 +16,8 @@
  */
 package com.msiops.demo.swf.horserace.worker;
 
+import java.util.List;
+
 import com.amazonaws.services.simpleworkflow.flow.annotations.Activities;
 import com.amazonaws.services.simpleworkflow.flow.annotations.ActivityRegistrationOptions;
 
@@ -26,7 +28,7 @@ import com.amazonaws.services.simpleworkflow.flow.annotations.ActivityRegistrati
  *
  */
 @Activities(version = "1.0.0")
-@ActivityRegistrationOptions(defaultTaskStartToCloseTimeoutSeconds = 15, defaultTaskScheduleToStartTimeoutSeconds = 15)
+@ActivityRegistrationOptions(defaultTaskStartToCloseTimeoutSeconds = Lap.LAP_TIMEOUT_SECONDS, defaultTaskScheduleToStartTimeoutSeconds = 15)
 interface HorseActivities {
 
 	/**
@@ -51,4 +53,49 @@ interface HorseActivities {
 	 */
 	Status runLap(String name, int lapNum);
 
+	/**
+	 * Run a horse around the track one time, reporting the distance covered
+	 * in a heartbeat every {@link Lap#HEARTBEAT_INTERVAL_MS}. The short
+	 * heartbeat timeout lets the race find a lost worker within seconds and
+	 * run the lap again from the last distance reported. The outcome of the
+	 * lap is the same as {@link #runLap(String, int)} but a lap resumed part
+	 * way round takes only the time left to run.
+	 *
+	 * @param name
+	 *            name of horse to run.
+	 *
+	 * @param lapNum
+	 *            the current lap number.
+	 *
+	 * @param distance
+	 *            metres of the lap already covered, 0 for a new lap.
+	 *
+	 * @return result of attempting the lap.
+	 */
+	@ActivityRegistrationOptions(defaultTaskStartToCloseTimeoutSeconds = Lap.LAP_TIMEOUT_SECONDS, defaultTaskScheduleToStartTimeoutSeconds = 15, defaultTaskHeartbeatTimeoutSeconds = 3)
+	Status runLapFrom(String name, int lapNum, int distance);
+
+	/**
+	 * Run a horse around the track several times in a single task. This is the
+	 * same as invoking {@link #runLap(String, int)} for each lap in the range
+	 * except that running stops at the first injury. The start to close
+	 * timeout is longer than the default so that a batch of laps fits in one
+	 * task.
+	 *
+	 * @param name
+	 *            name of horse to run.
+	 *
+	 * @param fromLap
+	 *            the first lap number to run.
+	 *
+	 * @param toLap
+	 *            the last lap number to run, inclusive.
+	 *
+	 * @return result of each lap attempted, in lap order. If the horse is
+	 *         injured, the last result is {@link Status#INJURY} and the list
+	 *         is shorter than the requested range.
+	 */
+	@ActivityRegistrationOptions(defaultTaskStartToCloseTimeoutSeconds = Lap.LAPS_TIMEOUT_SECONDS, defaultTaskScheduleToStartTimeoutSeconds = 15)
+	List<Status> runLaps(String name, int fromLap, int toLap);
+
 }
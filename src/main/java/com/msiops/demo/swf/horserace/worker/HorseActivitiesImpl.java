@@ -17,11 +17,17 @@
 
 package com.msiops.demo.swf.horserace.worker;
 
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProviderImpl;
+import com.msiops.demo.swf.horserace.profile.HorseProfiles;
+
 /**
  * Perform horse activities.
  *
@@ -33,26 +39,88 @@ final class HorseActivitiesImpl implements HorseActivities {
 	private static final Logger LOG = LoggerFactory
 		.getLogger(HorseActivitiesImpl.class);
 
-	private static final double CHANCE_OF_INJURY = 0.035;
+	private final ActivityExecutionContextProvider contexts = new ActivityExecutionContextProviderImpl();
 
 	private final int instance;
 
+	private final HorseProfiles profiles;
+
 	/**
 	 * An RNG in an activity worker is fine (it is forbidden in a workflow
 	 * worker).
 	 */
-	private final Random rng = new Random();
+	private final LapRandom rng;
 
-	private static final int DELAY_BASE_MS = 2000;
+	/**
+	 * Longest time taken to run a lap or arrive at the gate.
+	 */
+	private final int delayBaseMs;
 
 	public HorseActivitiesImpl(final int instance) {
+		this(instance, Lap.DELAY_BASE_MS);
+	}
+
+	/**
+	 * Create horse activities with a custom lap time.
+	 *
+	 * @param instance
+	 *            worker instance number, for logging.
+	 *
+	 * @param delayBaseMs
+	 *            longest time taken to run a lap. Zero runs laps without
+	 *            delay, which is useful for load testing.
+	 */
+	HorseActivitiesImpl(final int instance, final int delayBaseMs) {
+		this(instance, delayBaseMs, null);
+	}
+
+	/**
+	 * Create horse activities with a custom lap time and repeatable laps.
+	 *
+	 * @param instance
+	 *            worker instance number, for logging.
+	 *
+	 * @param delayBaseMs
+	 *            longest time taken to run a lap.
+	 *
+	 * @param seed
+	 *            seed for repeatable injuries and lap times, see
+	 *            {@link LapRandom}. Null for unrepeatable ones.
+	 */
+	HorseActivitiesImpl(final int instance, final int delayBaseMs,
+			final Long seed) {
+		this(instance, delayBaseMs, seed, new HorseProfiles(null, 0));
+	}
+
+	/**
+	 * Create horse activities for horses with profiles.
+	 *
+	 * @param instance
+	 *            worker instance number, for logging.
+	 *
+	 * @param delayBaseMs
+	 *            longest time taken to run a lap by an average horse.
+	 *
+	 * @param seed
+	 *            seed for repeatable injuries and lap times, see
+	 *            {@link LapRandom}. Null for unrepeatable ones.
+	 *
+	 * @param profiles
+	 *            horse profiles.
+	 */
+	HorseActivitiesImpl(final int instance, final int delayBaseMs,
+			final Long seed, final HorseProfiles profiles) {
 		this.instance = instance;
+		this.delayBaseMs = delayBaseMs;
+		this.rng = new LapRandom(seed);
+		this.profiles = profiles;
 	}
 
 	@Override
 	public void arriveGate(final String name) {
 
-		final long delay = this.rng.nextInt(DELAY_BASE_MS);
+		final long delay = Lap.gateDelay(
+				this.rng.forLap(name, LapRandom.GATE), this.delayBaseMs);
 
 		/*
 		 * Log before doing work...
@@ -70,22 +138,23 @@ final class HorseActivitiesImpl implements HorseActivities {
 
 	@Override
 	public Status runLap(final String name, final int lap) {
+		return runLap(name, lap, Lap.longestMs(Lap.LAP_TIMEOUT_SECONDS, 1));
+	}
+
+	/**
+	 * Run a lap as part of a task.
+	 *
+	 * @param longestMs
+	 *            longest the lap may take in the task.
+	 */
+	private Status runLap(final String name, final int lap,
+			final int longestMs) {
+
+		final Lap run = Lap.run(this.rng.forLap(name, lap), this.delayBaseMs,
+				this.profiles.get(name), lap, longestMs);
+		final Status rval = run.status;
+		final long delay = run.delayMs;
 
-		final int delayMax;
-		final Status rval;
-		if (this.rng.nextDouble() < CHANCE_OF_INJURY) {
-			/*
-			 * injury can be noticed, on average, in half the time it takes to
-			 * run a lap.
-			 */
-			delayMax = DELAY_BASE_MS / 2;
-			rval = Status.INJURY;
-		} else {
-			delayMax = DELAY_BASE_MS;
-			rval = Status.OK;
-		}
-		final long delay = this.rng.nextInt(delayMax);
-		
 		/*
 		 * Log before doing work...
 		 */
@@ -103,6 +172,69 @@ final class HorseActivitiesImpl implements HorseActivities {
 
 	}
 
+	@Override
+	public Status runLapFrom(final String name, final int lap,
+			final int distance) {
+
+		final Lap run = Lap.run(this.rng.forLap(name, lap), this.delayBaseMs,
+				this.profiles.get(name), lap,
+				Lap.longestMs(Lap.LAP_TIMEOUT_SECONDS, 1));
+		final long remaining = Lap.remainingMs(run.delayMs, distance);
+
+		LOG.info("HORSES {}: {} starting lap {} at {}m", new Object[] {
+				this.instance, name, lap, distance });
+
+		final long began = System.nanoTime();
+		long elapsed = 0;
+		while (elapsed < remaining) {
+			delayMs(Math.min(Lap.HEARTBEAT_INTERVAL_MS, remaining - elapsed));
+			elapsed = (System.nanoTime() - began) / 1000000;
+			if (elapsed < remaining) {
+				try {
+					this.contexts.getActivityExecutionContext()
+						.recordActivityHeartbeat(
+								Integer.toString(Lap.distanceAt(distance,
+										remaining, elapsed)));
+				} catch (final AmazonClientException e) {
+					/*
+					 * a missed heartbeat is not fatal, the next one may get
+					 * through before the timeout.
+					 */
+					LOG.warn("HORSES {}: heartbeat failed: {}", this.instance,
+							e.toString());
+				}
+			}
+		}
+
+		LOG.info("HORSES {}: {} {} after {}ms", new Object[] { this.instance,
+				name, run.status, remaining });
+
+		return run.status;
+
+	}
+
+	@Override
+	public List<Status> runLaps(final String name, final int fromLap,
+			final int toLap) {
+
+		final List<Status> rval = new ArrayList<>(Math.max(0, toLap - fromLap
+				+ 1));
+		final int longestMs = Lap.longestMs(Lap.LAPS_TIMEOUT_SECONDS, toLap
+				- fromLap + 1);
+		for (int lap = fromLap; lap <= toLap; lap = lap + 1) {
+			final Status status = runLap(name, lap, longestMs);
+			rval.add(status);
+			if (status != Status.OK) {
+				/*
+				 * an injured horse does not continue.
+				 */
+				break;
+			}
+		}
+		return rval;
+
+	}
+
 	private final void delayMs(final long millis) {
 
 		try {
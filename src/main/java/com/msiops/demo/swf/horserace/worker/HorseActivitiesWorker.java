@@ -16,14 +16,40 @@
  */
 package com.msiops.demo.swf.horserace.worker;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
 import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflowClient;
 import com.amazonaws.services.simpleworkflow.flow.ActivityWorker;
+import com.amazonaws.services.simpleworkflow.flow.WorkerBase;
+import com.msiops.demo.swf.ActivityUtilization;
+import com.msiops.demo.swf.Jmx;
+import com.msiops.demo.swf.SwfRateLimiter;
+import com.msiops.demo.swf.horserace.profile.HorseProfileStore;
+import com.msiops.demo.swf.horserace.profile.HorseProfiles;
 
 /**
  * <p>
  * This class provides the full horse worker implementation, including polling
  * for tasks, performing announcer duties, and reporting results.
  * </p>
+ * <p>
+ * Besides the shared task list, the worker polls the horse task list
+ * partitions named by {@code horserace.horses.partitions}, for example
+ * {@code 0-3} or {@code 4,5}. Races started with partitions route each horse
+ * to one of them (see {@link HorsePartitions}), so between them the horse
+ * workers should poll every partition. Each task list gets its own poll and
+ * executor threads.
+ * </p>
+ * <p>
+ * With {@code horserace.horses.profiles} set to a {@link HorseProfileStore}
+ * file, each horse runs according to its profile. Up to
+ * {@code horserace.horses.profileCacheSize} profiles (default 100000) are
+ * held in memory.
+ * </p>
  * 
  * @author greg wiley <aztec.rex@jammm.com>
  *
@@ -35,14 +61,16 @@ public final class HorseActivitiesWorker {
 	 * Its credentials can be configured like any other client in the Java SDK.
 	 * By default, it checks the environment, system properties, and (if running
 	 * on EC2) the host role.
+	 * Calls go through the rate limiter shared by every client in the JVM.
 	 */
-	private static final AmazonSimpleWorkflowClient SWF = new AmazonSimpleWorkflowClient();
+	private static final AmazonSimpleWorkflow SWF = SwfRateLimiter.shared()
+		.wrap(new AmazonSimpleWorkflowClient());
 
 	/**
 	 * The task list that this worker listens on. It also becomes the default task
 	 * list for this worker's activity types if this worker registers them.
 	 */
-	private static final String TASKLIST = "HORSEACTIVITIES-1.0";
+	static final String TASKLIST = "HORSEACTIVITIES-1.0";
 
 	/**
 	 * <p>
@@ -56,7 +84,7 @@ public final class HorseActivitiesWorker {
 	 * activity types and versions that can be registered on a domain.
 	 * </p>
 	 */
-	private static final String DOMAIN = "Demo";
+	static final String DOMAIN = "Demo";
 
 	public static void main(final String[] args) throws Exception {
 
@@ -67,24 +95,86 @@ public final class HorseActivitiesWorker {
 	}
 
 	/**
-	 * Delegate worker provided by FF.
+	 * Open the horse profiles named by system properties.
+	 *
+	 * @return profiles, giving every horse the default profile if no store is
+	 *         configured.
 	 */
-	private final ActivityWorker worker;
+	private static HorseProfiles profilesFromSystemProperties()
+			throws IOException {
+
+		final String file = System.getProperty("horserace.horses.profiles");
+		final HorseProfiles rval = new HorseProfiles(file == null ? null
+				: HorseProfileStore.open(Paths.get(file)), Integer.getInteger(
+				"horserace.horses.profileCacheSize", 100000));
+		Jmx.register("com.msiops.demo.swf:type=HorseProfiles", rval);
+		return rval;
+
+	}
+
+	/**
+	 * Delegate workers provided by FF, one per task list. The first polls the
+	 * shared task list.
+	 */
+	private final List<WorkerBase> workers = new ArrayList<>();
 
 	private HorseActivitiesWorker(final int instance) throws Exception {
 
 		/*
 		 * Configure an Flow Framework ACTIVITY worker with a domain and queue.
-		 */
-		this.worker = new ActivityWorker(SWF, DOMAIN, TASKLIST);
-
-		/*
+		 * Poll and executor threads come from horserace.horses.* system
+		 * properties so that one worker can keep many laps running at once.
+		 * 
 		 * Can add multiple activities implementation instances. Each is a
 		 * singleton that remains active for the duration of the worker. There
 		 * should be no shared mutable state in an activities implementation.
+		 * 
+		 * With horserace.horses.nonBlocking, laps complete from a scheduler
+		 * instead of sleeping on an executor thread, so in-flight laps are not
+		 * limited by the executor size.
+		 */
+		final Long seed = Long.getLong("horserace.horses.seed");
+		final HorseProfiles profiles = profilesFromSystemProperties();
+		final List<String> taskLists = new ArrayList<>();
+		taskLists.add(TASKLIST);
+		for (final int partition : HorsePartitions.parse(System.getProperty(
+				"horserace.horses.partitions", ""))) {
+			taskLists.add(HorsePartitions.taskList(partition));
+		}
+
+		if (Boolean.getBoolean("horserace.horses.nonBlocking")) {
+			/*
+			 * one implementation per task list so that, as with the blocking
+			 * workers, each task list has metrics of its own.
+			 */
+			for (final String taskList : taskLists) {
+				final NonBlockingHorseActivitiesImpl impl = new NonBlockingHorseActivitiesImpl(
+						SWF, instance, Lap.DELAY_BASE_MS, seed, profiles,
+						Integer.getInteger("horserace.horses.schedulerThreads",
+								2), ActivityUtilization.forTaskList(taskList,
+								0), ActivityWorkers.latencies(SWF, DOMAIN,
+								taskList, "horses"));
+				final ActivityWorker nonBlocking = ActivityWorkers.create(SWF,
+						DOMAIN, taskList, "horses");
+				nonBlocking.addActivitiesImplementation(impl);
+				this.workers.add(nonBlocking);
+			}
+		} else {
+			final HorseActivitiesImpl impl = new HorseActivitiesImpl(instance,
+					Lap.DELAY_BASE_MS, seed, profiles);
+			for (final String taskList : taskLists) {
+				this.workers.add(ActivityWorkers.create(SWF, DOMAIN, taskList,
+						"horses", HorseActivities.class, impl));
+			}
+		}
+
+		/*
+		 * Types register with the task list of the worker that registers
+		 * them as their default. Only the shared worker may do so.
 		 */
-		this.worker.addActivitiesImplementation(new HorseActivitiesImpl(
-				instance));
+		for (int i = 1; i < this.workers.size(); i = i + 1) {
+			this.workers.get(i).setDisableTypeRegistrationOnStart(true);
+		}
 
 	}
 
@@ -98,7 +188,9 @@ public final class HorseActivitiesWorker {
 		 * the settings in the annotations. Once set, those values cannot be
 		 * changed so beware.
 		 */
-		this.worker.start();
+		for (final WorkerBase worker : this.workers) {
+			worker.start();
+		}
 	}
 
 }
@@ -0,0 +1,116 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Assigns horses to partitions of the horse task list. Each partition is a
+ * task list of its own, {@code HORSEACTIVITIES-1.0-p0} and so on, so every
+ * activity of a horse goes to the workers polling its partition and any state
+ * they keep for the horse stays warm.
+ * </p>
+ * <p>
+ * Horses are placed with a jump consistent hash (Lamping and Veach) of the
+ * name. It needs no table, is the same on every decider and worker, and when
+ * the number of partitions grows only the horses that must move do.
+ * </p>
+ */
+final class HorsePartitions {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final long LCG_MULTIPLIER = 2862933555777941757L;
+
+	/**
+	 * Parse a set of partitions such as {@code 0-3,7}.
+	 *
+	 * @param spec
+	 *            comma separated partitions and inclusive ranges.
+	 *
+	 * @return partitions in the order given.
+	 */
+	static List<Integer> parse(final String spec) {
+
+		final List<Integer> rval = new ArrayList<>();
+		for (final String part : spec.split(",")) {
+			final String p = part.trim();
+			if (!p.isEmpty()) {
+				final int dash = p.indexOf('-');
+				final int from = Integer.parseInt(dash < 0 ? p : p.substring(0,
+						dash).trim());
+				final int to = dash < 0 ? from : Integer.parseInt(p.substring(
+						dash + 1).trim());
+				for (int i = from; i <= to; i = i + 1) {
+					rval.add(i);
+				}
+			}
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Find a horse's partition.
+	 *
+	 * @param horse
+	 *            horse name.
+	 *
+	 * @param partitions
+	 *            number of partitions, at least one.
+	 *
+	 * @return partition from 0 to {@code partitions - 1}.
+	 */
+	static int partition(final String horse, final int partitions) {
+
+		long key = FNV_OFFSET;
+		for (int i = 0; i < horse.length(); i = i + 1) {
+			key = (key ^ horse.charAt(i)) * FNV_PRIME;
+		}
+
+		long bucket = -1;
+		long next = 0;
+		while (next < partitions) {
+			bucket = next;
+			key = key * LCG_MULTIPLIER + 1;
+			next = (long) ((bucket + 1) * ((double) (1L << 31) / ((key >>> 33) + 1)));
+		}
+		return (int) bucket;
+
+	}
+
+	/**
+	 * @param partition
+	 *            partition number.
+	 *
+	 * @return the partition's task list.
+	 */
+	static String taskList(final int partition) {
+		return HorseActivitiesWorker.TASKLIST + "-p" + partition;
+	}
+
+	private HorsePartitions() {
+		/*
+		 * static only.
+		 */
+	}
+
+}
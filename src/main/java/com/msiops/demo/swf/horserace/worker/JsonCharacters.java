@@ -0,0 +1,62 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+/**
+ * Estimate how much of an SWF size limit a string takes once the flow
+ * framework data converter has written it out as JSON. The estimate counts
+ * escapes and UTF-8 encoding, so it is never less than the real size.
+ */
+final class JsonCharacters {
+
+	/**
+	 * Estimate the serialized size of a string, quotes excluded.
+	 *
+	 * @param s
+	 *            the string.
+	 *
+	 * @return the most characters it can take.
+	 */
+	static int of(final String s) {
+
+		int rval = 0;
+		for (int i = 0; i < s.length(); i = i + 1) {
+			final char c = s.charAt(i);
+			if (c < 0x20) {
+				rval = rval + 6;
+			} else if (c == '"' || c == '\\' || c >= 0x800) {
+				rval = rval + 3;
+			} else if (c >= 0x80) {
+				rval = rval + 2;
+			} else {
+				rval = rval + 1;
+			}
+		}
+		return rval;
+
+	}
+
+	/**
+	 * No instances.
+	 */
+	private JsonCharacters() {
+		/*
+		 * no instances
+		 */
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.msiops.demo.swf.horserace.profile.HorseProfile;
+
+/**
+ * How a horse runs. Every horse activities implementation draws its outcomes
+ * and delays from here so the race behaves the same however the laps are
+ * executed. Lap time and injuries depend on the horse's {@link HorseProfile}.
+ */
+final class Lap {
+
+	/**
+	 * Longest time to run a lap unless configured otherwise.
+	 */
+	static final int DELAY_BASE_MS = 2000;
+
+	/**
+	 * Time between heartbeats of a lap that reports its progress.
+	 */
+	static final long HEARTBEAT_INTERVAL_MS = 500;
+
+	/**
+	 * Start to close timeout of the activities that run a single lap.
+	 */
+	static final int LAP_TIMEOUT_SECONDS = 15;
+
+	/**
+	 * Start to close timeout of {@link HorseActivities#runLaps}.
+	 */
+	static final int LAPS_TIMEOUT_SECONDS = 60;
+
+	/**
+	 * Length of a lap in metres. Progress through a lap is reported as
+	 * distance covered.
+	 */
+	static final int LENGTH_M = 1000;
+
+	/**
+	 * Extra lap time and injury risk, as a fraction, for every lap run past a
+	 * horse's stamina.
+	 */
+	private static final double FATIGUE = 0.1;
+
+	private static final Logger LOG = LoggerFactory.getLogger(Lap.class);
+
+	/**
+	 * Share of its task's timeout that a lap may take. The rest is left for
+	 * delivering the task and its result.
+	 */
+	private static final double TIMEOUT_SHARE = 0.8;
+
+	/**
+	 * Set once a lap has been cut short to fit its timeout, so the warning is
+	 * logged only once.
+	 */
+	private static final AtomicBoolean warnedCapped = new AtomicBoolean();
+
+	/**
+	 * Distance covered part way through a lap.
+	 *
+	 * @param fromDistance
+	 *            distance at which the horse started running.
+	 *
+	 * @param remainingMs
+	 *            time to run from there to the end of the lap, see
+	 *            {@link #remainingMs(long, int)}.
+	 *
+	 * @param elapsedMs
+	 *            time run so far.
+	 *
+	 * @return distance covered in metres.
+	 */
+	static int distanceAt(final int fromDistance, final long remainingMs,
+			final long elapsedMs) {
+		return remainingMs <= 0 ? LENGTH_M : fromDistance
+				+ (int) ((LENGTH_M - fromDistance)
+						* Math.min(elapsedMs, remainingMs) / remainingMs);
+	}
+
+	/**
+	 * Time for a horse to reach the gate.
+	 *
+	 * @param rng
+	 *            random source.
+	 *
+	 * @param delayBaseMs
+	 *            longest time.
+	 *
+	 * @return delay in milliseconds.
+	 */
+	static long gateDelay(final Random rng, final int delayBaseMs) {
+		return randomDelay(rng, delayBaseMs);
+	}
+
+	/**
+	 * Longest time a lap may take so that every lap of a task fits in the
+	 * task's timeout. Without a limit a slow or tired horse would time out on
+	 * every attempt.
+	 *
+	 * @param timeoutSeconds
+	 *            start to close timeout of the task.
+	 *
+	 * @param laps
+	 *            laps run by the task.
+	 *
+	 * @return longest lap time in milliseconds.
+	 */
+	static int longestMs(final int timeoutSeconds, final int laps) {
+		final double lapsMs = timeoutSeconds * 1000 * TIMEOUT_SHARE;
+		return (int) (lapsMs / Math.max(laps, 1));
+	}
+
+	/**
+	 * Run one lap.
+	 *
+	 * @param rng
+	 *            random source.
+	 *
+	 * @param delayBaseMs
+	 *            longest time for an average horse to run a lap.
+	 *
+	 * @param profile
+	 *            the horse.
+	 *
+	 * @param lap
+	 *            lap number.
+	 *
+	 * @param longestMs
+	 *            longest the lap may take in its task, see
+	 *            {@link #longestMs(int, int)}. A slower lap is cut short and a
+	 *            warning logged, the first time, that the lap time does not
+	 *            fit the timeout.
+	 *
+	 * @return how the lap went.
+	 */
+	static Lap run(final Random rng, final int delayBaseMs,
+			final HorseProfile profile, final int lap, final int longestMs) {
+
+		final double tiredness = 1 + FATIGUE
+				* Math.max(0, (long) lap - profile.getStamina());
+		final double uncapped = delayBaseMs * tiredness / profile.getSpeed();
+		if (uncapped > longestMs && warnedCapped.compareAndSet(false, true)) {
+			LOG.warn("lap time up to {}ms does not fit in its task timeout,"
+					+ " laps are cut to {}ms; lower the lap time or the laps"
+					+ " per task", (long) uncapped, longestMs);
+		}
+		final int longest = (int) Math.min(uncapped, longestMs);
+
+		final int delayMax;
+		final Status status;
+		if (rng.nextDouble() < profile.getInjuryRisk() * tiredness) {
+			/*
+			 * injury can be noticed, on average, in half the time it takes to
+			 * run a lap.
+			 */
+			delayMax = longest / 2;
+			status = Status.INJURY;
+		} else {
+			delayMax = longest;
+			status = Status.OK;
+		}
+		return new Lap(status, randomDelay(rng, delayMax));
+
+	}
+
+	private static long randomDelay(final Random rng, final int delayMax) {
+		return delayMax > 0 ? rng.nextInt(delayMax) : 0;
+	}
+
+	/**
+	 * Time left to run in a lap resumed part way round.
+	 *
+	 * @param delayMs
+	 *            time for the whole lap.
+	 *
+	 * @param fromDistance
+	 *            distance already covered.
+	 *
+	 * @return time to run the rest of the lap.
+	 */
+	static long remainingMs(final long delayMs, final int fromDistance) {
+		return delayMs * (LENGTH_M - Math.min(Math.max(fromDistance, 0),
+				LENGTH_M)) / LENGTH_M;
+	}
+
+	/**
+	 * Time taken in milliseconds.
+	 */
+	final long delayMs;
+
+	/**
+	 * Status of the horse after the lap.
+	 */
+	final Status status;
+
+	private Lap(final Status status, final long delayMs) {
+		this.status = status;
+		this.delayMs = delayMs;
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProviderImpl;
+
+/**
+ * <p>
+ * Random source for the laps a horse worker runs. Unseeded, every thread
+ * draws from its own {@link ThreadLocalRandom} so the worker threads do not
+ * contend on one generator.
+ * </p>
+ * <p>
+ * Seeded, every lap of every horse in every race draws from its own stream,
+ * derived from the seed, the race's workflow id, the horse and the lap in the
+ * manner of SplitMix64. The same seed then produces the same injuries and lap
+ * times on every run, whichever worker, thread or batch of laps runs them,
+ * so performance runs can be compared.
+ * </p>
+ */
+final class LapRandom {
+
+	/**
+	 * A SplitMix64 generator. Each instance is used by one thread for one
+	 * lap, so unlike {@link Random} its state is a plain field.
+	 */
+	private static final class SplitMix64 extends Random {
+
+		private static final long serialVersionUID = 1L;
+
+		private long state;
+
+		SplitMix64(final long state) {
+			super(0);
+			this.state = state;
+		}
+
+		@Override
+		protected int next(final int bits) {
+			this.state = this.state + GOLDEN_GAMMA;
+			return (int) (mix(this.state) >>> (64 - bits));
+		}
+
+	}
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	/**
+	 * Lap number used for the walk to the gate.
+	 */
+	static final int GATE = 0;
+
+	/**
+	 * Fold a string into a hash, one character at a time.
+	 */
+	static long hash(final long h, final String s) {
+		long rval = h;
+		for (int i = 0; i < s.length(); i = i + 1) {
+			rval = mix(rval + GOLDEN_GAMMA + s.charAt(i));
+		}
+		return rval;
+	}
+
+	/**
+	 * SplitMix64 finalizer.
+	 */
+	static long mix(final long z0) {
+		final long z1 = (z0 ^ (z0 >>> 30)) * 0xbf58476d1ce4e5b9L;
+		final long z2 = (z1 ^ (z1 >>> 27)) * 0x94d049bb133111ebL;
+		return z2 ^ (z2 >>> 31);
+	}
+
+	private final ActivityExecutionContextProvider contexts = new ActivityExecutionContextProviderImpl();
+
+	/**
+	 * Seed, or null to draw unrepeatable values.
+	 */
+	private final Long seed;
+
+	/**
+	 * Create a random source.
+	 *
+	 * @param seed
+	 *            seed for repeatable laps, null for unrepeatable laps.
+	 */
+	LapRandom(final Long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Random source for one lap of one horse in the race of the current
+	 * activity task.
+	 *
+	 * @param horse
+	 *            horse name.
+	 *
+	 * @param lap
+	 *            lap number, {@link #GATE} for the walk to the gate.
+	 *
+	 * @return random source to be used by the calling thread only.
+	 */
+	Random forLap(final String horse, final int lap) {
+
+		final Random rval;
+		if (this.seed == null) {
+			rval = ThreadLocalRandom.current();
+		} else {
+			final String raceId = this.contexts.getActivityExecutionContext()
+				.getWorkflowExecution().getWorkflowId();
+			rval = new SplitMix64(mix(hash(hash(mix(this.seed), raceId), horse)
+					+ lap));
+		}
+		return rval;
+
+	}
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.flow.ActivityWorker;
+import com.amazonaws.services.simpleworkflow.flow.WorkflowWorker;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionInfo;
+import com.msiops.demo.swf.ActivityLatencies;
+import com.msiops.demo.swf.ActivityUtilization;
+import com.msiops.demo.swf.DecisionMetrics;
+import com.msiops.demo.swf.horserace.HorseRace;
+import com.msiops.demo.swf.horserace.profile.HorseProfiles;
+import com.msiops.demo.swf.local.LocalSwf;
+
+/**
+ * <p>
+ * Run races entirely in this process against {@link LocalSwf}. The flow,
+ * horse and announcer workers are the same ones used with SWF, only pointed at
+ * the local engine. No AWS credentials or network are required.
+ * </p>
+ * <p>
+ * Arguments are the number of races, horses per race, laps and the number of
+ * races in flight at once. Race tuning is read from the same system
+ * properties as {@link HorseRace}. In addition:
+ * </p>
+ * <ul>
+ * <li>{@code horserace.local.lapTimeMs} longest lap time, default 0.</li>
+ * <li>{@code horserace.local.deciderThreads} decision poll threads, default 2.
+ * </li>
+ * <li>{@code horserace.local.pollThreads} activity poll threads per worker,
+ * default 2.</li>
+ * <li>{@code horserace.local.activityThreads} activity executor threads per
+ * worker, default 100.</li>
+ * <li>{@code horserace.local.nonBlocking} complete laps from a scheduler
+ * rather than sleeping on an executor thread, default false.</li>
+ * <li>{@code horserace.local.seed} seed for repeatable injuries and lap
+ * times, default none.</li>
+ * </ul>
+ * <p>
+ * Announcements go to standard out as usual. The summary goes to standard
+ * error so the announcements can be discarded.
+ * </p>
+ */
+public final class LocalRaceTrack {
+
+	public static void main(final String[] args) throws Exception {
+
+		final int races = args.length > 0 ? Integer.valueOf(args[0]) : 1000;
+		final int fieldSize = args.length > 1 ? Integer.valueOf(args[1]) : 7;
+		final int laps = args.length > 2 ? Integer.valueOf(args[2]) : 10;
+		final int inFlight = args.length > 3 ? Integer.valueOf(args[3]) : 100;
+
+		new LocalRaceTrack().run(races, fieldSize, laps, inFlight,
+				HorseRace.optionsFromSystemProperties());
+
+	}
+
+	private static long percentile(final long[] sorted, final double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		final int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+	}
+
+	/**
+	 * @return CPU time used by this process or -1 if the JVM does not say.
+	 */
+	private static long processCpuNanos() {
+		final OperatingSystemMXBean os = ManagementFactory
+			.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os)
+				.getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	private final ActivityWorker announcer;
+
+	private final DecisionMetrics decisionMetrics = DecisionMetrics
+		.forTaskList(RaceFlowWorker.TASKLIST);
+
+	private final WorkflowWorker flow;
+
+	private final ActivityWorker horses;
+
+	/**
+	 * Non-blocking horses if enabled, otherwise null.
+	 */
+	private final NonBlockingHorseActivitiesImpl nonBlocking;
+
+	private final LocalSwf swf = new LocalSwf();
+
+	private LocalRaceTrack() throws Exception {
+
+		final AmazonSimpleWorkflow client = this.swf.client();
+		final int pollThreads = Integer.getInteger(
+				"horserace.local.pollThreads", 2);
+		final int activityThreads = Integer.getInteger(
+				"horserace.local.activityThreads", 100);
+
+		this.flow = new WorkflowWorker(this.decisionMetrics.wrap(client),
+				RaceFlowWorker.DOMAIN, RaceFlowWorker.TASKLIST);
+		this.flow.setPollThreadCount(Integer.getInteger(
+				"horserace.local.deciderThreads", 2));
+		this.flow.addWorkflowImplementationType(RaceFlowImpl.class);
+		this.flow.addWorkflowImplementationType(RaceShardFlowImpl.class);
+
+		this.horses = new ActivityWorker(client, HorseActivitiesWorker.DOMAIN,
+				HorseActivitiesWorker.TASKLIST);
+		this.horses.setPollThreadCount(pollThreads);
+		this.horses.setTaskExecutorThreadPoolSize(activityThreads);
+		final int lapTimeMs = Integer.getInteger("horserace.local.lapTimeMs", 0);
+		final Long seed = Long.getLong("horserace.local.seed");
+		if (Boolean.getBoolean("horserace.local.nonBlocking")) {
+			this.nonBlocking = new NonBlockingHorseActivitiesImpl(client, 1,
+					lapTimeMs, seed, new HorseProfiles(null, 0), 2,
+					new ActivityUtilization(0), ActivityLatencies.forTaskList(
+							client, HorseActivitiesWorker.DOMAIN,
+							HorseActivitiesWorker.TASKLIST, 0));
+			this.horses.addActivitiesImplementation(this.nonBlocking);
+		} else {
+			this.nonBlocking = null;
+			this.horses.addActivitiesImplementation(new HorseActivitiesImpl(1,
+					lapTimeMs, seed));
+		}
+
+		this.announcer = new ActivityWorker(client,
+				AnnouncerActivitiesWorker.DOMAIN,
+				AnnouncerActivitiesWorker.TASKLIST);
+		this.announcer.setPollThreadCount(pollThreads);
+		this.announcer.setTaskExecutorThreadPoolSize(activityThreads);
+		this.announcer.addActivitiesImplementation(new AnnouncerActivitiesImpl(
+				1));
+
+	}
+
+	private void run(final int races, final int fieldSize, final int laps,
+			final int inFlight, final RaceOptions options)
+			throws InterruptedException {
+
+		final List<String> field = new ArrayList<>(fieldSize);
+		for (int i = 1; i <= fieldSize; i = i + 1) {
+			field.add("Horse-" + i);
+		}
+
+		final Semaphore slots = new Semaphore(inFlight);
+		final CountDownLatch done = new CountDownLatch(races);
+		final ConcurrentMap<String, Long> started = new ConcurrentHashMap<>();
+		final long[] latencies = new long[races];
+		final AtomicInteger finished = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		this.swf.setCloseListener(new LocalSwf.CloseListener() {
+
+			@Override
+			public void closed(final WorkflowExecutionInfo info) {
+
+				final Long start = started.remove(info.getExecution()
+					.getWorkflowId());
+				if (start != null) {
+					latencies[finished.getAndIncrement()] = System.nanoTime()
+							- start;
+					if (!"COMPLETED".equals(info.getCloseStatus())) {
+						failed.incrementAndGet();
+					}
+					slots.release();
+					done.countDown();
+				}
+
+			}
+
+		});
+
+		this.flow.start();
+		this.horses.start();
+		this.announcer.start();
+
+		final RaceFlowClientExternalFactory clients = new RaceFlowClientExternalFactoryImpl(
+				this.swf.client(), RaceFlowWorker.DOMAIN);
+		final long cpuBefore = processCpuNanos();
+		final long began = System.nanoTime();
+		for (int i = 0; i < races; i = i + 1) {
+			slots.acquire();
+			final String id = "local-race-" + i;
+			started.put(id, System.nanoTime());
+			clients.getClient(id).go(field, laps, options, null);
+		}
+		done.await();
+		final long elapsed = System.nanoTime() - began;
+		final long cpu = processCpuNanos() - cpuBefore;
+
+		this.flow.shutdownNow();
+		this.horses.shutdownNow();
+		this.announcer.shutdownNow();
+		if (this.nonBlocking != null) {
+			this.nonBlocking.shutdown();
+		}
+		this.swf.shutdown();
+
+		final long[] sorted = Arrays.copyOf(latencies, finished.get());
+		Arrays.sort(sorted);
+		final double seconds = elapsed / 1e9;
+		final long decisions = this.swf.getDecisionTasksCompleted();
+		final long activities = this.swf.getActivityTasksCompleted();
+
+		System.err.printf("races       %d (%d not completed)%n", races,
+				failed.get());
+		System.err.printf("elapsed     %.1f s%n", seconds);
+		System.err.printf("throughput  %.0f races/min%n", races * 60
+				/ seconds);
+		System.err.printf("latency     p50 %d ms, p99 %d ms, max %d ms%n",
+				TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 0.5)),
+				TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 0.99)),
+				TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 1.0)));
+		System.err.printf("decisions   %d (%.0f/s), decider cpu %.2f s%n",
+				decisions, decisions / seconds,
+				this.swf.getDeciderCpuNanos() / 1e9);
+		System.err.printf(
+				"decide      p50 %d us, p99 %d us, events p99 %d, alloc p50 %d KiB%n",
+				this.decisionMetrics.getDecideMicrosP50(),
+				this.decisionMetrics.getDecideMicrosP99(),
+				this.decisionMetrics.getEventsP99(),
+				this.decisionMetrics.getAllocatedBytesP50() / 1024);
+		System.err.printf("activities  %d (%.0f/s)%n", activities, activities
+				/ seconds);
+		if (cpu >= 0) {
+			System.err.printf("process cpu %.2f s%n", cpu / 1e9);
+		}
+
+	}
+
+}
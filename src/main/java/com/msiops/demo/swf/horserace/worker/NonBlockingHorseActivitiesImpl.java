@@ -0,0 +1,366 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.ActivityExecutionContextProviderImpl;
+import com.amazonaws.services.simpleworkflow.flow.ManualActivityCompletionClient;
+import com.amazonaws.services.simpleworkflow.flow.ManualActivityCompletionClientFactory;
+import com.amazonaws.services.simpleworkflow.flow.ManualActivityCompletionClientFactoryImpl;
+import com.amazonaws.services.simpleworkflow.flow.annotations.ManualActivityCompletion;
+import com.msiops.demo.swf.ActivityLatencies;
+import com.msiops.demo.swf.ActivityUtilization;
+import com.msiops.demo.swf.horserace.profile.HorseProfile;
+import com.msiops.demo.swf.horserace.profile.HorseProfiles;
+
+/**
+ * <p>
+ * Perform horse activities without holding a thread for the length of the
+ * lap. Each task draws its lap from {@link Lap} exactly as
+ * {@link HorseActivitiesImpl} does, then returns at once and leaves the task
+ * open. A shared scheduler completes the task through SWF when the simulated
+ * lap ends, so the executor thread goes straight back to polling and a worker
+ * can keep thousands of laps in flight on a few threads.
+ * </p>
+ * <p>
+ * The flow framework reads {@link ManualActivityCompletion} from the
+ * implementation class, so this implementation cannot be wrapped by
+ * {@link ActivityUtilization#instrument(Class, Object)} or
+ * {@link ActivityLatencies#instrument(Class, Object)}. It reports to both
+ * itself, timing a task from its start until SWF accepts the result and
+ * counting a task SWF does not accept, or that is cancelled, as failed.
+ * </p>
+ */
+final class NonBlockingHorseActivitiesImpl implements HorseActivities {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(NonBlockingHorseActivitiesImpl.class);
+
+	/**
+	 * Distance passed to complete a task without heartbeats.
+	 */
+	private static final int NO_HEARTBEATS = -1;
+
+	private final ManualActivityCompletionClientFactory completions;
+
+	private final ActivityExecutionContextProvider contexts = new ActivityExecutionContextProviderImpl();
+
+	/**
+	 * Longest time taken to run a lap or arrive at the gate.
+	 */
+	private final int delayBaseMs;
+
+	private final int instance;
+
+	private final ActivityLatencies latencies;
+
+	private final HorseProfiles profiles;
+
+	private final LapRandom rng;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final ActivityUtilization utilization;
+
+	/**
+	 * Create horse activities.
+	 *
+	 * @param swf
+	 *            client used to complete tasks.
+	 *
+	 * @param instance
+	 *            worker instance number, for logging.
+	 *
+	 * @param delayBaseMs
+	 *            longest time taken to run a lap.
+	 *
+	 * @param seed
+	 *            seed for repeatable injuries and lap times, see
+	 *            {@link LapRandom}. Null for unrepeatable ones.
+	 *
+	 * @param profiles
+	 *            horse profiles.
+	 *
+	 * @param schedulerThreads
+	 *            number of threads completing tasks. These threads only call
+	 *            SWF so a few are plenty.
+	 *
+	 * @param utilization
+	 *            where to report tasks in flight.
+	 *
+	 * @param latencies
+	 *            where to report task times per activity type.
+	 */
+	NonBlockingHorseActivitiesImpl(final AmazonSimpleWorkflow swf,
+			final int instance, final int delayBaseMs, final Long seed,
+			final HorseProfiles profiles, final int schedulerThreads,
+			final ActivityUtilization utilization,
+			final ActivityLatencies latencies) {
+		this.completions = new ManualActivityCompletionClientFactoryImpl(swf);
+		this.instance = instance;
+		this.delayBaseMs = delayBaseMs;
+		this.rng = new LapRandom(seed);
+		this.profiles = profiles;
+		this.scheduler = Executors.newScheduledThreadPool(schedulerThreads);
+		this.utilization = utilization;
+		this.latencies = latencies;
+	}
+
+	@ManualActivityCompletion
+	@Override
+	public void arriveGate(final String name) {
+
+		final long delay = Lap.gateDelay(
+				this.rng.forLap(name, LapRandom.GATE), this.delayBaseMs);
+
+		LOG.info("HORSES {}: {} approaching gate", new Object[] {
+				this.instance, name });
+		completeAfter("arriveGate", delay, NO_HEARTBEATS, null,
+				"{} arrive gate after {}ms", name, delay);
+
+	}
+
+	@ManualActivityCompletion
+	@Override
+	public Status runLap(final String name, final int lap) {
+
+		final Lap run = Lap.run(this.rng.forLap(name, lap), this.delayBaseMs,
+				this.profiles.get(name), lap,
+				Lap.longestMs(Lap.LAP_TIMEOUT_SECONDS, 1));
+
+		LOG.info("HORSES {}: {} starting lap {}", new Object[] { this.instance,
+				name, lap });
+		completeAfter("runLap", run.delayMs, NO_HEARTBEATS, run.status,
+				"{} {} after {}ms", name, run.status, run.delayMs);
+
+		/*
+		 * ignored, the result is sent when the task is completed.
+		 */
+		return null;
+
+	}
+
+	@ManualActivityCompletion
+	@Override
+	public Status runLapFrom(final String name, final int lap,
+			final int distance) {
+
+		final Lap run = Lap.run(this.rng.forLap(name, lap), this.delayBaseMs,
+				this.profiles.get(name), lap,
+				Lap.longestMs(Lap.LAP_TIMEOUT_SECONDS, 1));
+		final long remaining = Lap.remainingMs(run.delayMs, distance);
+
+		LOG.info("HORSES {}: {} starting lap {} at {}m", new Object[] {
+				this.instance, name, lap, distance });
+		completeAfter("runLapFrom", remaining, distance, run.status,
+				"{} {} after {}ms", name, run.status, remaining);
+
+		/*
+		 * ignored, the result is sent when the task is completed.
+		 */
+		return null;
+
+	}
+
+	@ManualActivityCompletion
+	@Override
+	public List<Status> runLaps(final String name, final int fromLap,
+			final int toLap) {
+
+		/*
+		 * the laps are drawn up front and the task completes once after all of
+		 * them, which is indistinguishable from running them one by one.
+		 */
+		final List<Status> result = new ArrayList<>(Math.max(0, toLap
+				- fromLap + 1));
+		final HorseProfile profile = this.profiles.get(name);
+		final int longestMs = Lap.longestMs(Lap.LAPS_TIMEOUT_SECONDS, toLap
+				- fromLap + 1);
+		long delay = 0;
+		for (int lap = fromLap; lap <= toLap; lap = lap + 1) {
+			final Lap run = Lap.run(this.rng.forLap(name, lap),
+					this.delayBaseMs, profile, lap, longestMs);
+			result.add(run.status);
+			delay = delay + run.delayMs;
+			if (run.status != Status.OK) {
+				/*
+				 * an injured horse does not continue.
+				 */
+				break;
+			}
+		}
+
+		LOG.info("HORSES {}: {} starting laps {} to {}", new Object[] {
+				this.instance, name, fromLap, toLap });
+		completeAfter("runLaps", delay, NO_HEARTBEATS, result,
+				"{} ran {} after {}ms", name, result, delay);
+
+		/*
+		 * ignored, the result is sent when the task is completed.
+		 */
+		return null;
+
+	}
+
+	/**
+	 * Stop completing tasks. Open tasks are left to time out.
+	 */
+	void shutdown() {
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * Complete the current task after a delay.
+	 *
+	 * @param type
+	 *            name of the activity method, for latency metrics.
+	 *
+	 * @param delayMs
+	 *            simulated running time.
+	 *
+	 * @param fromDistance
+	 *            distance at which a lap started, to report progress through
+	 *            the lap in heartbeats until it completes, or
+	 *            {@link #NO_HEARTBEATS}.
+	 *
+	 * @param result
+	 *            task result.
+	 *
+	 * @param message
+	 *            log message when done, after the instance number.
+	 *
+	 * @param args
+	 *            log message arguments.
+	 */
+	private void completeAfter(final String type, final long delayMs,
+			final int fromDistance, final Object result, final String message,
+			final Object... args) {
+
+		final String taskToken = this.contexts.getActivityExecutionContext()
+			.getTaskToken();
+		final long started = this.utilization.taskStarted();
+		final long timed = this.latencies.taskStarted(type);
+
+		final Object[] logArgs = new Object[args.length + 1];
+		logArgs[0] = this.instance;
+		System.arraycopy(args, 0, logArgs, 1, args.length);
+
+		final AtomicReference<ScheduledFuture<?>> heartbeats = new AtomicReference<>();
+
+		final ScheduledFuture<?> completion = this.scheduler.schedule(
+				new Runnable() {
+
+					@Override
+					public void run() {
+
+						final ScheduledFuture<?> h = heartbeats.get();
+						if (h != null) {
+							h.cancel(false);
+						}
+						boolean ok = false;
+						try {
+							NonBlockingHorseActivitiesImpl.this.completions
+								.getClient(taskToken).complete(result);
+							ok = true;
+							LOG.info("HORSES {}: " + message, logArgs);
+						} catch (final RuntimeException e) {
+							/*
+							 * most likely the task timed out already. The race
+							 * retries or fails it as with any other lost task.
+							 */
+							LOG.warn("HORSES {}: cannot complete task",
+									logArgs[0], e);
+						} finally {
+							NonBlockingHorseActivitiesImpl.this.utilization
+								.taskFinished(started, ok);
+							NonBlockingHorseActivitiesImpl.this.latencies
+								.taskFinished(type, timed, ok);
+						}
+
+					}
+
+				}, delayMs, TimeUnit.MILLISECONDS);
+
+		if (fromDistance != NO_HEARTBEATS) {
+			final long began = System.nanoTime();
+			heartbeats.set(this.scheduler.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+
+					if (completion.isDone()) {
+						heartbeats.get().cancel(false);
+					} else {
+						heartbeat(taskToken, Lap.distanceAt(fromDistance,
+								delayMs, (System.nanoTime() - began) / 1000000),
+								completion, heartbeats.get(), type, started,
+								timed);
+					}
+
+				}
+
+			}, Lap.HEARTBEAT_INTERVAL_MS, Lap.HEARTBEAT_INTERVAL_MS,
+					TimeUnit.MILLISECONDS));
+		}
+
+	}
+
+	/**
+	 * Report progress on an open task. If the task has been cancelled it is
+	 * not completed.
+	 */
+	private void heartbeat(final String taskToken, final int distance,
+			final ScheduledFuture<?> completion,
+			final ScheduledFuture<?> heartbeats, final String type,
+			final long started, final long timed) {
+
+		final ManualActivityCompletionClient client = this.completions
+			.getClient(taskToken);
+		try {
+			client.recordHeartbeat(Integer.toString(distance));
+		} catch (final CancellationException e) {
+			heartbeats.cancel(false);
+			if (completion.cancel(false)) {
+				client.reportCancellation(null);
+				this.utilization.taskFinished(started, false);
+				this.latencies.taskFinished(type, timed, false);
+			}
+		} catch (final RuntimeException e) {
+			/*
+			 * a missed heartbeat is not fatal, the next one may get through
+			 * before the timeout.
+			 */
+			LOG.warn("HORSES {}: heartbeat failed: {}", this.instance,
+					e.toString());
+		}
+
+	}
+
+}
@@ -19,6 +19,8 @@ package com.msiops.demo.swf.horserace.worker;
 import java.util.Collection;
 
 import com.amazonaws.services.simpleworkflow.flow.annotations.Execute;
+import com.amazonaws.services.simpleworkflow.flow.annotations.GetState;
+import com.amazonaws.services.simpleworkflow.flow.annotations.Signal;
 import com.amazonaws.services.simpleworkflow.flow.annotations.Workflow;
 import com.amazonaws.services.simpleworkflow.flow.annotations.WorkflowRegistrationOptions;
 
@@ -45,12 +47,52 @@ interface RaceFlow {
 	 * </p>
 	 *
 	 * @param horseNames
-	 *            the names of the horses in the race.
+	 *            the names of the horses in the race. When continuing a
+	 *            race, the names of the horses still running.
 	 *
 	 * @param laps
 	 *            the number laps to run.
+	 *
+	 * @param options
+	 *            race tuning.
+	 *
+	 * @param standings
+	 *            where the race stands when continuing a race as a new
+	 *            execution. Null to start a new race. Only races that are not
+	 *            sharded continue as new, so a sharded race ignores this.
+	 */
+	@Execute(version = "1.2.0")
+	void go(Collection<String> horseNames, int laps, RaceOptions options,
+			Standings standings);
+
+	/**
+	 * <p>
+	 * Where the race stands. The flow framework calls this after every
+	 * decision and SWF keeps the latest result with the execution, where the
+	 * external client reads it without fetching the history.
+	 * </p>
+	 * <p>
+	 * Each execution of a race that continues as new has progress of its
+	 * own. Read the progress of the latest execution.
+	 * </p>
+	 *
+	 * @return progress of the race.
+	 */
+	@GetState
+	RaceProgress getProgress();
+
+	/**
+	 * Report that a horse run by a {@link RaceShardFlow} child workflow has
+	 * finished. The race awards places in the order that these reports are
+	 * received.
+	 *
+	 * @param name
+	 *            the name of the horse.
+	 *
+	 * @param status
+	 *            the horse's status at the end of the race.
 	 */
-	@Execute(version = "1.0.0")
-	void go(Collection<String> horseNames, int laps);
+	@Signal
+	void horseFinished(String name, Status status);
 
 }
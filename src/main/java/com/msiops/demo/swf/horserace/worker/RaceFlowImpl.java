@@ -20,17 +20,22 @@ import static com.msiops.demo.swf.PromiseUtil.*;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
+import com.amazonaws.services.simpleworkflow.flow.DecisionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.DecisionContextProviderImpl;
 import com.amazonaws.services.simpleworkflow.flow.annotations.Asynchronous;
-import com.amazonaws.services.simpleworkflow.flow.annotations.ExponentialRetry;
 import com.amazonaws.services.simpleworkflow.flow.core.Promise;
+import com.amazonaws.services.simpleworkflow.flow.core.Settable;
 
 /**
  * <p>
  * Race flow implementation. An instance of this class will be created and its
- * {@link #go(Collection, int)} method will be invoked whenever a workflow
+ * {@link #go(Collection, int, RaceOptions, Standings)} method will be invoked whenever a workflow
  * decision is required. Things to be aware of when programming the workflow.
  * </p>
  * <ul>
@@ -58,9 +63,44 @@ import com.amazonaws.services.simpleworkflow.flow.core.Promise;
  */
 final class RaceFlowImpl implements RaceFlow {
 
+	/**
+	 * Number of places on the podium.
+	 */
+	private static final int PODIUM = 3;
+
 	private final AnnouncerActivitiesClient announcer = new AnnouncerActivitiesClientImpl();
 
-	private final HorseActivitiesClient horses = new HorseActivitiesClientImpl();
+	/**
+	 * Retries of every activity in the race, following the race options.
+	 */
+	private final Retries retries = new Retries();
+
+	/**
+	 * Per horse announcements go through this buffer so that those ready in
+	 * the same decision are made in a single activity task.
+	 */
+	private final AnnouncementBuffer announcements = new AnnouncementBuffer(
+			this.announcer, this.retries);
+
+	/**
+	 * Fulfilled when every horse of a sharded race has been reported and its
+	 * result announced.
+	 */
+	private final Settable<Void> allReported = new Settable<>();
+
+	private final DecisionContextProvider contexts = new DecisionContextProviderImpl();
+
+	/**
+	 * Number of horses in a sharded race.
+	 */
+	private int fieldSize;
+
+	/**
+	 * For a sharded race, one slot per horse filled in the order horses are
+	 * reported with the name of a horse that finished or null for one that did
+	 * not.
+	 */
+	private List<Settable<String>> finishOrder;
 
 	/**
 	 * The next horse that finishes gets this place. Even though the workflow is
@@ -68,72 +108,107 @@ final class RaceFlowImpl implements RaceFlow {
 	 */
 	private int nextPlace = 1;
 
+	/**
+	 * Where the race stands, kept up to date as laps and results come in.
+	 */
+	private final RaceProgress progress = new RaceProgress();
+
+	/**
+	 * Result announcements for horses reported so far by shards. This is null
+	 * unless the race is sharded.
+	 */
+	private List<Promise<Void>> reported;
+
+	/**
+	 * Names of the horses reported so far by shards, so that a repeated
+	 * report is ignored. This is null unless the race is sharded.
+	 */
+	private Set<String> reportedNames;
+
+	/**
+	 * Continues the race as a new execution. FF code generation adds the
+	 * "SelfClient" suffix.
+	 */
+	private final RaceFlowSelfClient self = new RaceFlowSelfClientImpl();
+
+	private final RaceShardFlowClientFactory shards = new RaceShardFlowClientFactoryImpl();
+
+	private final Track track = new Track(this.announcements, this.retries);
+
 	@Override
-	public void go(final Collection<String> horseNames, final int laps) {
+	public RaceProgress getProgress() {
+		return this.progress;
+	}
 
-		/*
-		 * Start moving all horses to the starting gate and collect the promises
-		 * to do so.
-		 */
-		final List<Promise<String>> arrivals = new ArrayList<>(
-				horseNames.size());
-		for (final String name : horseNames) {
-			final Promise<String> arrival = subst(name, arriveGate(name));
-			arrivals.add(arrival);
+	@Override
+	public void go(final Collection<String> horseNames, final int laps,
+			final RaceOptions options, final Standings standings) {
+
+		final RaceOptions opts = options == null ? new RaceOptions() : options;
+		this.retries.setOptions(opts);
+		this.announcements.setOptions(opts);
+
+		if (opts.getShardSize() > 0 && horseNames.size() > opts.getShardSize()) {
+			goSharded(new ArrayList<>(horseNames), laps, opts);
+		} else {
+			goSingle(horseNames, laps, opts, standings == null ? new Standings()
+					: standings);
 		}
 
-		/*
-		 * At this point, all arrivals are asynchronous. We need to synchronize
-		 * so that we start only when all horses have arrived at the gate and
-		 * are ready to go. Join returns a promise that is only fulfilled when
-		 * every horse has arrived at the gate.
-		 */
-		final Promise<List<String>> ready = join(arrivals);
+	}
 
-		/*
-		 * Announce the race only after all horses have arrived.
-		 */
-		final Promise<Void> announced = announceRace(ready,
-				Promise.asPromise(laps));
+	@Override
+	public void horseFinished(final String name, final Status status) {
 
-		/*
-		 * Now start running the horses in parallel. Note that this invocation
-		 * depends on "announced."
-		 */
-		final Promise<List<Promise<Void>>> results = runAll(laps, ready,
-				announced);
+		if (this.reported == null) {
+			/*
+			 * not a sharded race, there is nobody to report.
+			 */
+			return;
+		}
+		if (this.reported.size() >= this.fieldSize
+				|| !this.reportedNames.add(name)) {
+			/*
+			 * a horse is reported once. A repeated or extra signal, such as
+			 * one sent again by hand, would otherwise take a place.
+			 */
+			return;
+		}
 
-		/*
-		 * Before exiting the workflow, ensure that all horses have finished and
-		 * all pending tasks are complete.
-		 */
-		announceEnd(join(results));
+		this.finishOrder.get(this.reported.size()).set(
+				status == Status.OK ? name : null);
+		this.reported.add(announceHorseResult(name, Promise.asPromise(status)));
+		if (this.reported.size() == this.fieldSize) {
+			this.allReported.chain(sync(Promise.Void(), join(this.reported)));
+		}
 
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
+	 * Local wrapper for activities client invocation. This applies the race's
+	 * retry settings to failures from workers and from SWF itself. All
 	 * parameters passed directly to client and return whatever the client
 	 * returns.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
 	@Asynchronous
 	private Promise<Void> announceEnd(final Promise<?>... waitFor) {
-		return this.announcer.announceEnd();
+
+		return this.retries.retry("announceEnd", new Retries.Attempt<Void>() {
+
+			@Override
+			Promise<Void> run() {
+				return RaceFlowImpl.this.announcer.announceEnd();
+			}
+
+		});
+
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
-	 * parameters passed directly to client and return whatever the client
-	 * returns.
+	 * Queue a finished announcement in the announcement buffer.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
-	@Asynchronous
-	private Promise<Void> announceFinished(final String name,
-			final Promise<?>... waitFor) {
-		return this.announcer.announceFinished(name);
+	private Promise<Void> announceFinished(final String name) {
+		return this.announcements.add(Announcement.finished(name));
 	}
 
 	/**
@@ -158,17 +233,21 @@ final class RaceFlowImpl implements RaceFlow {
 		final Promise<Void> rval;
 		switch (result.get()) {
 		case OK:
-			if (this.nextPlace <= 3) {
+			if (this.nextPlace <= PODIUM) {
+				this.progress.horsePlaced(name);
 				rval = announcePlace(name, this.nextPlace);
 				this.nextPlace = this.nextPlace + 1;
 			} else {
+				this.progress.horseFinished();
 				rval = announceFinished(name);
 			}
 			break;
 		case INJURY:
+			this.progress.horseInjured(name);
 			rval = announceInjury(name);
 			break;
 		default:
+			this.progress.horseMissing();
 			rval = announceMissing(name);
 			break;
 		}
@@ -176,121 +255,405 @@ final class RaceFlowImpl implements RaceFlow {
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
+	 * Queue an injury announcement in the announcement buffer.
+	 */
+	private Promise<Void> announceInjury(final String name) {
+		return this.announcements.add(Announcement.injury(name));
+	}
+
+	/**
+	 * Queue a missing horse announcement in the announcement buffer.
+	 */
+	private Promise<Void> announceMissing(final String name) {
+		return this.announcements.add(Announcement.missing(name));
+	}
+
+	/**
+	 * Queue a place announcement in the announcement buffer.
+	 */
+	private Promise<Void> announcePlace(final String name, final int place) {
+		return this.announcements.add(Announcement.place(name, place));
+	}
+
+	/**
+	 * Local wrapper for activities client invocation. This applies the race's
+	 * retry settings to failures from workers and from SWF itself. All
 	 * parameters passed directly to client and return whatever the client
 	 * returns.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
 	@Asynchronous
-	private Promise<Void> announceInjury(final String name,
+	private Promise<Void> announcePodium(final Promise<List<String>> names,
 			final Promise<?>... waitFor) {
-		return this.announcer.announceInjury(name);
+
+		return this.retries.retry("announcePodium",
+				new Retries.Attempt<Void>() {
+
+					@Override
+					Promise<Void> run() {
+						return RaceFlowImpl.this.announcer
+							.announcePodium(names);
+					}
+
+				});
+
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
+	 * Local wrapper for activities client invocation. This applies the race's
+	 * retry settings to failures from workers and from SWF itself. All
 	 * parameters passed directly to client and return whatever the client
 	 * returns.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
 	@Asynchronous
-	private Promise<Void> announceLap(final String name, final int lap,
-			final Promise<?>... waitFor) {
-		return this.announcer.announceLap(name, lap);
+	private Promise<Void> announceRace(final Promise<List<String>> horses,
+			final Promise<Integer> laps, final Promise<?>... waitFor) {
+
+		return this.retries.retry("announceRace", new Retries.Attempt<Void>() {
+
+			@Override
+			Promise<Void> run() {
+				return RaceFlowImpl.this.announcer.announceRace(horses, laps);
+			}
+
+		});
+
 	}
 
 	/**
-	 * Announce a lap only if the result was OK.
+	 * Continue the race as a new workflow execution. If no horse is still
+	 * running, the race ends here instead with an empty podium.
 	 *
-	 * @param name
-	 *            horse name.
+	 * @param survivors
+	 *            for each horse, its name if it is still running or null if
+	 *            it is not.
 	 *
-	 * @param lap
-	 *            lap number.
+	 * @param laps
+	 *            number of laps in the race.
 	 *
-	 * @param result
-	 *            result of running lap.
+	 * @param options
+	 *            race tuning.
+	 *
+	 * @param lapsCompleted
+	 *            laps completed by the horses still running.
 	 *
 	 * @param waitFor
 	 *            anonymous dependencies.
-	 *
-	 * @return the passed result.
 	 */
 	@Asynchronous
-	private Promise<Status> announceLapIfOk(final String name, final int lap,
-			final Promise<Status> result, final Promise<?>... waitFor) {
+	private void continueRace(final Promise<List<String>> survivors,
+			final int laps, final RaceOptions options,
+			final int lapsCompleted, final Promise<?>... waitFor) {
+
+		final List<String> running = new ArrayList<>(survivors.get().size());
+		for (final String name : survivors.get()) {
+			if (name != null) {
+				running.add(name);
+			}
+		}
 
-		final Promise<Status> rval;
-		if (result.get() == Status.OK) {
-			rval = subst(result.get(), announceLap(name, lap));
+		if (running.isEmpty()) {
+			/*
+			 * end the race as a run to the last lap would when no horse
+			 * finishes: announce the empty podium, then the end.
+			 */
+			final Promise<Void> podiumAnnounced = announcePodium(podium(
+					Collections.<Promise<String>> emptyList()));
+			announceEnd(podiumAnnounced);
 		} else {
-			rval = result;
+			final Standings standings = new Standings();
+			standings.setLapsCompleted(lapsCompleted);
+			standings.setNextPlace(this.nextPlace);
+			standings.setRetries(this.retries.getUsed());
+			standings.setInjured(this.progress.getInjured());
+			standings.setInjuredCount(this.progress.getInjuredCount());
+			/*
+			 * Invoking the self client's execute method completes this
+			 * execution by continuing it as new.
+			 */
+			this.self.go(running, laps, options, standings);
 		}
-		return rval;
 
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
-	 * parameters passed directly to client and return whatever the client
-	 * returns.
+	 * Decide whether a horse finished the race.
+	 *
+	 * @param name
+	 *            name of the horse.
+	 *
+	 * @param result
+	 *            horse's status after its last lap.
+	 *
+	 * @param waitFor
+	 *            anonymous dependencies.
+	 *
+	 * @return promise to produce the name of the horse if it finished or null
+	 *         if it did not.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
 	@Asynchronous
-	private Promise<Void> announceMissing(final String name,
-			final Promise<?>... waitFor) {
-		return this.announcer.announceMissing(name);
+	private Promise<String> finisher(final String name,
+			final Promise<Status> result, final Promise<?>... waitFor) {
+		return Promise.asPromise(result.get() == Status.OK ? name : null);
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
-	 * parameters passed directly to client and return whatever the client
-	 * returns.
+	 * Run the race with child workflows. Each shard brings its horses to the
+	 * gate, runs them and reports each finish back through
+	 * {@link #horseFinished(String, Status)}. Places are awarded here, in the
+	 * order the reports arrive. A sharded race always runs in this one
+	 * execution, so the laps per execution option does not apply.
+	 *
+	 * @param horseNames
+	 *            the names of the horses in the race.
+	 *
+	 * @param laps
+	 *            the number laps to run.
+	 *
+	 * @param options
+	 *            race tuning.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
-	@Asynchronous
-	private Promise<Void> announcePlace(final String name, final Integer place,
-			final Promise<?>... waitFor) {
-		return this.announcer.announcePlace(name, place);
+	private void goSharded(final List<String> horseNames, final int laps,
+			final RaceOptions options) {
+
+		this.fieldSize = horseNames.size();
+		this.progress.start(horseNames, laps, new Standings());
+		this.reported = new ArrayList<>(this.fieldSize);
+		this.reportedNames = new HashSet<>(this.fieldSize);
+		this.finishOrder = new ArrayList<>(this.fieldSize);
+		for (int i = 0; i < this.fieldSize; i = i + 1) {
+			this.finishOrder.add(new Settable<String>());
+		}
+
+		final String raceWorkflowId = this.contexts.getDecisionContext()
+				.getWorkflowContext().getWorkflowExecution().getWorkflowId();
+
+		/*
+		 * Shards bring their own horses to the gate so the race is announced
+		 * before the shards start.
+		 */
+		final Promise<Void> announced = announceRace(
+				Promise.asPromise(horseNames), Promise.asPromise(laps));
+
+		final int shardSize = options.getShardSize();
+
+		/*
+		 * Each shard gets an equal share of the retry budget and the race
+		 * keeps the rest for its own announcements. A share of nothing is a
+		 * negative budget, which allows no retries.
+		 */
+		final int shardCount = (horseNames.size() + shardSize - 1)
+				/ shardSize;
+		final RaceOptions shardOptions;
+		if (options.getRetryBudget() > 0) {
+			final int share = options.getRetryBudget() / (shardCount + 1);
+			this.retries.setOptions(options.withRetryBudget(options
+				.getRetryBudget() - shardCount * share));
+			shardOptions = options.withRetryBudget(share > 0 ? share : -1);
+		} else {
+			shardOptions = options;
+		}
+
+		final List<Promise<Void>> shardRuns = new ArrayList<>();
+		for (int from = 0; from < horseNames.size(); from = from + shardSize) {
+			final List<String> shard = new ArrayList<>(horseNames.subList(
+					from, Math.min(from + shardSize, horseNames.size())));
+			/*
+			 * A client instance starts exactly one child workflow.
+			 */
+			final RaceShardFlowClient child = this.shards
+					.getClient(RaceShardFlowImpl.shardWorkflowId(raceWorkflowId,
+							from / shardSize));
+			shardRuns.add(child.run(raceWorkflowId, shard, laps,
+					shardOptions, announced));
+		}
+
+		/*
+		 * Reports arrive in finishing order so the podium can be taken
+		 * straight from them.
+		 */
+		final Promise<Void> podiumAnnounced = announcePodium(podium(new ArrayList<Promise<String>>(
+				this.finishOrder)));
+
+		/*
+		 * Before exiting the workflow, ensure that all shards have finished
+		 * and every horse result has been announced.
+		 */
+		announceEnd(join(shardRuns), this.allReported, podiumAnnounced);
+
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
-	 * parameters passed directly to client and return whatever the client
-	 * returns.
+	 * Run the race, or the next part of it, in this workflow execution. If
+	 * the race is longer than the laps per execution option, this execution
+	 * runs only that many laps and then continues the race as a new execution.
+	 *
+	 * @param horseNames
+	 *            the names of the horses still running.
+	 *
+	 * @param laps
+	 *            the number laps in the race.
+	 *
+	 * @param options
+	 *            race tuning.
+	 *
+	 * @param standings
+	 *            where the race stands.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
-	@Asynchronous
-	private Promise<Void> announceRace(final Promise<List<String>> horses,
-			final Promise<Integer> laps, final Promise<?>... waitFor) {
+	private void goSingle(final Collection<String> horseNames, final int laps,
+			final RaceOptions options, final Standings standings) {
+
+		final int lapsPerTask = Track.lapsPerTask(options.getLapsPerTask());
+		final int fromLap = standings.getLapsCompleted() + 1;
+		final int toLap = options.getLapsPerExecution() > 0 ? Math.min(
+				standings.getLapsCompleted() + options.getLapsPerExecution(),
+				laps) : laps;
+		this.nextPlace = standings.getNextPlace();
+		this.retries.setUsed(standings.getRetries());
+		this.progress.start(horseNames, laps, standings);
+		this.track.setProgress(this.progress);
+		this.track.setPartitions(options.getPartitions());
+		this.track.setHedgePercentile(options.getHedgePercentile());
+		this.track.setMaxOutstanding(options.getMaxOutstanding());
+
+		final Promise<List<String>> ready;
+		final Promise<Void> announced;
+		if (fromLap == 1) {
+
+			/*
+			 * Start moving horses to the starting gate and collect the
+			 * promises to do so. The track keeps no more walks outstanding
+			 * at once than the race allows.
+			 */
+			final List<Promise<String>> arrivals = new ArrayList<>(
+					horseNames.size());
+			for (final String name : horseNames) {
+				arrivals.add(subst(name, this.track.arriveGate(name)));
+			}
 
-		return this.announcer.announceRace(horses, laps);
+			/*
+			 * At this point, all arrivals are asynchronous. We need to
+			 * synchronize so that we start only when all horses have arrived
+			 * at the gate and are ready to go. Join returns a promise that is
+			 * only fulfilled when every horse has arrived at the gate.
+			 */
+			ready = join(arrivals);
+
+			/*
+			 * Announce the race only after all horses have arrived.
+			 */
+			announced = announceRace(ready, Promise.asPromise(laps));
+
+		} else {
+
+			/*
+			 * A continued race is already under way.
+			 */
+			final List<String> running = new ArrayList<>(horseNames);
+			ready = Promise.asPromise(running);
+			announced = Promise.Void();
+
+		}
+
+		if (toLap == laps) {
+
+			/*
+			 * Now start running the horses in parallel. Note that this
+			 * invocation depends on "announced."
+			 */
+			final Promise<List<Promise<Void>>> results = runAll(fromLap,
+					laps, lapsPerTask, ready, announced);
+
+			/*
+			 * Before exiting the workflow, ensure that all horses have
+			 * finished and all pending tasks are complete.
+			 */
+			announceEnd(join(results));
+
+		} else {
+
+			/*
+			 * Run this execution's share of the laps and hand the survivors
+			 * to a new execution.
+			 */
+			final Promise<List<Promise<String>>> survivors = runSegment(
+					fromLap, toLap, lapsPerTask, ready, announced);
+			continueRace(join(survivors), laps, options, toLap);
+
+		}
 
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
-	 * parameters passed directly to client and return whatever the client
-	 * returns.
+	 * Pick the podium from horses in finishing order.
+	 *
+	 * @param finishers
+	 *            for each horse in the order it stopped running, its name if it
+	 *            finished or null if it did not.
+	 *
+	 * @return promise to produce up to {@link #PODIUM} names in order of
+	 *         place. It is fulfilled as soon as the podium is decided, which
+	 *         may be well before the last horse stops.
+	 */
+	private Promise<List<String>> podium(final List<Promise<String>> finishers) {
+
+		final Promise<List<String>> rval;
+		if (finishers.isEmpty()) {
+			rval = Promise.asPromise(Collections.<String> emptyList());
+		} else {
+			rval = podium(finishers.get(0),
+					finishers.subList(1, finishers.size()),
+					Collections.<String> emptyList());
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Walk horses in finishing order until the podium is full or no horses
+	 * remain.
+	 *
+	 * @param next
+	 *            the next horse to stop running, or null if it did not
+	 *            finish.
+	 *
+	 * @param rest
+	 *            the horses after it.
+	 *
+	 * @param placed
+	 *            horses placed so far.
+	 *
+	 * @return promise to produce the podium.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
 	@Asynchronous
-	private Promise<Void> arriveGate(final String name,
-			final Promise<?>... waitFor) {
-		return this.horses.arriveGate(name);
+	private Promise<List<String>> podium(final Promise<String> next,
+			final List<Promise<String>> rest, final List<String> placed) {
+
+		final List<String> sofar = new ArrayList<>(placed);
+		if (next.get() != null) {
+			sofar.add(next.get());
+		}
+
+		final Promise<List<String>> rval;
+		if (sofar.size() == PODIUM || rest.isEmpty()) {
+			rval = Promise.asPromise(sofar);
+		} else {
+			rval = podium(rest.get(0), rest.subList(1, rest.size()), sofar);
+		}
+		return rval;
+
 	}
 
 	/**
-	 * Run all the horses in parallel.
+	 * Run all the horses in parallel to the end of the race.
+	 *
+	 * @param fromLap
+	 *            first lap to run.
 	 *
 	 * @param laps
-	 *            number of laps to run.
+	 *            number of laps in the race.
+	 *
+	 * @param lapsPerTask
+	 *            number of laps to run in each activity task.
 	 *
 	 * @param horses
 	 *            horses to run.
@@ -298,75 +661,136 @@ final class RaceFlowImpl implements RaceFlow {
 	 * @param waitFor
 	 *            anonymous dependencies.
 	 *
-	 * @return a list of promises to run, one for each horse.
+	 * @return a list of promises to run, one for each horse, and one more to
+	 *         announce the podium.
 	 */
 	@Asynchronous
-	private Promise<List<Promise<Void>>> runAll(final int laps,
+	private Promise<List<Promise<Void>>> runAll(final int fromLap,
+			final int laps, final int lapsPerTask,
 			final Promise<List<String>> horses, final Promise<?>... waitFor) {
 
-		final List<Promise<Void>> race = new ArrayList<>(horses.get().size());
-		for (final String name : horses.get()) {
+		final List<Promise<Status>> runs = runHorses(horses.get(), fromLap,
+				laps, lapsPerTask);
+		final List<Promise<Void>> race = new ArrayList<>(
+				horses.get().size() + 1);
+		final List<Promise<String>> finishers = new ArrayList<>(horses.get()
+				.size());
+		for (int i = 0; i < horses.get().size(); i = i + 1) {
 
-			Promise<Status> horseRun = Promise.asPromise(Status.OK);
-			for (int lapNum = 1; lapNum <= laps; lapNum = lapNum + 1) {
-				horseRun = runLapIfOk(name, lapNum, horseRun);
-				horseRun = announceLapIfOk(name, lapNum, horseRun);
-			}
+			final String name = horses.get().get(i);
+			final Promise<Status> horseRun = runs.get(i);
 			final Promise<Void> done = announceHorseResult(name, horseRun);
 
 			race.add(done);
+			finishers.add(finisher(name, horseRun));
 
 		}
 
+		/*
+		 * Announce the podium the moment the first three horses are home,
+		 * without waiting for the rest of the field.
+		 */
+		race.add(announcePodium(podium(inCompletionOrder(finishers))));
+
 		return Promise.asPromise(race);
 
 	}
 
 	/**
-	 * Local wrapper for activities client invocation. This lets us specify
-	 * retry policy that handles failures from workers and from SWF itself. All
-	 * parameters passed directly to client and return whatever the client
-	 * returns.
+	 * Run horses over a range of laps. Every horse starts at once; the track
+	 * limits the activities outstanding.
+	 *
+	 * @param horses
+	 *            horses to run.
+	 *
+	 * @param fromLap
+	 *            first lap to run.
+	 *
+	 * @param toLap
+	 *            last lap to run.
+	 *
+	 * @param lapsPerTask
+	 *            number of laps to run in each activity task.
+	 *
+	 * @return promises to produce each horse's status after its last lap, in
+	 *         the order of the horses.
+	 */
+	private List<Promise<Status>> runHorses(final List<String> horses,
+			final int fromLap, final int toLap, final int lapsPerTask) {
+
+		final List<Promise<Status>> rval = new ArrayList<>(horses.size());
+		for (final String name : horses) {
+			rval.add(this.track.run(name, fromLap, toLap, lapsPerTask));
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Run all the horses in parallel for part of the race.
+	 *
+	 * @param fromLap
+	 *            first lap to run.
+	 *
+	 * @param toLap
+	 *            last lap to run.
+	 *
+	 * @param lapsPerTask
+	 *            number of laps to run in each activity task.
+	 *
+	 * @param horses
+	 *            horses to run.
+	 *
+	 * @param waitFor
+	 *            anonymous dependencies.
+	 *
+	 * @return a list of promises, one for each horse, to produce the horse's
+	 *         name if it is still running or null if it is not.
 	 */
-	@ExponentialRetry(initialRetryIntervalSeconds = 2, maximumRetryIntervalSeconds = 30, maximumAttempts = 5)
 	@Asynchronous
-	private Promise<Status> runLap(final String name, final int lapNum,
-			final Promise<?>... waitFor) {
-		return this.horses.runLap(name, lapNum);
+	private Promise<List<Promise<String>>> runSegment(final int fromLap,
+			final int toLap, final int lapsPerTask,
+			final Promise<List<String>> horses, final Promise<?>... waitFor) {
+
+		final List<Promise<Status>> runs = runHorses(horses.get(), fromLap,
+				toLap, lapsPerTask);
+		final List<Promise<String>> segment = new ArrayList<>(horses.get()
+				.size());
+		for (int i = 0; i < horses.get().size(); i = i + 1) {
+			segment.add(survivor(horses.get().get(i), runs.get(i)));
+		}
+
+		return Promise.asPromise(segment);
+
 	}
 
 	/**
-	 * Run one lap if not injured.
+	 * Announce a horse that can no longer run.
 	 *
 	 * @param name
-	 *            name of horse to run.
-	 *
-	 * @param lapNum
-	 *            the lap number to run.
+	 *            name of the horse.
 	 *
-	 * @param prevStatus
-	 *            previous lap run status.
+	 * @param result
+	 *            horse's status after its last lap.
 	 *
 	 * @param waitFor
 	 *            anonymous dependencies.
 	 *
-	 * @return the result of running one lap or the previous lap result.
+	 * @return promise to produce the name of the horse if it is still running
+	 *         or null if it is not.
 	 */
 	@Asynchronous
-	private Promise<Status> runLapIfOk(final String name, final int lapNum,
-			final Promise<Status> prevStatus, final Promise<?>... waitFor) {
+	private Promise<String> survivor(final String name,
+			final Promise<Status> result, final Promise<?>... waitFor) {
 
-		if (prevStatus.get() == Status.OK) {
-			/*
-			 * horse is ok, run it.
-			 */
-			return runLap(name, lapNum);
+		final Promise<String> rval;
+		if (result.get() == Status.OK) {
+			rval = Promise.asPromise(name);
 		} else {
-			/*
-			 * something wrong, do not run.
-			 */
-			return prevStatus;
+			this.progress.horseInjured(name);
+			rval = subst((String) null, announceInjury(name));
 		}
+		return rval;
 
 	}
 
@@ -16,8 +16,11 @@
  */
 package com.msiops.demo.swf.horserace.worker;
 
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
 import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflowClient;
 import com.amazonaws.services.simpleworkflow.flow.WorkflowWorker;
+import com.msiops.demo.swf.DecisionMetrics;
+import com.msiops.demo.swf.SwfRateLimiter;
 
 /**
  * <p>
@@ -35,14 +38,19 @@ public final class RaceFlowWorker {
 	 * Its credentials can be configured like any other client in the Java SDK.
 	 * By default, it checks the environment, system properties, and (if running
 	 * on EC2) the host role.
+	 * Calls go through the rate limiter shared by every client in the JVM.
+	 * The cost of every decision task is published through JMX by
+	 * {@link DecisionMetrics}.
 	 */
-	private static final AmazonSimpleWorkflowClient SWF = new AmazonSimpleWorkflowClient();
+	private static final AmazonSimpleWorkflow SWF = DecisionMetrics
+		.forTaskList(RaceFlowWorker.TASKLIST).wrap(
+				SwfRateLimiter.shared().wrap(new AmazonSimpleWorkflowClient()));
 
 	/**
 	 * The task list that this worker listens on. It also becomes the default
 	 * task list for this worker's workflow types if this worker registers them.
 	 */
-	private static final String TASKLIST = "RACEFLOW-1.0";
+	static final String TASKLIST = "RACEFLOW-1.0";
 
 	/**
 	 * <p>
@@ -56,7 +64,7 @@ public final class RaceFlowWorker {
 	 * activity types and versions that can be registered on a domain.
 	 * </p>
 	 */
-	private static final String DOMAIN = "Demo";
+	static final String DOMAIN = "Demo";
 
 	public static void main(final String[] args) throws Exception {
 
@@ -82,6 +90,7 @@ public final class RaceFlowWorker {
 		 * run for every decision.
 		 */
 		this.worker.addWorkflowImplementationType(RaceFlowImpl.class);
+		this.worker.addWorkflowImplementationType(RaceShardFlowImpl.class);
 
 	}
 
@@ -0,0 +1,237 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Tuning knobs for a single race. An instance becomes a parameter to the
+ * workflow creation so it must remain a plain bean that the flow framework
+ * data converter can serialize.
+ * </p>
+ * <p>
+ * The defaults reproduce the original race behavior, except that retries are
+ * jittered and lap announcements are dropped while the announcer keeps
+ * failing.
+ * </p>
+ */
+public final class RaceOptions {
+
+	/**
+	 * Seconds that lap announcements are dropped once the circuit breaker
+	 * opens. After that, lap announcements are tried again and the first
+	 * failure opens the breaker again.
+	 */
+	private int breakerCooldownSeconds = 60;
+
+	/**
+	 * Consecutive failed announcement tasks that open the circuit breaker on
+	 * lap announcements. Zero never opens it.
+	 */
+	private int breakerThreshold = 3;
+
+	/**
+	 * Percentile of lap times after which a single lap is run a second time,
+	 * taking whichever attempt finishes first. This
+	 * cuts the delay a slow horse worker adds to a race at the cost of extra
+	 * tasks, about (100 - percentile)% more laps. Zero never hedges.
+	 */
+	private double hedgePercentile = 0;
+
+	/**
+	 * Number of laps a horse runs in a single activity task. One gives an
+	 * announcement for every lap. Larger values cut the number of activity and
+	 * decision tasks at the cost of announcing only the last lap of each batch.
+	 */
+	private int lapsPerTask = 1;
+
+	/**
+	 * Number of laps run by one workflow execution before the race continues
+	 * as a new execution. This keeps history, and so decision cost, from
+	 * growing with the length of the race. Zero runs every lap in one
+	 * execution. This applies only to races that are not sharded.
+	 */
+	private int lapsPerExecution = 0;
+
+	/**
+	 * Maximum number of horse activity tasks the race keeps outstanding at
+	 * once, counting tasks waiting on the task list and tasks running. Every
+	 * horse starts at once and further tasks wait in the workflow, first come
+	 * first served, as earlier ones finish, so the horses still race one
+	 * another. Set this to what the horse worker fleet can take within the
+	 * schedule to start timeout. Zero sends every task at once. In a sharded
+	 * race the limit applies to each shard.
+	 */
+	private int maxOutstanding = 0;
+
+	/**
+	 * Number of horse task list partitions. Each horse's activities go to the
+	 * task list of its partition so consecutive laps reach the same workers,
+	 * falling back to the shared task list when no worker picks them up. Horse
+	 * workers must poll every partition. Zero uses only the shared task list.
+	 */
+	private int partitions = 0;
+
+	/**
+	 * Retry policy for activity types without one of their own in
+	 * {@link #retries}.
+	 */
+	private RetrySettings retry = new RetrySettings();
+
+	/**
+	 * Number of retries, of all activities together, a race may make. Once it
+	 * is spent, activities fail on their first failure and lap announcements
+	 * are dropped. A race that continues as a new execution carries the rest
+	 * of its budget over. A sharded race splits its budget evenly between
+	 * itself and its shards when it starts them, so the race as a whole never
+	 * makes more retries than this. Zero places no limit and a negative
+	 * budget allows no retries at all.
+	 */
+	private int retryBudget = 0;
+
+	/**
+	 * Retry policy by activity type, keyed by activity method name such as
+	 * "runLap", "arriveGate" or "announceBatch".
+	 */
+	private Map<String, RetrySettings> retries = new HashMap<>();
+
+	/**
+	 * Maximum number of horses run by one child workflow. Zero runs every
+	 * horse in the race workflow itself. Sharding bounds the history of each
+	 * execution for very large fields. The race workflow still receives every
+	 * horse name as input so the field is limited by the SWF input size. A
+	 * sharded race runs in one execution, ignoring {@link #lapsPerExecution}.
+	 */
+	private int shardSize = 0;
+
+	public int getBreakerCooldownSeconds() {
+		return this.breakerCooldownSeconds;
+	}
+
+	public int getBreakerThreshold() {
+		return this.breakerThreshold;
+	}
+
+	public double getHedgePercentile() {
+		return this.hedgePercentile;
+	}
+
+	public int getLapsPerExecution() {
+		return this.lapsPerExecution;
+	}
+
+	public int getLapsPerTask() {
+		return this.lapsPerTask;
+	}
+
+	public int getMaxOutstanding() {
+		return this.maxOutstanding;
+	}
+
+	public int getPartitions() {
+		return this.partitions;
+	}
+
+	public Map<String, RetrySettings> getRetries() {
+		return this.retries;
+	}
+
+	public RetrySettings getRetry() {
+		return this.retry;
+	}
+
+	public int getRetryBudget() {
+		return this.retryBudget;
+	}
+
+	public int getShardSize() {
+		return this.shardSize;
+	}
+
+	public void setBreakerCooldownSeconds(final int breakerCooldownSeconds) {
+		this.breakerCooldownSeconds = breakerCooldownSeconds;
+	}
+
+	public void setBreakerThreshold(final int breakerThreshold) {
+		this.breakerThreshold = breakerThreshold;
+	}
+
+	public void setHedgePercentile(final double hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	public void setLapsPerExecution(final int lapsPerExecution) {
+		this.lapsPerExecution = lapsPerExecution;
+	}
+
+	public void setLapsPerTask(final int lapsPerTask) {
+		this.lapsPerTask = lapsPerTask;
+	}
+
+	public void setMaxOutstanding(final int maxOutstanding) {
+		this.maxOutstanding = maxOutstanding;
+	}
+
+	public void setPartitions(final int partitions) {
+		this.partitions = partitions;
+	}
+
+	public void setRetries(final Map<String, RetrySettings> retries) {
+		this.retries = retries;
+	}
+
+	public void setRetry(final RetrySettings retry) {
+		this.retry = retry;
+	}
+
+	public void setRetryBudget(final int retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+
+	public void setShardSize(final int shardSize) {
+		this.shardSize = shardSize;
+	}
+
+	/**
+	 * Copy these options with a different retry budget.
+	 *
+	 * @param budget
+	 *            the retry budget of the copy.
+	 *
+	 * @return the copy.
+	 */
+	RaceOptions withRetryBudget(final int budget) {
+
+		final RaceOptions rval = new RaceOptions();
+		rval.breakerCooldownSeconds = this.breakerCooldownSeconds;
+		rval.breakerThreshold = this.breakerThreshold;
+		rval.hedgePercentile = this.hedgePercentile;
+		rval.lapsPerExecution = this.lapsPerExecution;
+		rval.lapsPerTask = this.lapsPerTask;
+		rval.maxOutstanding = this.maxOutstanding;
+		rval.partitions = this.partitions;
+		rval.retries = this.retries;
+		rval.retry = this.retry;
+		rval.retryBudget = budget;
+		rval.shardSize = this.shardSize;
+		return rval;
+
+	}
+
+}
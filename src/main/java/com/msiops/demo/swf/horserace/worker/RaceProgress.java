@@ -0,0 +1,306 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Live progress of a race, published through {@link RaceFlow#getProgress()}.
+ * The race workflow keeps it up to date as laps and results come in and SWF
+ * stores the latest copy with the execution, so it can be read without
+ * fetching the execution history.
+ * </p>
+ * <p>
+ * SWF limits the stored copy to 32KB. The names the progress holds are
+ * counted against {@link #DETAIL_CHARACTERS} as they are added, and once they
+ * would pass it only the counts are kept, not the laps of each horse or the
+ * names of injured horses. Placed horses are listed for as long as they still
+ * fit. In a sharded race the laps are run by the shards and only results are
+ * kept.
+ * </p>
+ * <p>
+ * This must remain a plain bean that the flow framework data converter can
+ * serialize.
+ * </p>
+ */
+public final class RaceProgress {
+
+	/**
+	 * Most characters the names of horses may take once serialized, leaving
+	 * room under the 32KB SWF limit for the counts.
+	 */
+	public static final int DETAIL_CHARACTERS = 30000;
+
+	/**
+	 * Serialized characters a name in a list takes apart from the name: its
+	 * quotes and a comma.
+	 */
+	private static final int ENTRY_CHARACTERS = 3;
+
+	/**
+	 * Serialized characters a horse's laps take apart from its name: quotes,
+	 * colon, the lap number and a comma.
+	 */
+	private static final int LAP_ENTRY_CHARACTERS = 14;
+
+	/**
+	 * Serialized characters of {@link #lapsCompleted} and {@link #injured}.
+	 */
+	private int detailCharacters;
+
+	/**
+	 * Whether the laps of each horse and the names of injured horses are
+	 * kept.
+	 */
+	private boolean detailed = true;
+
+	private int fieldSize;
+
+	/**
+	 * Horses that finished the race, placed or not.
+	 */
+	private int finished;
+
+	/**
+	 * Names of injured horses, in the order they were injured.
+	 */
+	private List<String> injured = new ArrayList<>();
+
+	private int injuredCount;
+
+	/**
+	 * Laps in the race.
+	 */
+	private int laps;
+
+	/**
+	 * Laps completed by each horse.
+	 */
+	private Map<String, Integer> lapsCompleted = new HashMap<>();
+
+	/**
+	 * Most laps completed by any horse.
+	 */
+	private int leaderLap;
+
+	/**
+	 * Horses that stopped for reasons other than injury.
+	 */
+	private int missing;
+
+	/**
+	 * Names of placed horses, in order of place.
+	 */
+	private List<String> placed = new ArrayList<>();
+
+	/**
+	 * Serialized characters of {@link #placed}.
+	 */
+	private int placedCharacters;
+
+	public int getFieldSize() {
+		return this.fieldSize;
+	}
+
+	public int getFinished() {
+		return this.finished;
+	}
+
+	public List<String> getInjured() {
+		return this.injured;
+	}
+
+	public int getInjuredCount() {
+		return this.injuredCount;
+	}
+
+	public int getLaps() {
+		return this.laps;
+	}
+
+	public Map<String, Integer> getLapsCompleted() {
+		return this.lapsCompleted;
+	}
+
+	public int getLeaderLap() {
+		return this.leaderLap;
+	}
+
+	public int getMissing() {
+		return this.missing;
+	}
+
+	public List<String> getPlaced() {
+		return this.placed;
+	}
+
+	public void setFieldSize(final int fieldSize) {
+		this.fieldSize = fieldSize;
+	}
+
+	public void setFinished(final int finished) {
+		this.finished = finished;
+	}
+
+	public void setInjured(final List<String> injured) {
+		this.injured = injured;
+	}
+
+	public void setInjuredCount(final int injuredCount) {
+		this.injuredCount = injuredCount;
+	}
+
+	public void setLaps(final int laps) {
+		this.laps = laps;
+	}
+
+	public void setLapsCompleted(final Map<String, Integer> lapsCompleted) {
+		this.lapsCompleted = lapsCompleted;
+	}
+
+	public void setLeaderLap(final int leaderLap) {
+		this.leaderLap = leaderLap;
+	}
+
+	public void setMissing(final int missing) {
+		this.missing = missing;
+	}
+
+	public void setPlaced(final List<String> placed) {
+		this.placed = placed;
+	}
+
+	/**
+	 * Count a horse that finished without a place.
+	 */
+	void horseFinished() {
+		this.finished = this.finished + 1;
+	}
+
+	/**
+	 * Count an injured horse.
+	 */
+	void horseInjured(final String name) {
+		this.injuredCount = this.injuredCount + 1;
+		if (this.detailed
+				&& addDetail(ENTRY_CHARACTERS + JsonCharacters.of(name))) {
+			this.injured.add(name);
+		}
+	}
+
+	/**
+	 * Record a lap completed by a horse.
+	 */
+	void horseLapped(final String name, final int lap) {
+		this.leaderLap = Math.max(this.leaderLap, lap);
+		if (this.detailed
+				&& (this.lapsCompleted.containsKey(name) || addDetail(LAP_ENTRY_CHARACTERS
+						+ JsonCharacters.of(name)))) {
+			this.lapsCompleted.put(name, lap);
+		}
+	}
+
+	/**
+	 * Count a horse that stopped for reasons other than injury.
+	 */
+	void horseMissing() {
+		this.missing = this.missing + 1;
+	}
+
+	/**
+	 * Count a horse that finished in a place.
+	 */
+	void horsePlaced(final String name) {
+		this.finished = this.finished + 1;
+		final int characters = ENTRY_CHARACTERS + JsonCharacters.of(name);
+		if (this.placedCharacters + characters > DETAIL_CHARACTERS
+				- this.detailCharacters) {
+			dropDetail();
+		}
+		if (this.placedCharacters + characters <= DETAIL_CHARACTERS) {
+			this.placedCharacters = this.placedCharacters + characters;
+			this.placed.add(name);
+		}
+	}
+
+	/**
+	 * Start from where an execution of the race begins.
+	 *
+	 * @param running
+	 *            horses still running.
+	 *
+	 * @param laps
+	 *            laps in the race.
+	 *
+	 * @param standings
+	 *            where the race stands.
+	 */
+	void start(final Collection<String> running, final int laps,
+			final Standings standings) {
+
+		this.laps = laps;
+		this.fieldSize = running.size() + standings.getInjuredCount();
+		if (standings.getInjured() != null) {
+			for (final String name : standings.getInjured()) {
+				horseInjured(name);
+			}
+		}
+		this.injuredCount = standings.getInjuredCount();
+		for (final String name : running) {
+			horseLapped(name, standings.getLapsCompleted());
+		}
+
+	}
+
+	/**
+	 * Count detail against the limit, giving up all detail if it does not
+	 * fit.
+	 *
+	 * @param characters
+	 *            serialized size of the detail.
+	 *
+	 * @return whether the detail is to be kept.
+	 */
+	private boolean addDetail(final int characters) {
+
+		final boolean rval = this.detailCharacters + this.placedCharacters
+				+ characters <= DETAIL_CHARACTERS;
+		if (rval) {
+			this.detailCharacters = this.detailCharacters + characters;
+		} else {
+			dropDetail();
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Stop keeping the laps of each horse and the names of injured horses.
+	 */
+	private void dropDetail() {
+		this.detailed = false;
+		this.detailCharacters = 0;
+		this.injured.clear();
+		this.lapsCompleted.clear();
+	}
+
+}
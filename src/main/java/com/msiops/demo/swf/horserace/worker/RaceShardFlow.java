@@ -0,0 +1,57 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.List;
+
+import com.amazonaws.services.simpleworkflow.flow.annotations.Execute;
+import com.amazonaws.services.simpleworkflow.flow.annotations.Workflow;
+import com.amazonaws.services.simpleworkflow.flow.annotations.WorkflowRegistrationOptions;
+
+/**
+ * Part of a horse race run as a child of the {@link RaceFlow} workflow. Very
+ * large fields are split into shards so that no single workflow execution
+ * carries the history of every horse.
+ *
+ */
+@Workflow
+@WorkflowRegistrationOptions(defaultExecutionStartToCloseTimeoutSeconds = 900, defaultTaskStartToCloseTimeoutSeconds = 60)
+interface RaceShardFlow {
+
+	/**
+	 * Bring a shard of horses to the gate and run them. Lap announcements are
+	 * made by the shard. Each horse's final status is reported to the parent
+	 * race through {@link RaceFlow#horseFinished(String, Status)} as soon as
+	 * it is known so that the parent can award places in finish order.
+	 *
+	 * @param raceWorkflowId
+	 *            workflow id of the parent race.
+	 *
+	 * @param horseNames
+	 *            the names of the horses in this shard.
+	 *
+	 * @param laps
+	 *            the number laps to run.
+	 *
+	 * @param options
+	 *            race tuning.
+	 */
+	@Execute(version = "1.0.0")
+	void run(String raceWorkflowId, List<String> horseNames, int laps,
+			RaceOptions options);
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import static com.msiops.demo.swf.PromiseUtil.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.simpleworkflow.flow.annotations.Asynchronous;
+import com.amazonaws.services.simpleworkflow.flow.core.Promise;
+
+/**
+ * Race shard implementation. The same rules described on {@link RaceFlowImpl}
+ * apply here.
+ *
+ */
+final class RaceShardFlowImpl implements RaceShardFlow {
+
+	/**
+	 * Separates the race's workflow id from the shard number in the workflow
+	 * id of a shard.
+	 */
+	private static final String SHARD_ID_SEPARATOR = ":shard-";
+
+	/**
+	 * Workflow id of the race an execution belongs to.
+	 *
+	 * @param workflowId
+	 *            workflow id of a race or of one of its shards.
+	 *
+	 * @return the workflow id of the race.
+	 */
+	static String raceWorkflowId(final String workflowId) {
+
+		final int at = workflowId.lastIndexOf(SHARD_ID_SEPARATOR);
+		return at < 0 ? workflowId : workflowId.substring(0, at);
+
+	}
+
+	/**
+	 * Workflow id of a shard of a race.
+	 *
+	 * @param raceWorkflowId
+	 *            workflow id of the race.
+	 *
+	 * @param shard
+	 *            shard number, from zero.
+	 *
+	 * @return the workflow id of the shard.
+	 */
+	static String shardWorkflowId(final String raceWorkflowId, final int shard) {
+		return raceWorkflowId + SHARD_ID_SEPARATOR + shard;
+	}
+
+	/**
+	 * Retries of every activity in the shard, following the race options.
+	 */
+	private final Retries retries = new Retries();
+
+	private final AnnouncementBuffer announcements = new AnnouncementBuffer(
+			new AnnouncerActivitiesClientImpl(), this.retries);
+
+	private final RaceFlowClientFactory races = new RaceFlowClientFactoryImpl();
+
+	private final Track track = new Track(this.announcements, this.retries);
+
+	@Override
+	public void run(final String raceWorkflowId,
+			final List<String> horseNames, final int laps,
+			final RaceOptions options) {
+
+		final RaceOptions opts = options == null ? new RaceOptions() : options;
+		final int lapsPerTask = Track.lapsPerTask(opts.getLapsPerTask());
+		this.track.setPartitions(opts.getPartitions());
+		this.track.setHedgePercentile(opts.getHedgePercentile());
+		this.track.setMaxOutstanding(opts.getMaxOutstanding());
+		this.retries.setOptions(opts);
+		this.announcements.setOptions(opts);
+
+		/*
+		 * Shard horses start as soon as every horse in the shard is at the
+		 * gate. The parent announced the race before starting the shards.
+		 */
+		final List<Promise<Void>> arrivals = new ArrayList<>(
+				horseNames.size());
+		for (final String name : horseNames) {
+			arrivals.add(this.track.arriveGate(name));
+		}
+		final Promise<List<Void>> ready = join(arrivals);
+
+		/*
+		 * The shard completes only when every report has been delivered.
+		 */
+		final RaceFlowClient race = this.races.getClient(raceWorkflowId);
+		for (final String name : horseNames) {
+			reportFinish(race, name,
+					this.track.run(name, 1, laps, lapsPerTask, ready));
+		}
+
+	}
+
+	/**
+	 * Tell the parent race how a horse finished.
+	 *
+	 * @param race
+	 *            client for the parent race.
+	 *
+	 * @param name
+	 *            horse name.
+	 *
+	 * @param result
+	 *            horse's status at the end of the race.
+	 */
+	@Asynchronous
+	private void reportFinish(final RaceFlowClient race, final String name,
+			final Promise<Status> result) {
+		race.horseFinished(name, result.get());
+	}
+
+}
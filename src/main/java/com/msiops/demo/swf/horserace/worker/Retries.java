@@ -0,0 +1,223 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import com.amazonaws.services.simpleworkflow.flow.ActivityTaskException;
+import com.amazonaws.services.simpleworkflow.flow.DecisionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.DecisionContextProviderImpl;
+import com.amazonaws.services.simpleworkflow.flow.annotations.Asynchronous;
+import com.amazonaws.services.simpleworkflow.flow.core.Promise;
+import com.amazonaws.services.simpleworkflow.flow.core.Settable;
+import com.amazonaws.services.simpleworkflow.flow.core.TryCatch;
+
+/**
+ * <p>
+ * Workflow side retries of failed activities, following the
+ * {@link RetrySettings} of the race for each activity type and drawing on the
+ * race's retry budget.
+ * </p>
+ * <p>
+ * The random part of each delay must be the same every time the decision is
+ * replayed, so it is derived from the workflow id and the number of retries
+ * made so far rather than drawn from a random source. Different races still
+ * get different delays.
+ * </p>
+ * <p>
+ * Like the workflow itself, this is created per decision and relies on the
+ * flow framework running all tasks on a single thread.
+ * </p>
+ */
+final class Retries {
+
+	/**
+	 * An activity that can be scheduled again.
+	 */
+	abstract static class Attempt<T> {
+
+		/**
+		 * Schedule the activity once.
+		 */
+		abstract Promise<T> run();
+
+	}
+
+	private static final RetrySettings DEFAULT = new RetrySettings();
+
+	private final DecisionContextProvider contexts = new DecisionContextProviderImpl();
+
+	private RaceOptions options = new RaceOptions();
+
+	/**
+	 * Retries made so far, including those of earlier executions of the race.
+	 */
+	private int used;
+
+	/**
+	 * Number of retries made so far, to carry over to a new execution.
+	 */
+	int getUsed() {
+		return this.used;
+	}
+
+	/**
+	 * Whether the race has spent its retry budget.
+	 */
+	boolean isBudgetSpent() {
+		final int budget = this.options.getRetryBudget();
+		return budget < 0 || budget > 0 && this.used >= budget;
+	}
+
+	/**
+	 * Decide whether to retry a failed attempt and how long to wait first. A
+	 * retry is taken from the budget.
+	 *
+	 * @param type
+	 *            activity type.
+	 *
+	 * @param attempt
+	 *            the attempt that failed, from 1.
+	 *
+	 * @return delay in seconds before the next attempt, or -1 if the activity
+	 *         must not be retried.
+	 */
+	long nextDelaySeconds(final String type, final int attempt) {
+
+		final RetrySettings settings = settings(type);
+
+		final long rval;
+		if (attempt >= settings.getMaximumAttempts() || isBudgetSpent()) {
+			rval = -1;
+		} else {
+			final long delay = Math.min(
+					settings.getInitialIntervalSeconds() << Math.min(
+							attempt - 1, 20),
+					settings.getMaximumIntervalSeconds());
+			final String workflowId = this.contexts.getDecisionContext()
+				.getWorkflowContext().getWorkflowExecution().getWorkflowId();
+			final double u = (LapRandom.mix(LapRandom.hash(this.used,
+					workflowId)) >>> 11) * 0x1.0p-53;
+			rval = Math.round(delay * (1 - settings.getJitter() * u));
+			this.used = this.used + 1;
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Run an activity, retrying failures as the race's settings for its type
+	 * allow.
+	 *
+	 * @param type
+	 *            activity type.
+	 *
+	 * @param activity
+	 *            the activity.
+	 *
+	 * @return promise to produce the result of the first attempt that
+	 *         succeeds.
+	 */
+	<T> Promise<T> retry(final String type, final Attempt<T> activity) {
+		return attempt(type, activity, 1);
+	}
+
+	/**
+	 * Take retry settings and budget from the race.
+	 */
+	void setOptions(final RaceOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Count retries already made by earlier executions of the race.
+	 */
+	void setUsed(final int used) {
+		this.used = used;
+	}
+
+	/**
+	 * Create a timer on the workflow clock.
+	 *
+	 * @param delaySeconds
+	 *            delay in seconds.
+	 *
+	 * @return promise fulfilled when the delay has passed.
+	 */
+	Promise<Void> timer(final long delaySeconds) {
+		return this.contexts.getDecisionContext().getWorkflowClock()
+			.createTimer(delaySeconds);
+	}
+
+	/**
+	 * Make an attempt and, if it fails, decide on the next.
+	 */
+	private <T> Promise<T> attempt(final String type,
+			final Attempt<T> activity, final int attempt) {
+
+		final Settable<T> rval = new Settable<>();
+		new TryCatch() {
+
+			@Override
+			protected void doCatch(final Throwable e) throws Throwable {
+				if (!(e instanceof ActivityTaskException)) {
+					throw e;
+				}
+				final long delay = nextDelaySeconds(type, attempt);
+				if (delay < 0) {
+					throw e;
+				}
+				rval.chain(attemptAfter(type, activity, attempt + 1,
+						timer(delay)));
+			}
+
+			@Override
+			protected void doTry() throws Throwable {
+				rval.chain(activity.run());
+			}
+
+		};
+		return rval;
+
+	}
+
+	/**
+	 * Make an attempt once a retry delay has passed.
+	 */
+	@Asynchronous
+	private <T> Promise<T> attemptAfter(final String type,
+			final Attempt<T> activity, final int attempt,
+			final Promise<Void> delay) {
+		return attempt(type, activity, attempt);
+	}
+
+	/**
+	 * Retry settings for an activity type.
+	 */
+	private RetrySettings settings(final String type) {
+
+		RetrySettings rval = null;
+		if (this.options.getRetries() != null) {
+			rval = this.options.getRetries().get(type);
+		}
+		if (rval == null) {
+			rval = this.options.getRetry() == null ? DEFAULT : this.options
+				.getRetry();
+		}
+		return rval;
+
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+/**
+ * <p>
+ * Retry policy for one type of activity. Retries back off exponentially from
+ * the initial interval, doubling up to the maximum interval, and each delay is
+ * shortened by a random part of up to {@link #getJitter()} of itself so that
+ * races failing together do not all retry together.
+ * </p>
+ * <p>
+ * This is part of {@link RaceOptions} so it must remain a plain bean that the
+ * flow framework data converter can serialize. The defaults reproduce the
+ * retry policy the race used to have for every activity, plus jitter.
+ * </p>
+ */
+public final class RetrySettings {
+
+	private long initialIntervalSeconds = 2;
+
+	/**
+	 * Fraction of each delay that is random, from 0 (every race retries after
+	 * exactly the same delay) to 1 (anywhere from no delay to the full delay).
+	 */
+	private double jitter = 0.5;
+
+	/**
+	 * Attempts in all, including the first. One never retries.
+	 */
+	private int maximumAttempts = 5;
+
+	private long maximumIntervalSeconds = 30;
+
+	public long getInitialIntervalSeconds() {
+		return this.initialIntervalSeconds;
+	}
+
+	public double getJitter() {
+		return this.jitter;
+	}
+
+	public int getMaximumAttempts() {
+		return this.maximumAttempts;
+	}
+
+	public long getMaximumIntervalSeconds() {
+		return this.maximumIntervalSeconds;
+	}
+
+	public void setInitialIntervalSeconds(final long initialIntervalSeconds) {
+		this.initialIntervalSeconds = initialIntervalSeconds;
+	}
+
+	public void setJitter(final double jitter) {
+		this.jitter = jitter;
+	}
+
+	public void setMaximumAttempts(final int maximumAttempts) {
+		this.maximumAttempts = maximumAttempts;
+	}
+
+	public void setMaximumIntervalSeconds(final long maximumIntervalSeconds) {
+		this.maximumIntervalSeconds = maximumIntervalSeconds;
+	}
+
+}
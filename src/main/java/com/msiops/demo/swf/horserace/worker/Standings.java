@@ -0,0 +1,96 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where a race stands. A race that continues as a new workflow execution
+ * passes its standings to the new execution. This becomes a parameter to the
+ * workflow so it must remain a plain bean that the flow framework data
+ * converter can serialize.
+ */
+public final class Standings {
+
+	/**
+	 * Names of horses injured so far, kept only while they fit in
+	 * {@link RaceProgress#DETAIL_CHARACTERS}.
+	 */
+	private List<String> injured = new ArrayList<>();
+
+	/**
+	 * Number of horses injured so far.
+	 */
+	private int injuredCount = 0;
+
+	/**
+	 * Laps completed by every horse still running.
+	 */
+	private int lapsCompleted = 0;
+
+	/**
+	 * The place awarded to the next horse to finish.
+	 */
+	private int nextPlace = 1;
+
+	/**
+	 * Retries the race has made so far, counted against its retry budget.
+	 */
+	private int retries = 0;
+
+	public List<String> getInjured() {
+		return this.injured;
+	}
+
+	public int getInjuredCount() {
+		return this.injuredCount;
+	}
+
+	public int getLapsCompleted() {
+		return this.lapsCompleted;
+	}
+
+	public int getNextPlace() {
+		return this.nextPlace;
+	}
+
+	public int getRetries() {
+		return this.retries;
+	}
+
+	public void setInjured(final List<String> injured) {
+		this.injured = injured;
+	}
+
+	public void setInjuredCount(final int injuredCount) {
+		this.injuredCount = injuredCount;
+	}
+
+	public void setLapsCompleted(final int lapsCompleted) {
+		this.lapsCompleted = lapsCompleted;
+	}
+
+	public void setNextPlace(final int nextPlace) {
+		this.nextPlace = nextPlace;
+	}
+
+	public void setRetries(final int retries) {
+		this.retries = retries;
+	}
+
+}
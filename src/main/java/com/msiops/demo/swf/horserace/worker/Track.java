@@ -0,0 +1,948 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.horserace.worker;
+
+import static com.msiops.demo.swf.PromiseUtil.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import com.amazonaws.services.simpleworkflow.flow.ActivitySchedulingOptions;
+import com.amazonaws.services.simpleworkflow.flow.ActivityTaskException;
+import com.amazonaws.services.simpleworkflow.flow.ActivityTaskTimedOutException;
+import com.amazonaws.services.simpleworkflow.flow.DecisionContextProvider;
+import com.amazonaws.services.simpleworkflow.flow.DecisionContextProviderImpl;
+import com.amazonaws.services.simpleworkflow.flow.annotations.Asynchronous;
+import com.amazonaws.services.simpleworkflow.flow.core.Promise;
+import com.amazonaws.services.simpleworkflow.flow.core.Settable;
+import com.amazonaws.services.simpleworkflow.flow.core.TryCatch;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskTimeoutType;
+
+/**
+ * <p>
+ * Workflow side logic for getting horses to the gate and around the track.
+ * This is shared by every workflow that runs horses so it is subject to the
+ * same rules as {@link RaceFlowImpl}: it must be deterministic and side-effect
+ * free.
+ * </p>
+ * <p>
+ * With {@link #setPartitions(int)}, every activity of a horse goes to the
+ * task list of the horse's partition (see {@link HorsePartitions}). An
+ * attempt on a partition is made once, with a short schedule to start
+ * timeout. If it fails, the activity goes to the shared task list with the
+ * race's retries. A partition that no worker picks up in time is not used again
+ * for the rest of the execution.
+ * </p>
+ * <p>
+ * Single laps are run by {@link HorseActivities#runLapFrom}, which reports
+ * the distance covered in heartbeats. A lap whose worker is lost, found by a
+ * missed heartbeat, is run again at once from the last distance reported.
+ * Other failures are retried after a growing delay, as with the other horse
+ * activities. Either way the retry counts against the race's retry settings
+ * for "runLap" and its retry budget.
+ * </p>
+ * <p>
+ * With {@link #setHedgePercentile(double)}, a single lap that has not finished
+ * by that percentile of the lap times seen so far in the execution is run
+ * again, where another worker is likely to pick it up. The second attempt is
+ * routed like the first and counts as the lap's second try against its retry
+ * budget. Whichever attempt finishes first gives the result and the other is
+ * cancelled, which the horse worker learns from its next heartbeat. Lap
+ * times are measured on the workflow clock so they are the same on replay,
+ * and every single lap is timed whether or not laps are hedged.
+ * </p>
+ * <p>
+ * With {@link #setMaxOutstanding(int)}, every horse activity waits for one of
+ * a fixed number of permits shared by the whole workflow, so the limit is on
+ * activity tasks rather than on horses.
+ * </p>
+ * <p>
+ * An instance is created by the owning workflow for each decision.
+ * </p>
+ */
+final class Track {
+
+	/**
+	 * A timed lap that may be run by two attempts at once.
+	 */
+	private final class HedgedLap {
+
+		/**
+		 * The first attempt.
+		 */
+		private TryCatch first;
+
+		/**
+		 * Waits for the hedge delay and holds the second attempt. Null if the
+		 * lap is not hedged.
+		 */
+		private TryCatch hedge;
+
+		private final int lapNum;
+
+		private final String name;
+
+		private final Settable<Status> result = new Settable<>();
+
+		/**
+		 * Attempts started that have not failed.
+		 */
+		private int running;
+
+		/**
+		 * Workflow clock time the lap started.
+		 */
+		private final long started;
+
+		HedgedLap(final String name, final int lapNum) {
+			this.name = name;
+			this.lapNum = lapNum;
+			this.started = Track.this.currentTimeMillis();
+		}
+
+		/**
+		 * Start the lap.
+		 *
+		 * @param delaySeconds
+		 *            delay before the second attempt, or -1 for none.
+		 *
+		 * @return promise to produce the result of the first attempt to
+		 *         finish.
+		 */
+		Promise<Status> start(final long delaySeconds) {
+
+			this.running = 1;
+			this.first = attempt(false);
+			if (delaySeconds >= 0) {
+				this.hedge = new TryCatch() {
+
+					@Override
+					protected void doCatch(final Throwable e) throws Throwable {
+						if (!(e instanceof CancellationException)
+								|| !HedgedLap.this.result.isReady()) {
+							throw e;
+						}
+					}
+
+					@Override
+					protected void doTry() throws Throwable {
+						hedgeAfter(Track.this.retries.timer(delaySeconds));
+					}
+
+				};
+			}
+			return this.result;
+
+		}
+
+		/**
+		 * Start an attempt. A failed attempt fails the lap only if no other
+		 * attempt is still running.
+		 *
+		 * @param hedged
+		 *            true for the second attempt.
+		 */
+		private TryCatch attempt(final boolean hedged) {
+
+			return new TryCatch() {
+
+				@Override
+				protected void doCatch(final Throwable e) throws Throwable {
+					HedgedLap.this.running = HedgedLap.this.running - 1;
+					if (!HedgedLap.this.result.isReady()
+							&& HedgedLap.this.running == 0) {
+						throw e;
+					}
+				}
+
+				@Override
+				protected void doTry() throws Throwable {
+
+					final Promise<Status> status;
+					if (hedged) {
+						status = Track.this.permits
+							.submit(new Retries.Attempt<Status>() {
+
+								@Override
+								Promise<Status> run() {
+									return runLap(HedgedLap.this.name,
+											HedgedLap.this.lapNum, 2);
+								}
+
+							});
+					} else {
+						status = runLap(HedgedLap.this.name,
+								HedgedLap.this.lapNum, 1);
+					}
+					finish(hedged, status);
+
+				}
+
+			};
+
+		}
+
+		/**
+		 * Take the result of the first attempt to finish and cancel the
+		 * other.
+		 */
+		@Asynchronous
+		private void finish(final boolean hedged, final Promise<Status> status) {
+
+			if (!this.result.isReady()) {
+				Track.this.recordLapTime(Track.this.currentTimeMillis()
+						- this.started);
+				this.result.set(status.get());
+				if (hedged) {
+					this.first.cancel(null);
+				} else if (this.hedge != null) {
+					this.hedge.cancel(null);
+				}
+			}
+
+		}
+
+		/**
+		 * Start the second attempt if the lap is still running once the hedge
+		 * delay has passed. The second attempt needs a permit of its own and
+		 * is skipped rather than queued behind other horses' laps if none is
+		 * free.
+		 */
+		@Asynchronous
+		private void hedgeAfter(final Promise<Void> delay) {
+
+			if (!this.result.isReady() && this.running > 0
+					&& Track.this.permits.isFree()) {
+				this.running = this.running + 1;
+				attempt(true);
+			}
+
+		}
+
+	}
+
+	/**
+	 * A horse activity that can be scheduled on the horse's partition or on
+	 * the shared task list.
+	 */
+	private abstract class Routed<T> {
+
+		/**
+		 * Schedule the activity once.
+		 *
+		 * @param options
+		 *            the partition task list and timeout.
+		 */
+		abstract Promise<T> onPartition(ActivitySchedulingOptions options);
+
+		/**
+		 * Schedule the activity, with retries, on the shared task list.
+		 *
+		 * @param failure
+		 *            why the attempt on the partition failed, or null if the
+		 *            activity did not go to a partition.
+		 */
+		abstract Promise<T> onShared(Throwable failure);
+
+	}
+
+	/**
+	 * Upper bound on laps run in one task. This keeps a batch within the start
+	 * to close timeout registered for {@link HorseActivities#runLaps}.
+	 */
+	static final int MAX_LAPS_PER_TASK = 20;
+
+	/**
+	 * Laps that must be timed before laps are hedged.
+	 */
+	private static final int HEDGE_MINIMUM_LAPS = 10;
+
+	/**
+	 * Number of recent lap times the hedge delay is taken from.
+	 */
+	private static final int HEDGE_WINDOW = 256;
+
+	/**
+	 * Schedule to start timeout of an attempt on a partition. This is how
+	 * long a horse waits for its partition before going to the shared task
+	 * list.
+	 */
+	static final long PARTITION_SCHEDULE_TO_START_SECONDS = 5;
+
+	/**
+	 * Limit a requested number of laps per task to what the horse activities
+	 * support.
+	 *
+	 * @param lapsPerTask
+	 *            requested laps per task.
+	 *
+	 * @return usable laps per task.
+	 */
+	static int lapsPerTask(final int lapsPerTask) {
+		return Math.min(Math.max(lapsPerTask, 1), MAX_LAPS_PER_TASK);
+	}
+
+	/**
+	 * Where to resume a lap from the details of a lost attempt.
+	 *
+	 * @param distance
+	 *            distance the lost attempt started from.
+	 *
+	 * @param details
+	 *            last heartbeat details of the attempt, the distance covered,
+	 *            null if it sent none.
+	 *
+	 * @return distance to resume from.
+	 */
+	private static int resumeDistance(final int distance, final String details) {
+
+		int rval = distance;
+		if (details != null) {
+			try {
+				rval = Math.min(Math.max(distance, Integer.parseInt(details)),
+						Lap.LENGTH_M);
+			} catch (final NumberFormatException e) {
+				/*
+				 * start over from where the attempt started.
+				 */
+			}
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Lap announcements go through the owning workflow's buffer.
+	 */
+	private final AnnouncementBuffer announcements;
+
+	private final DecisionContextProvider contexts = new DecisionContextProviderImpl();
+
+	/**
+	 * Percentile of lap times after which a lap is hedged, zero to never
+	 * hedge.
+	 */
+	private double hedgePercentile;
+
+	private final HorseActivitiesClient horses = new HorseActivitiesClientImpl();
+
+	/**
+	 * The most recent lap times in milliseconds, written round robin.
+	 */
+	private final long[] lapTimes = new long[HEDGE_WINDOW];
+
+	/**
+	 * Number of laps timed.
+	 */
+	private int lapsTimed;
+
+	/**
+	 * Number of horse task list partitions, zero to use only the shared task
+	 * list.
+	 */
+	private int partitions;
+
+	/**
+	 * Limits the horse activities outstanding at once.
+	 */
+	private final ActivityPermits permits = new ActivityPermits();
+
+	/**
+	 * Progress of the owning race, null if it is not kept.
+	 */
+	private RaceProgress progress;
+
+	/**
+	 * Retries of the owning workflow.
+	 */
+	private final Retries retries;
+
+	/**
+	 * Partition task lists that timed out waiting for a worker.
+	 */
+	private final Set<String> unhealthy = new HashSet<>();
+
+	Track(final AnnouncementBuffer announcements, final Retries retries) {
+		this.announcements = announcements;
+		this.retries = retries;
+	}
+
+	/**
+	 * Bring a horse to the gate.
+	 *
+	 * @param name
+	 *            name of the horse.
+	 *
+	 * @return promise to arrive.
+	 */
+	Promise<Void> arriveGate(final String name) {
+
+		return this.permits.submit(new Retries.Attempt<Void>() {
+
+			@Override
+			Promise<Void> run() {
+				return route(name, new Routed<Void>() {
+
+					@Override
+					Promise<Void> onPartition(
+							final ActivitySchedulingOptions options) {
+						return Track.this.horses.arriveGate(name, options);
+					}
+
+					@Override
+					Promise<Void> onShared(final Throwable failure) {
+						return arriveGateShared(name);
+					}
+
+				});
+			}
+
+		});
+
+	}
+
+	/**
+	 * Run one horse for a range of laps, announcing laps along the way.
+	 *
+	 * @param name
+	 *            name of horse to run.
+	 *
+	 * @param fromLap
+	 *            the first lap number to run.
+	 *
+	 * @param toLap
+	 *            the last lap number to run.
+	 *
+	 * @param lapsPerTask
+	 *            number of laps to run in each activity task. Use
+	 *            {@link #lapsPerTask(int)} to obtain a valid value.
+	 *
+	 * @param waitFor
+	 *            anonymous dependencies. The horse starts running only after
+	 *            these are ready.
+	 *
+	 * @return promise to produce the horse's status after the last lap.
+	 */
+	Promise<Status> run(final String name, final int fromLap,
+			final int toLap, final int lapsPerTask, final Promise<?>... waitFor) {
+
+		Promise<Status> horseRun = sync(Promise.asPromise(Status.OK), waitFor);
+		if (lapsPerTask == 1) {
+			for (int lapNum = fromLap; lapNum <= toLap; lapNum = lapNum + 1) {
+				horseRun = runLapIfOk(name, lapNum, horseRun);
+				horseRun = announceLapIfOk(name, lapNum, horseRun);
+			}
+		} else {
+			/*
+			 * Run laps in batches. Each batch is one activity task and one
+			 * announcement instead of one of each per lap.
+			 */
+			for (int first = fromLap; first <= toLap; first = first
+					+ lapsPerTask) {
+				final int last = Math.min(first + lapsPerTask - 1, toLap);
+				final Promise<List<Status>> batch = runLapsIfOk(name, first,
+						last, horseRun);
+				horseRun = announceLapsIfOk(name, first, batch);
+			}
+		}
+		return horseRun;
+
+	}
+
+	/**
+	 * Hedge single laps that run long.
+	 *
+	 * @param hedgePercentile
+	 *            percentile of lap times, above zero and up to 100, after
+	 *            which a second attempt is started. Zero never hedges.
+	 */
+	void setHedgePercentile(final double hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * Limit the horse activities outstanding at once. This must be called
+	 * before any horse is run.
+	 *
+	 * @param maxOutstanding
+	 *            maximum number of horse activities outstanding, zero for no
+	 *            limit.
+	 */
+	void setMaxOutstanding(final int maxOutstanding) {
+		this.permits.setLimit(maxOutstanding);
+	}
+
+	/**
+	 * Route horse activities to task list partitions.
+	 *
+	 * @param partitions
+	 *            number of partitions, zero to use only the shared task list.
+	 */
+	void setPartitions(final int partitions) {
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Record laps completed in the progress of the race.
+	 */
+	void setProgress(final RaceProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Queue a lap announcement in the announcement buffer.
+	 */
+	private Promise<Void> announceLap(final String name, final int lap) {
+		return this.announcements.add(Announcement.lap(name, lap));
+	}
+
+	/**
+	 * Announce a lap only if the result was OK.
+	 *
+	 * @param name
+	 *            horse name.
+	 *
+	 * @param lap
+	 *            lap number.
+	 *
+	 * @param result
+	 *            result of running lap.
+	 *
+	 * @param waitFor
+	 *            anonymous dependencies.
+	 *
+	 * @return the passed result.
+	 */
+	@Asynchronous
+	private Promise<Status> announceLapIfOk(final String name, final int lap,
+			final Promise<Status> result, final Promise<?>... waitFor) {
+
+		final Promise<Status> rval;
+		if (result.get() == Status.OK) {
+			lapped(name, lap);
+			rval = subst(result.get(), announceLap(name, lap));
+		} else {
+			rval = result;
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Announce the last lap completed in a batch of laps, if any.
+	 *
+	 * @param name
+	 *            horse name.
+	 *
+	 * @param fromLap
+	 *            lap number of the first result.
+	 *
+	 * @param results
+	 *            result of running a batch of laps. The last element is the
+	 *            status of the horse after the batch.
+	 *
+	 * @param waitFor
+	 *            anonymous dependencies.
+	 *
+	 * @return the status of the horse after the batch.
+	 */
+	@Asynchronous
+	private Promise<Status> announceLapsIfOk(final String name,
+			final int fromLap, final Promise<List<Status>> results,
+			final Promise<?>... waitFor) {
+
+		final List<Status> statuses = results.get();
+		final Status last = statuses.get(statuses.size() - 1);
+		final int okLaps = last == Status.OK ? statuses.size() : statuses
+				.size() - 1;
+
+		final Promise<Status> rval;
+		if (okLaps > 0) {
+			lapped(name, fromLap + okLaps - 1);
+			rval = subst(last, announceLap(name, fromLap + okLaps - 1));
+		} else {
+			rval = Promise.asPromise(last);
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Bring a horse to the gate on the shared task list, with retries.
+	 */
+	private Promise<Void> arriveGateShared(final String name) {
+
+		return this.retries.retry("arriveGate", new Retries.Attempt<Void>() {
+
+			@Override
+			Promise<Void> run() {
+				return Track.this.horses.arriveGate(name);
+			}
+
+		});
+
+	}
+
+	/**
+	 * Current time on the workflow clock.
+	 */
+	private long currentTimeMillis() {
+		return this.contexts.getDecisionContext().getWorkflowClock()
+			.currentTimeMillis();
+	}
+
+	/**
+	 * Delay before hedging a lap.
+	 *
+	 * @return seconds, at least one, or -1 if too few laps have been timed.
+	 */
+	private long hedgeDelaySeconds() {
+
+		final long rval;
+		if (this.lapsTimed < HEDGE_MINIMUM_LAPS) {
+			rval = -1;
+		} else {
+			final long[] times = Arrays.copyOf(this.lapTimes,
+					Math.min(this.lapsTimed, HEDGE_WINDOW));
+			Arrays.sort(times);
+			final int rank = (int) Math.ceil(this.hedgePercentile / 100
+					* times.length);
+			final int at = Math.min(Math.max(rank - 1, 0), times.length - 1);
+			rval = Math.max((times[at] + 999) / 1000, 1);
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Record a lap completed by a horse.
+	 */
+	private void lapped(final String name, final int lap) {
+		if (this.progress != null) {
+			this.progress.horseLapped(name, lap);
+		}
+	}
+
+	/**
+	 * Add a lap time to those the hedge delay is taken from.
+	 */
+	private void recordLapTime(final long millis) {
+		this.lapTimes[this.lapsTimed % HEDGE_WINDOW] = millis;
+		this.lapsTimed = this.lapsTimed + 1;
+	}
+
+	/**
+	 * Run a lap on the shared task list from a distance.
+	 *
+	 * @param name
+	 *            name of horse to run.
+	 *
+	 * @param lapNum
+	 *            the lap number to run.
+	 *
+	 * @param distance
+	 *            metres of the lap already covered.
+	 *
+	 * @param attempt
+	 *            attempt number, from 1.
+	 *
+	 * @return the result of running the lap.
+	 */
+	private Promise<Status> resumeLap(final String name, final int lapNum,
+			final int distance, final int attempt) {
+
+		final Settable<Status> rval = new Settable<>();
+		new TryCatch() {
+
+			@Override
+			protected void doCatch(final Throwable e) throws Throwable {
+
+				if (!(e instanceof ActivityTaskException)) {
+					throw e;
+				}
+				final long delay = Track.this.retries.nextDelaySeconds(
+						"runLap", attempt);
+				if (delay < 0) {
+					throw e;
+				}
+				ActivityTaskTimeoutType timeout = null;
+				String details = null;
+				if (e instanceof ActivityTaskTimedOutException) {
+					timeout = ((ActivityTaskTimedOutException) e)
+						.getTimeoutType();
+					details = ((ActivityTaskTimedOutException) e).getDetails();
+				}
+				if (timeout == ActivityTaskTimeoutType.HEARTBEAT
+						|| timeout == ActivityTaskTimeoutType.START_TO_CLOSE) {
+					/*
+					 * the worker was lost, pick up where it left off.
+					 */
+					rval.chain(resumeLap(name, lapNum, resumeDistance(distance,
+							details), attempt + 1));
+				} else {
+					rval.chain(resumeLapAfter(name, lapNum, distance,
+							attempt + 1, Track.this.retries.timer(delay)));
+				}
+
+			}
+
+			@Override
+			protected void doTry() throws Throwable {
+				rval.chain(Track.this.horses.runLapFrom(name, lapNum, distance));
+			}
+
+		};
+		return rval;
+
+	}
+
+	/**
+	 * Run a lap from a distance once a retry delay has passed.
+	 */
+	@Asynchronous
+	private Promise<Status> resumeLapAfter(final String name,
+			final int lapNum, final int distance, final int attempt,
+			final Promise<Void> delay) {
+		return resumeLap(name, lapNum, distance, attempt);
+	}
+
+	/**
+	 * Schedule a horse activity on the horse's partition, falling back to the
+	 * shared task list if the attempt fails.
+	 *
+	 * @param name
+	 *            name of the horse.
+	 *
+	 * @param activity
+	 *            the activity.
+	 *
+	 * @return promise to produce the activity result.
+	 */
+	private <T> Promise<T> route(final String name, final Routed<T> activity) {
+
+		final String taskList = this.partitions > 0 ? HorsePartitions
+			.taskList(HorsePartitions.partition(name, this.partitions)) : null;
+
+		final Promise<T> rval;
+		if (taskList == null || this.unhealthy.contains(taskList)) {
+			rval = activity.onShared(null);
+		} else {
+			final Settable<T> result = new Settable<>();
+			new TryCatch() {
+
+				@Override
+				protected void doCatch(final Throwable e) throws Throwable {
+					if (!(e instanceof ActivityTaskException)) {
+						throw e;
+					}
+					if (e instanceof ActivityTaskTimedOutException
+							&& ((ActivityTaskTimedOutException) e)
+								.getTimeoutType() == ActivityTaskTimeoutType.SCHEDULE_TO_START) {
+						Track.this.unhealthy.add(taskList);
+					}
+					result.chain(activity.onShared(e));
+				}
+
+				@Override
+				protected void doTry() throws Throwable {
+					result.chain(activity
+						.onPartition(new ActivitySchedulingOptions()
+							.withTaskList(taskList)
+							.withScheduleToStartTimeoutSeconds(
+									PARTITION_SCHEDULE_TO_START_SECONDS)));
+				}
+
+			};
+			rval = result;
+		}
+		return rval;
+
+	}
+
+	/**
+	 * Run one lap on the horse's task list.
+	 *
+	 * @param name
+	 *            name of horse to run.
+	 *
+	 * @param lapNum
+	 *            the lap number to run.
+	 *
+	 * @param attempt
+	 *            attempt number, from 1.
+	 *
+	 * @return the result of running the lap.
+	 */
+	private Promise<Status> runLap(final String name, final int lapNum,
+			final int attempt) {
+
+		return route(name, new Routed<Status>() {
+
+			@Override
+			Promise<Status> onPartition(final ActivitySchedulingOptions options) {
+				return Track.this.horses.runLapFrom(name, lapNum, 0, options);
+			}
+
+			@Override
+			Promise<Status> onShared(final Throwable failure) {
+
+				/*
+				 * a lap lost on the partition is picked up where it left off
+				 * and counts against the same retries.
+				 */
+				final Promise<Status> rval;
+				if (failure == null) {
+					rval = resumeLap(name, lapNum, 0, attempt);
+				} else if (failure instanceof ActivityTaskTimedOutException) {
+					rval = resumeLap(name, lapNum, resumeDistance(0,
+							((ActivityTaskTimedOutException) failure)
+								.getDetails()), attempt + 1);
+				} else {
+					rval = resumeLap(name, lapNum, 0, attempt + 1);
+				}
+				return rval;
+
+			}
+
+		});
+
+	}
+
+	/**
+	 * Run one lap if not injured.
+	 *
+	 * @param name
+	 *            name of horse to run.
+	 *
+	 * @param lapNum
+	 *            the lap number to run.
+	 *
+	 * @param prevStatus
+	 *            previous lap run status.
+	 *
+	 * @param waitFor
+	 *            anonymous dependencies.
+	 *
+	 * @return the result of running one lap or the previous lap result.
+	 */
+	@Asynchronous
+	private Promise<Status> runLapIfOk(final String name, final int lapNum,
+			final Promise<Status> prevStatus, final Promise<?>... waitFor) {
+
+		if (prevStatus.get() == Status.OK) {
+			/*
+			 * horse is ok, run it.
+			 */
+			return this.permits.submit(new Retries.Attempt<Status>() {
+
+				@Override
+				Promise<Status> run() {
+					final long delay = Track.this.hedgePercentile > 0
+							? hedgeDelaySeconds() : -1;
+					return new HedgedLap(name, lapNum).start(delay);
+				}
+
+			});
+		} else {
+			/*
+			 * something wrong, do not run.
+			 */
+			return prevStatus;
+		}
+
+	}
+
+	/**
+	 * Run a batch of laps if not injured.
+	 *
+	 * @param name
+	 *            name of horse to run.
+	 *
+	 * @param fromLap
+	 *            the first lap number to run.
+	 *
+	 * @param toLap
+	 *            the last lap number to run.
+	 *
+	 * @param prevStatus
+	 *            status after the previous batch.
+	 *
+	 * @param waitFor
+	 *            anonymous dependencies.
+	 *
+	 * @return the result of running the batch or, if the horse cannot run, a
+	 *         single element list holding the previous status.
+	 */
+	@Asynchronous
+	private Promise<List<Status>> runLapsIfOk(final String name,
+			final int fromLap, final int toLap,
+			final Promise<Status> prevStatus, final Promise<?>... waitFor) {
+
+		if (prevStatus.get() == Status.OK) {
+			return this.permits.submit(new Retries.Attempt<List<Status>>() {
+
+				@Override
+				Promise<List<Status>> run() {
+					return route(name, new Routed<List<Status>>() {
+
+						@Override
+						Promise<List<Status>> onPartition(
+								final ActivitySchedulingOptions options) {
+							return Track.this.horses.runLaps(name, fromLap,
+									toLap, options);
+						}
+
+						@Override
+						Promise<List<Status>> onShared(
+								final Throwable failure) {
+							return runLapsShared(name, fromLap, toLap);
+						}
+
+					});
+				}
+
+			});
+		} else {
+			return Promise.asPromise(Collections.singletonList(prevStatus
+					.get()));
+		}
+
+	}
+
+	/**
+	 * Run a batch of laps on the shared task list, with retries.
+	 */
+	private Promise<List<Status>> runLapsShared(final String name,
+			final int fromLap, final int toLap) {
+
+		return this.retries.retry("runLaps",
+				new Retries.Attempt<List<Status>>() {
+
+					@Override
+					Promise<List<Status>> run() {
+						return Track.this.horses.runLaps(name, fromLap, toLap);
+					}
+
+				});
+
+	}
+
+}
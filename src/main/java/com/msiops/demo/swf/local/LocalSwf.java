@@ -0,0 +1,1825 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf.local;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.model.ActivityTask;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskCancelRequestedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskCanceledEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskCompletedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskScheduledEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskStartedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskStatus;
+import com.amazonaws.services.simpleworkflow.model.ActivityTaskTimedOutEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ActivityType;
+import com.amazonaws.services.simpleworkflow.model.ActivityTypeConfiguration;
+import com.amazonaws.services.simpleworkflow.model.ActivityTypeDetail;
+import com.amazonaws.services.simpleworkflow.model.ActivityTypeInfo;
+import com.amazonaws.services.simpleworkflow.model.CancelTimerFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.CancelWorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ChildWorkflowExecutionCanceledEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ChildWorkflowExecutionCompletedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ChildWorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ChildWorkflowExecutionStartedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ChildWorkflowExecutionTerminatedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ChildWorkflowExecutionTimedOutEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.CompleteWorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ContinueAsNewWorkflowExecutionDecisionAttributes;
+import com.amazonaws.services.simpleworkflow.model.ContinueAsNewWorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.Decision;
+import com.amazonaws.services.simpleworkflow.model.DecisionTask;
+import com.amazonaws.services.simpleworkflow.model.DecisionTaskCompletedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.DecisionTaskScheduledEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.DecisionTaskStartedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.DecisionTaskTimedOutEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.DecisionType;
+import com.amazonaws.services.simpleworkflow.model.DescribeActivityTypeRequest;
+import com.amazonaws.services.simpleworkflow.model.DescribeWorkflowExecutionRequest;
+import com.amazonaws.services.simpleworkflow.model.DescribeWorkflowTypeRequest;
+import com.amazonaws.services.simpleworkflow.model.EventType;
+import com.amazonaws.services.simpleworkflow.model.ExternalWorkflowExecutionCancelRequestedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.ExternalWorkflowExecutionSignaledEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.FailWorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.GetWorkflowExecutionHistoryRequest;
+import com.amazonaws.services.simpleworkflow.model.History;
+import com.amazonaws.services.simpleworkflow.model.HistoryEvent;
+import com.amazonaws.services.simpleworkflow.model.MarkerRecordedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.PollForActivityTaskRequest;
+import com.amazonaws.services.simpleworkflow.model.PollForDecisionTaskRequest;
+import com.amazonaws.services.simpleworkflow.model.RecordActivityTaskHeartbeatRequest;
+import com.amazonaws.services.simpleworkflow.model.RegisterActivityTypeRequest;
+import com.amazonaws.services.simpleworkflow.model.RegisterWorkflowTypeRequest;
+import com.amazonaws.services.simpleworkflow.model.RequestCancelExternalWorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.RequestCancelExternalWorkflowExecutionInitiatedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.RequestCancelWorkflowExecutionRequest;
+import com.amazonaws.services.simpleworkflow.model.RespondActivityTaskCanceledRequest;
+import com.amazonaws.services.simpleworkflow.model.RespondActivityTaskCompletedRequest;
+import com.amazonaws.services.simpleworkflow.model.RespondActivityTaskFailedRequest;
+import com.amazonaws.services.simpleworkflow.model.RespondDecisionTaskCompletedRequest;
+import com.amazonaws.services.simpleworkflow.model.Run;
+import com.amazonaws.services.simpleworkflow.model.ScheduleActivityTaskDecisionAttributes;
+import com.amazonaws.services.simpleworkflow.model.ScheduleActivityTaskFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.SignalExternalWorkflowExecutionDecisionAttributes;
+import com.amazonaws.services.simpleworkflow.model.SignalExternalWorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.SignalExternalWorkflowExecutionInitiatedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.SignalWorkflowExecutionRequest;
+import com.amazonaws.services.simpleworkflow.model.StartChildWorkflowExecutionDecisionAttributes;
+import com.amazonaws.services.simpleworkflow.model.StartChildWorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.StartChildWorkflowExecutionInitiatedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.StartTimerDecisionAttributes;
+import com.amazonaws.services.simpleworkflow.model.StartTimerFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.StartWorkflowExecutionRequest;
+import com.amazonaws.services.simpleworkflow.model.TaskList;
+import com.amazonaws.services.simpleworkflow.model.TerminateWorkflowExecutionRequest;
+import com.amazonaws.services.simpleworkflow.model.TimerCanceledEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.TimerFiredEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.TimerStartedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.UnknownResourceException;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecution;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionAlreadyStartedException;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionCancelRequestedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionCanceledEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionCompletedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionConfiguration;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionContinuedAsNewEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionDetail;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionFailedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionInfo;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionOpenCounts;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionSignaledEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionStartedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionTerminatedEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowExecutionTimedOutEventAttributes;
+import com.amazonaws.services.simpleworkflow.model.WorkflowType;
+import com.amazonaws.services.simpleworkflow.model.WorkflowTypeConfiguration;
+import com.amazonaws.services.simpleworkflow.model.WorkflowTypeDetail;
+import com.amazonaws.services.simpleworkflow.model.WorkflowTypeInfo;
+
+/**
+ * <p>
+ * In-process stand-in for the SWF service. It keeps workflow histories, the
+ * decision and activity task queues, activity and workflow timeouts, timers,
+ * signals, child workflows and continue-as-new in memory. Flow framework
+ * workers and generated clients are pointed at {@link #client()} instead of an
+ * {@code AmazonSimpleWorkflowClient} and run unchanged, so deciders replay
+ * real histories and retries run on real timers.
+ * </p>
+ * <p>
+ * This is for load and integration testing. Domains are not validated, child
+ * policies are not applied, visibility (list and count) calls return empty
+ * results and long polls time out after {@link #LocalSwf(long)} milliseconds.
+ * Closed executions are retained for {@link #describe} and history calls up
+ * to a fixed number, oldest first out.
+ * </p>
+ * <p>
+ * All state is guarded by this instance's monitor. Long polls wait on the
+ * task queues outside of it.
+ * </p>
+ */
+public final class LocalSwf {
+
+	/**
+	 * Notified when a workflow execution closes. Called while the engine is
+	 * locked so it must be quick and must not call back into the engine.
+	 */
+	public interface CloseListener {
+
+		/**
+		 * An execution closed. This is not called for an execution that
+		 * continued as new.
+		 *
+		 * @param info
+		 *            the closed execution.
+		 */
+		void closed(WorkflowExecutionInfo info);
+
+	}
+
+	/**
+	 * A scheduled activity task.
+	 */
+	private static final class Activity {
+
+		String activityId;
+
+		long cancelRequestedEventId;
+
+		Execution exec;
+
+		long heartbeatGeneration;
+
+		String heartbeatDetails;
+
+		String heartbeatTimeout;
+
+		String input;
+
+		long scheduledEventId;
+
+		String scheduleToCloseTimeout;
+
+		String scheduleToStartTimeout;
+
+		long startedEventId;
+
+		String startToCloseTimeout;
+
+		final List<ScheduledFuture<?>> timers = new ArrayList<>();
+
+		String token;
+
+		ActivityType type;
+
+	}
+
+	/**
+	 * A workflow execution, open or closed.
+	 */
+	private static final class Execution {
+
+		final Map<String, Activity> activities = new HashMap<>();
+
+		String childPolicy;
+
+		Date closed;
+
+		String closeStatus;
+
+		/**
+		 * Thread CPU time when the current decision task started, or -1 if
+		 * unknown.
+		 */
+		long decisionCpuStart = -1;
+
+		/**
+		 * Set when events arrive while a decision task is started.
+		 */
+		boolean decisionPending;
+
+		long decisionScheduledEventId;
+
+		long decisionStartedEventId;
+
+		/**
+		 * Thread that started the current decision task.
+		 */
+		long decisionThread;
+
+		ScheduledFuture<?> decisionTimer;
+
+		String domain;
+
+		WorkflowExecution execution;
+
+		String executionContext;
+
+		String executionStartToCloseTimeout;
+
+		final List<HistoryEvent> history = new ArrayList<>();
+
+		Execution parent;
+
+		long parentInitiatedEventId;
+
+		long parentStartedEventId;
+
+		long previousStartedEventId;
+
+		Date started;
+
+		List<String> tagList;
+
+		String taskList;
+
+		String taskStartToCloseTimeout;
+
+		ScheduledFuture<?> timeout;
+
+		final Map<String, Timer> timers = new HashMap<>();
+
+		WorkflowType type;
+
+	}
+
+	/**
+	 * A started timer.
+	 */
+	private static final class Timer {
+
+		ScheduledFuture<?> future;
+
+		long startedEventId;
+
+		String timerId;
+
+	}
+
+	private static final long DEFAULT_POLL_TIMEOUT_MS = 5000;
+
+	private static final int RETAINED_CLOSED = 10000;
+
+	private static String key(final String domain, final String name,
+			final String version) {
+		return domain + "/" + name + "/" + version;
+	}
+
+	/**
+	 * Convert an SWF duration to seconds.
+	 *
+	 * @param duration
+	 *            number of seconds or "NONE".
+	 *
+	 * @return seconds or -1 if there is no limit.
+	 */
+	private static long seconds(final String duration) {
+		return duration == null || "NONE".equals(duration) ? -1 : Long
+				.parseLong(duration);
+	}
+
+	private final ConcurrentMap<String, BlockingQueue<String>> activityQueues = new ConcurrentHashMap<>();
+
+	private final AtomicLong activityTasksCompleted = new AtomicLong();
+
+	private final Map<String, RegisterActivityTypeRequest> activityTypes = new HashMap<>();
+
+	/**
+	 * Activities by task token.
+	 */
+	private final Map<String, Activity> activities = new HashMap<>();
+
+	/**
+	 * Recently closed executions by run id.
+	 */
+	private final Map<String, Execution> closed = new LinkedHashMap<String, Execution>() {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, Execution> eldest) {
+			return size() > RETAINED_CLOSED;
+		}
+
+	};
+
+	private final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+	private final AtomicLong deciderCpuNanos = new AtomicLong();
+
+	private final ConcurrentMap<String, BlockingQueue<String>> decisionQueues = new ConcurrentHashMap<>();
+
+	private final AtomicLong decisionTasksCompleted = new AtomicLong();
+
+	private CloseListener listener;
+
+	/**
+	 * Open executions by workflow id.
+	 */
+	private final Map<String, Execution> open = new HashMap<>();
+
+	/**
+	 * Open executions by run id.
+	 */
+	private final Map<String, Execution> openRuns = new HashMap<>();
+
+	private final long pollTimeoutNanos;
+
+	private long seq;
+
+	private final ScheduledExecutorService timerService = Executors
+		.newSingleThreadScheduledExecutor();
+
+	private final Map<String, RegisterWorkflowTypeRequest> workflowTypes = new HashMap<>();
+
+	public LocalSwf() {
+		this(DEFAULT_POLL_TIMEOUT_MS);
+	}
+
+	/**
+	 * Create an engine.
+	 *
+	 * @param pollTimeoutMs
+	 *            how long a poll waits for a task before returning an empty
+	 *            one.
+	 */
+	public LocalSwf(final long pollTimeoutMs) {
+		this.pollTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(pollTimeoutMs);
+	}
+
+	/**
+	 * A client backed by this engine. Calls the engine does not implement
+	 * return an empty result.
+	 *
+	 * @return the client.
+	 */
+	public AmazonSimpleWorkflow client() {
+
+		return (AmazonSimpleWorkflow) Proxy.newProxyInstance(
+				AmazonSimpleWorkflow.class.getClassLoader(),
+				new Class<?>[] { AmazonSimpleWorkflow.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args) {
+						return dispatch(proxy, method, args);
+					}
+
+				});
+
+	}
+
+	/**
+	 * @return number of activity tasks closed by a worker response.
+	 */
+	public long getActivityTasksCompleted() {
+		return this.activityTasksCompleted.get();
+	}
+
+	/**
+	 * @return CPU time spent by decider threads between receiving a decision
+	 *         task and responding to it.
+	 */
+	public long getDeciderCpuNanos() {
+		return this.deciderCpuNanos.get();
+	}
+
+	/**
+	 * @return number of decision tasks completed.
+	 */
+	public long getDecisionTasksCompleted() {
+		return this.decisionTasksCompleted.get();
+	}
+
+	/**
+	 * @return number of open workflow executions.
+	 */
+	public synchronized int getOpenExecutions() {
+		return this.open.size();
+	}
+
+	public synchronized void setCloseListener(final CloseListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Stop the timers. Open executions remain open.
+	 */
+	public void shutdown() {
+		this.timerService.shutdownNow();
+	}
+
+	private synchronized void activityTimedOut(final Activity act,
+			final String timeoutType, final long heartbeatGeneration) {
+
+		if (this.activities.get(act.token) != act
+				|| heartbeatGeneration != act.heartbeatGeneration) {
+			/*
+			 * already closed or heartbeat since.
+			 */
+			return;
+		}
+		if ("SCHEDULE_TO_START".equals(timeoutType) && act.startedEventId != 0) {
+			return;
+		}
+
+		append(act.exec, EventType.ActivityTaskTimedOut)
+			.setActivityTaskTimedOutEventAttributes(
+					new ActivityTaskTimedOutEventAttributes()
+						.withTimeoutType(timeoutType)
+						.withScheduledEventId(act.scheduledEventId)
+						.withStartedEventId(act.startedEventId)
+						.withDetails(act.heartbeatDetails));
+		closeActivity(act);
+		decisionNeeded(act.exec);
+
+	}
+
+	private HistoryEvent append(final Execution exec, final EventType type) {
+
+		final HistoryEvent rval = new HistoryEvent();
+		rval.setEventId((long) exec.history.size() + 1);
+		rval.setEventTimestamp(new Date());
+		rval.setEventType(type.toString());
+		exec.history.add(rval);
+		return rval;
+
+	}
+
+	private void close(final Execution exec, final String closeStatus) {
+
+		exec.closed = new Date();
+		exec.closeStatus = closeStatus;
+
+		if (this.open.get(exec.execution.getWorkflowId()) == exec) {
+			this.open.remove(exec.execution.getWorkflowId());
+		}
+		this.openRuns.remove(exec.execution.getRunId());
+		this.closed.put(exec.execution.getRunId(), exec);
+
+		for (final Activity act : new ArrayList<>(exec.activities.values())) {
+			closeActivity(act);
+		}
+		for (final Timer t : exec.timers.values()) {
+			t.future.cancel(false);
+		}
+		exec.timers.clear();
+		if (exec.timeout != null) {
+			exec.timeout.cancel(false);
+		}
+		if (exec.decisionTimer != null) {
+			exec.decisionTimer.cancel(false);
+		}
+
+		if (exec.parent == null && !"CONTINUED_AS_NEW".equals(closeStatus)
+				&& this.listener != null) {
+			this.listener.closed(info(exec));
+		}
+
+	}
+
+	private void closeActivity(final Activity act) {
+
+		this.activities.remove(act.token);
+		act.exec.activities.remove(act.activityId);
+		for (final ScheduledFuture<?> f : act.timers) {
+			f.cancel(false);
+		}
+		act.timers.clear();
+
+	}
+
+	private void decide(final Execution exec, final Decision d,
+			final long completedId, final boolean pending) {
+
+		final DecisionType type = DecisionType.fromValue(d.getDecisionType());
+		switch (type) {
+		case ScheduleActivityTask:
+			scheduleActivity(exec, d.getScheduleActivityTaskDecisionAttributes(),
+					completedId);
+			break;
+		case RequestCancelActivityTask: {
+			final String activityId = d
+				.getRequestCancelActivityTaskDecisionAttributes()
+				.getActivityId();
+			final Activity act = exec.activities.get(activityId);
+			final HistoryEvent e = append(exec,
+					EventType.ActivityTaskCancelRequested);
+			e.setActivityTaskCancelRequestedEventAttributes(new ActivityTaskCancelRequestedEventAttributes()
+				.withActivityId(activityId)
+				.withDecisionTaskCompletedEventId(completedId));
+			if (act != null) {
+				act.cancelRequestedEventId = e.getEventId();
+				if (act.startedEventId == 0) {
+					append(exec, EventType.ActivityTaskCanceled)
+						.setActivityTaskCanceledEventAttributes(
+								new ActivityTaskCanceledEventAttributes()
+									.withScheduledEventId(act.scheduledEventId)
+									.withLatestCancelRequestedEventId(
+											e.getEventId()));
+					closeActivity(act);
+					decisionNeeded(exec);
+				}
+			}
+			break;
+		}
+		case StartTimer:
+			startTimer(exec, d.getStartTimerDecisionAttributes(), completedId);
+			break;
+		case CancelTimer: {
+			final String timerId = d.getCancelTimerDecisionAttributes()
+				.getTimerId();
+			final Timer t = exec.timers.remove(timerId);
+			if (t == null) {
+				append(exec, EventType.CancelTimerFailed)
+					.setCancelTimerFailedEventAttributes(
+							new CancelTimerFailedEventAttributes()
+								.withTimerId(timerId)
+								.withCause("TIMER_ID_UNKNOWN")
+								.withDecisionTaskCompletedEventId(completedId));
+				decisionNeeded(exec);
+			} else {
+				t.future.cancel(false);
+				append(exec, EventType.TimerCanceled)
+					.setTimerCanceledEventAttributes(
+							new TimerCanceledEventAttributes()
+								.withTimerId(timerId)
+								.withStartedEventId(t.startedEventId)
+								.withDecisionTaskCompletedEventId(completedId));
+			}
+			break;
+		}
+		case RecordMarker:
+			append(exec, EventType.MarkerRecorded)
+				.setMarkerRecordedEventAttributes(
+						new MarkerRecordedEventAttributes()
+							.withMarkerName(
+									d.getRecordMarkerDecisionAttributes()
+										.getMarkerName())
+							.withDetails(
+									d.getRecordMarkerDecisionAttributes()
+										.getDetails())
+							.withDecisionTaskCompletedEventId(completedId));
+			break;
+		case StartChildWorkflowExecution:
+			startChild(exec,
+					d.getStartChildWorkflowExecutionDecisionAttributes(),
+					completedId);
+			break;
+		case SignalExternalWorkflowExecution:
+			signalExternal(exec,
+					d.getSignalExternalWorkflowExecutionDecisionAttributes(),
+					completedId);
+			break;
+		case RequestCancelExternalWorkflowExecution: {
+			final String workflowId = d
+				.getRequestCancelExternalWorkflowExecutionDecisionAttributes()
+				.getWorkflowId();
+			final String runId = d
+				.getRequestCancelExternalWorkflowExecutionDecisionAttributes()
+				.getRunId();
+			final String control = d
+				.getRequestCancelExternalWorkflowExecutionDecisionAttributes()
+				.getControl();
+			final HistoryEvent init = append(exec,
+					EventType.RequestCancelExternalWorkflowExecutionInitiated);
+			init.setRequestCancelExternalWorkflowExecutionInitiatedEventAttributes(new RequestCancelExternalWorkflowExecutionInitiatedEventAttributes()
+				.withWorkflowId(workflowId)
+				.withRunId(runId)
+				.withControl(control)
+				.withDecisionTaskCompletedEventId(completedId));
+			final Execution target = find(workflowId, runId);
+			if (target == null) {
+				append(exec,
+						EventType.RequestCancelExternalWorkflowExecutionFailed)
+					.setRequestCancelExternalWorkflowExecutionFailedEventAttributes(
+							new RequestCancelExternalWorkflowExecutionFailedEventAttributes()
+								.withWorkflowId(workflowId)
+								.withRunId(runId)
+								.withCause(
+										"UNKNOWN_EXTERNAL_WORKFLOW_EXECUTION")
+								.withInitiatedEventId(init.getEventId())
+								.withDecisionTaskCompletedEventId(completedId)
+								.withControl(control));
+			} else {
+				append(target, EventType.WorkflowExecutionCancelRequested)
+					.setWorkflowExecutionCancelRequestedEventAttributes(
+							new WorkflowExecutionCancelRequestedEventAttributes()
+								.withExternalWorkflowExecution(exec.execution)
+								.withExternalInitiatedEventId(
+										init.getEventId()));
+				decisionNeeded(target);
+				append(exec, EventType.ExternalWorkflowExecutionCancelRequested)
+					.setExternalWorkflowExecutionCancelRequestedEventAttributes(
+							new ExternalWorkflowExecutionCancelRequestedEventAttributes()
+								.withWorkflowExecution(target.execution)
+								.withInitiatedEventId(init.getEventId()));
+			}
+			decisionNeeded(exec);
+			break;
+		}
+		case CompleteWorkflowExecution:
+			if (pending) {
+				append(exec, EventType.CompleteWorkflowExecutionFailed)
+					.setCompleteWorkflowExecutionFailedEventAttributes(
+							new CompleteWorkflowExecutionFailedEventAttributes()
+								.withCause("UNHANDLED_DECISION")
+								.withDecisionTaskCompletedEventId(completedId));
+			} else {
+				final String result = d
+					.getCompleteWorkflowExecutionDecisionAttributes()
+					.getResult();
+				append(exec, EventType.WorkflowExecutionCompleted)
+					.setWorkflowExecutionCompletedEventAttributes(
+							new WorkflowExecutionCompletedEventAttributes()
+								.withResult(result)
+								.withDecisionTaskCompletedEventId(completedId));
+				close(exec, "COMPLETED");
+				notifyParent(exec, result, null, null, null);
+			}
+			break;
+		case FailWorkflowExecution:
+			if (pending) {
+				append(exec, EventType.FailWorkflowExecutionFailed)
+					.setFailWorkflowExecutionFailedEventAttributes(
+							new FailWorkflowExecutionFailedEventAttributes()
+								.withCause("UNHANDLED_DECISION")
+								.withDecisionTaskCompletedEventId(completedId));
+			} else {
+				final String reason = d
+					.getFailWorkflowExecutionDecisionAttributes().getReason();
+				final String details = d
+					.getFailWorkflowExecutionDecisionAttributes().getDetails();
+				append(exec, EventType.WorkflowExecutionFailed)
+					.setWorkflowExecutionFailedEventAttributes(
+							new WorkflowExecutionFailedEventAttributes()
+								.withReason(reason)
+								.withDetails(details)
+								.withDecisionTaskCompletedEventId(completedId));
+				close(exec, "FAILED");
+				notifyParent(exec, null, reason, details, null);
+			}
+			break;
+		case CancelWorkflowExecution:
+			if (pending) {
+				append(exec, EventType.CancelWorkflowExecutionFailed)
+					.setCancelWorkflowExecutionFailedEventAttributes(
+							new CancelWorkflowExecutionFailedEventAttributes()
+								.withCause("UNHANDLED_DECISION")
+								.withDecisionTaskCompletedEventId(completedId));
+			} else {
+				final String details = d
+					.getCancelWorkflowExecutionDecisionAttributes()
+					.getDetails();
+				append(exec, EventType.WorkflowExecutionCanceled)
+					.setWorkflowExecutionCanceledEventAttributes(
+							new WorkflowExecutionCanceledEventAttributes()
+								.withDetails(details)
+								.withDecisionTaskCompletedEventId(completedId));
+				close(exec, "CANCELED");
+				notifyParent(exec, null, null, details, null);
+			}
+			break;
+		case ContinueAsNewWorkflowExecution:
+			if (pending) {
+				append(exec, EventType.ContinueAsNewWorkflowExecutionFailed)
+					.setContinueAsNewWorkflowExecutionFailedEventAttributes(
+							new ContinueAsNewWorkflowExecutionFailedEventAttributes()
+								.withCause("UNHANDLED_DECISION")
+								.withDecisionTaskCompletedEventId(completedId));
+			} else {
+				continueAsNew(exec,
+						d.getContinueAsNewWorkflowExecutionDecisionAttributes(),
+						completedId);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported decision "
+					+ d.getDecisionType());
+		}
+
+	}
+
+	private void continueAsNew(final Execution exec,
+			final ContinueAsNewWorkflowExecutionDecisionAttributes a,
+			final long completedId) {
+
+		final HistoryEvent e = append(exec,
+				EventType.WorkflowExecutionContinuedAsNew);
+		close(exec, "CONTINUED_AS_NEW");
+
+		final WorkflowType type = new WorkflowType().withName(
+				exec.type.getName()).withVersion(
+				a.getWorkflowTypeVersion() == null ? exec.type.getVersion()
+						: a.getWorkflowTypeVersion());
+		final Execution next = startExecution(exec.domain, exec.execution
+			.getWorkflowId(), type, a.getTaskList() == null ? null : a
+			.getTaskList().getName(), a.getInput(),
+				a.getExecutionStartToCloseTimeout(),
+				a.getTaskStartToCloseTimeout(), a.getChildPolicy(),
+				a.getTagList(), exec.parent, exec.parentInitiatedEventId,
+				exec.execution.getRunId());
+		next.parentStartedEventId = exec.parentStartedEventId;
+
+		e.setWorkflowExecutionContinuedAsNewEventAttributes(new WorkflowExecutionContinuedAsNewEventAttributes()
+			.withInput(a.getInput())
+			.withDecisionTaskCompletedEventId(completedId)
+			.withNewExecutionRunId(next.execution.getRunId())
+			.withExecutionStartToCloseTimeout(
+					next.executionStartToCloseTimeout)
+			.withTaskList(new TaskList().withName(next.taskList))
+			.withTaskStartToCloseTimeout(next.taskStartToCloseTimeout)
+			.withChildPolicy(next.childPolicy)
+			.withTagList(next.tagList)
+			.withWorkflowType(type));
+
+	}
+
+	private synchronized void decisionTimedOut(final Execution exec,
+			final long startedEventId) {
+
+		if (exec.closed != null || exec.decisionStartedEventId != startedEventId) {
+			return;
+		}
+		append(exec, EventType.DecisionTaskTimedOut)
+			.setDecisionTaskTimedOutEventAttributes(
+					new DecisionTaskTimedOutEventAttributes()
+						.withTimeoutType("START_TO_CLOSE")
+						.withScheduledEventId(exec.decisionScheduledEventId)
+						.withStartedEventId(startedEventId));
+		exec.decisionScheduledEventId = 0;
+		exec.decisionStartedEventId = 0;
+		exec.decisionPending = false;
+		decisionNeeded(exec);
+
+	}
+
+	/**
+	 * Schedule a decision task unless one is already scheduled. If one is
+	 * started, another is scheduled when it completes.
+	 */
+	private void decisionNeeded(final Execution exec) {
+
+		if (exec.closed != null) {
+			return;
+		}
+		if (exec.decisionStartedEventId != 0) {
+			exec.decisionPending = true;
+			return;
+		}
+		if (exec.decisionScheduledEventId != 0) {
+			return;
+		}
+		final HistoryEvent e = append(exec, EventType.DecisionTaskScheduled);
+		e.setDecisionTaskScheduledEventAttributes(new DecisionTaskScheduledEventAttributes()
+			.withTaskList(new TaskList().withName(exec.taskList))
+			.withStartToCloseTimeout(exec.taskStartToCloseTimeout));
+		exec.decisionScheduledEventId = e.getEventId();
+		queue(this.decisionQueues, exec.domain, exec.taskList).add(
+				exec.execution.getRunId());
+
+	}
+
+	private synchronized ActivityTypeDetail describeActivityType(
+			final DescribeActivityTypeRequest request) {
+
+		final RegisterActivityTypeRequest r = this.activityTypes.get(key(
+				request.getDomain(), request.getActivityType().getName(),
+				request.getActivityType().getVersion()));
+		if (r == null) {
+			throw new UnknownResourceException("unknown activity type");
+		}
+		return new ActivityTypeDetail().withTypeInfo(
+				new ActivityTypeInfo()
+					.withActivityType(request.getActivityType())
+					.withStatus("REGISTERED")
+					.withDescription(r.getDescription())).withConfiguration(
+				new ActivityTypeConfiguration()
+					.withDefaultTaskList(r.getDefaultTaskList())
+					.withDefaultTaskStartToCloseTimeout(
+							r.getDefaultTaskStartToCloseTimeout())
+					.withDefaultTaskScheduleToStartTimeout(
+							r.getDefaultTaskScheduleToStartTimeout())
+					.withDefaultTaskScheduleToCloseTimeout(
+							r.getDefaultTaskScheduleToCloseTimeout())
+					.withDefaultTaskHeartbeatTimeout(
+							r.getDefaultTaskHeartbeatTimeout()));
+
+	}
+
+	private synchronized WorkflowExecutionDetail describeWorkflowExecution(
+			final DescribeWorkflowExecutionRequest request) {
+
+		final Execution exec = run(request.getExecution().getRunId());
+		return new WorkflowExecutionDetail()
+			.withExecutionInfo(info(exec))
+			.withExecutionConfiguration(
+					new WorkflowExecutionConfiguration()
+						.withTaskList(new TaskList().withName(exec.taskList))
+						.withTaskStartToCloseTimeout(
+								exec.taskStartToCloseTimeout)
+						.withExecutionStartToCloseTimeout(
+								exec.executionStartToCloseTimeout)
+						.withChildPolicy(exec.childPolicy))
+			.withOpenCounts(
+					new WorkflowExecutionOpenCounts()
+						.withOpenActivityTasks(exec.activities.size())
+						.withOpenDecisionTasks(
+								exec.decisionScheduledEventId == 0 ? 0 : 1)
+						.withOpenTimers(exec.timers.size())
+						.withOpenChildWorkflowExecutions(0))
+			.withLatestExecutionContext(exec.executionContext);
+
+	}
+
+	private synchronized WorkflowTypeDetail describeWorkflowType(
+			final DescribeWorkflowTypeRequest request) {
+
+		final RegisterWorkflowTypeRequest r = this.workflowTypes.get(key(
+				request.getDomain(), request.getWorkflowType().getName(),
+				request.getWorkflowType().getVersion()));
+		if (r == null) {
+			throw new UnknownResourceException("unknown workflow type");
+		}
+		return new WorkflowTypeDetail().withTypeInfo(
+				new WorkflowTypeInfo()
+					.withWorkflowType(request.getWorkflowType())
+					.withStatus("REGISTERED")
+					.withDescription(r.getDescription())).withConfiguration(
+				new WorkflowTypeConfiguration()
+					.withDefaultTaskList(r.getDefaultTaskList())
+					.withDefaultExecutionStartToCloseTimeout(
+							r.getDefaultExecutionStartToCloseTimeout())
+					.withDefaultTaskStartToCloseTimeout(
+							r.getDefaultTaskStartToCloseTimeout())
+					.withDefaultChildPolicy(r.getDefaultChildPolicy()));
+
+	}
+
+	private Object dispatch(final Object proxy, final Method method,
+			final Object[] args) {
+
+		final Object arg = args != null && args.length == 1 ? args[0] : null;
+		switch (method.getName()) {
+		case "describeActivityType":
+			return describeActivityType((DescribeActivityTypeRequest) arg);
+		case "describeWorkflowExecution":
+			return describeWorkflowExecution((DescribeWorkflowExecutionRequest) arg);
+		case "describeWorkflowType":
+			return describeWorkflowType((DescribeWorkflowTypeRequest) arg);
+		case "getWorkflowExecutionHistory":
+			return getWorkflowExecutionHistory((GetWorkflowExecutionHistoryRequest) arg);
+		case "pollForActivityTask":
+			return pollForActivityTask((PollForActivityTaskRequest) arg);
+		case "pollForDecisionTask":
+			return pollForDecisionTask((PollForDecisionTaskRequest) arg);
+		case "recordActivityTaskHeartbeat":
+			return recordActivityTaskHeartbeat((RecordActivityTaskHeartbeatRequest) arg);
+		case "registerActivityType":
+			registerActivityType((RegisterActivityTypeRequest) arg);
+			return null;
+		case "registerWorkflowType":
+			registerWorkflowType((RegisterWorkflowTypeRequest) arg);
+			return null;
+		case "requestCancelWorkflowExecution":
+			requestCancelWorkflowExecution((RequestCancelWorkflowExecutionRequest) arg);
+			return null;
+		case "respondActivityTaskCanceled":
+			respondActivityTaskCanceled((RespondActivityTaskCanceledRequest) arg);
+			return null;
+		case "respondActivityTaskCompleted":
+			respondActivityTaskCompleted((RespondActivityTaskCompletedRequest) arg);
+			return null;
+		case "respondActivityTaskFailed":
+			respondActivityTaskFailed((RespondActivityTaskFailedRequest) arg);
+			return null;
+		case "respondDecisionTaskCompleted":
+			respondDecisionTaskCompleted((RespondDecisionTaskCompletedRequest) arg);
+			return null;
+		case "signalWorkflowExecution":
+			signalWorkflowExecution((SignalWorkflowExecutionRequest) arg);
+			return null;
+		case "startWorkflowExecution":
+			return startWorkflowExecution((StartWorkflowExecutionRequest) arg);
+		case "terminateWorkflowExecution":
+			terminateWorkflowExecution((TerminateWorkflowExecutionRequest) arg);
+			return null;
+		case "equals":
+			return proxy == arg;
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return "LocalSwf client";
+		default:
+			return emptyResult(method);
+		}
+
+	}
+
+	private Object emptyResult(final Method method) {
+
+		if (method.getReturnType() == void.class) {
+			return null;
+		}
+		try {
+			return method.getReturnType().getDeclaredConstructor()
+				.newInstance();
+		} catch (final InvocationTargetException e) {
+			/*
+			 * the result type exists but could not be built, which is a bug
+			 * worth seeing rather than an empty result.
+			 */
+			throw new IllegalStateException("cannot create result of "
+					+ method.getName(), e.getCause());
+		} catch (final ReflectiveOperationException e) {
+			/*
+			 * no default constructor.
+			 */
+			return null;
+		}
+
+	}
+
+	/**
+	 * Find an open execution.
+	 *
+	 * @param workflowId
+	 *            workflow id.
+	 *
+	 * @param runId
+	 *            run id or null for the current run.
+	 *
+	 * @return the execution or null if there is no such open execution.
+	 */
+	private Execution find(final String workflowId, final String runId) {
+
+		final Execution exec = this.open.get(workflowId);
+		if (exec == null || runId != null
+				&& !runId.equals(exec.execution.getRunId())) {
+			return null;
+		}
+		return exec;
+
+	}
+
+	private synchronized History getWorkflowExecutionHistory(
+			final GetWorkflowExecutionHistoryRequest request) {
+
+		final Execution exec = run(request.getExecution().getRunId());
+		final List<HistoryEvent> events = new ArrayList<>(exec.history);
+		if (Boolean.TRUE.equals(request.isReverseOrder())) {
+			Collections.reverse(events);
+		}
+
+		final int from = request.getNextPageToken() == null ? 0 : Integer
+			.parseInt(request.getNextPageToken());
+		final int pageSize = request.getMaximumPageSize() == null
+				|| request.getMaximumPageSize() <= 0 ? events.size() : request
+			.getMaximumPageSize();
+		final int to = Math.min(events.size(), from + pageSize);
+
+		return new History().withEvents(
+				new ArrayList<>(events.subList(from, to))).withNextPageToken(
+				to < events.size() ? String.valueOf(to) : null);
+
+	}
+
+	private WorkflowExecutionInfo info(final Execution exec) {
+
+		return new WorkflowExecutionInfo()
+			.withExecution(exec.execution)
+			.withWorkflowType(exec.type)
+			.withStartTimestamp(exec.started)
+			.withCloseTimestamp(exec.closed)
+			.withExecutionStatus(exec.closed == null ? "OPEN" : "CLOSED")
+			.withCloseStatus(exec.closeStatus)
+			.withParent(exec.parent == null ? null : exec.parent.execution)
+			.withTagList(exec.tagList);
+
+	}
+
+	private String newId() {
+		this.seq = this.seq + 1;
+		return Long.toString(this.seq, Character.MAX_RADIX);
+	}
+
+	/**
+	 * Tell the parent of a closed child execution.
+	 */
+	private void notifyParent(final Execution child, final String result,
+			final String reason, final String details, final String timeoutType) {
+
+		final Execution parent = child.parent;
+		if (parent == null || parent.closed != null) {
+			return;
+		}
+
+		switch (child.closeStatus) {
+		case "COMPLETED":
+			append(parent, EventType.ChildWorkflowExecutionCompleted)
+				.setChildWorkflowExecutionCompletedEventAttributes(
+						new ChildWorkflowExecutionCompletedEventAttributes()
+							.withWorkflowExecution(child.execution)
+							.withWorkflowType(child.type)
+							.withResult(result)
+							.withInitiatedEventId(child.parentInitiatedEventId)
+							.withStartedEventId(child.parentStartedEventId));
+			break;
+		case "FAILED":
+			append(parent, EventType.ChildWorkflowExecutionFailed)
+				.setChildWorkflowExecutionFailedEventAttributes(
+						new ChildWorkflowExecutionFailedEventAttributes()
+							.withWorkflowExecution(child.execution)
+							.withWorkflowType(child.type)
+							.withReason(reason)
+							.withDetails(details)
+							.withInitiatedEventId(child.parentInitiatedEventId)
+							.withStartedEventId(child.parentStartedEventId));
+			break;
+		case "CANCELED":
+			append(parent, EventType.ChildWorkflowExecutionCanceled)
+				.setChildWorkflowExecutionCanceledEventAttributes(
+						new ChildWorkflowExecutionCanceledEventAttributes()
+							.withWorkflowExecution(child.execution)
+							.withWorkflowType(child.type)
+							.withDetails(details)
+							.withInitiatedEventId(child.parentInitiatedEventId)
+							.withStartedEventId(child.parentStartedEventId));
+			break;
+		case "TIMED_OUT":
+			append(parent, EventType.ChildWorkflowExecutionTimedOut)
+				.setChildWorkflowExecutionTimedOutEventAttributes(
+						new ChildWorkflowExecutionTimedOutEventAttributes()
+							.withWorkflowExecution(child.execution)
+							.withWorkflowType(child.type)
+							.withTimeoutType(timeoutType)
+							.withInitiatedEventId(child.parentInitiatedEventId)
+							.withStartedEventId(child.parentStartedEventId));
+			break;
+		default:
+			append(parent, EventType.ChildWorkflowExecutionTerminated)
+				.setChildWorkflowExecutionTerminatedEventAttributes(
+						new ChildWorkflowExecutionTerminatedEventAttributes()
+							.withWorkflowExecution(child.execution)
+							.withWorkflowType(child.type)
+							.withInitiatedEventId(child.parentInitiatedEventId)
+							.withStartedEventId(child.parentStartedEventId));
+			break;
+		}
+		decisionNeeded(parent);
+
+	}
+
+	private ActivityTask pollForActivityTask(
+			final PollForActivityTaskRequest request) {
+
+		final BlockingQueue<String> queue = queue(this.activityQueues,
+				request.getDomain(), request.getTaskList().getName());
+		final long deadline = System.nanoTime() + this.pollTimeoutNanos;
+		for (;;) {
+			final String token = take(queue, deadline);
+			if (token == null) {
+				return new ActivityTask();
+			}
+			synchronized (this) {
+				final Activity act = this.activities.get(token);
+				if (act != null && act.startedEventId == 0) {
+					return startActivity(act, request.getIdentity());
+				}
+			}
+		}
+
+	}
+
+	private DecisionTask pollForDecisionTask(
+			final PollForDecisionTaskRequest request) {
+
+		final BlockingQueue<String> queue = queue(this.decisionQueues,
+				request.getDomain(), request.getTaskList().getName());
+		final long deadline = System.nanoTime() + this.pollTimeoutNanos;
+		for (;;) {
+			final String runId = take(queue, deadline);
+			if (runId == null) {
+				return new DecisionTask();
+			}
+			synchronized (this) {
+				final Execution exec = this.openRuns.get(runId);
+				if (exec != null && exec.decisionScheduledEventId != 0
+						&& exec.decisionStartedEventId == 0) {
+					return startDecision(exec, request.getIdentity());
+				}
+			}
+		}
+
+	}
+
+	private BlockingQueue<String> queue(
+			final ConcurrentMap<String, BlockingQueue<String>> queues,
+			final String domain, final String taskList) {
+
+		final String key = domain + "/" + taskList;
+		BlockingQueue<String> rval = queues.get(key);
+		if (rval == null) {
+			queues.putIfAbsent(key, new LinkedBlockingQueue<String>());
+			rval = queues.get(key);
+		}
+		return rval;
+
+	}
+
+	private synchronized ActivityTaskStatus recordActivityTaskHeartbeat(
+			final RecordActivityTaskHeartbeatRequest request) {
+
+		final Activity act = startedActivity(request.getTaskToken());
+		act.heartbeatDetails = request.getDetails();
+		act.heartbeatGeneration = act.heartbeatGeneration + 1;
+		timeout(act, act.heartbeatTimeout, "HEARTBEAT");
+		return new ActivityTaskStatus()
+			.withCancelRequested(act.cancelRequestedEventId != 0);
+
+	}
+
+	private synchronized void registerActivityType(
+			final RegisterActivityTypeRequest request) {
+
+		final String key = key(request.getDomain(), request.getName(),
+				request.getVersion());
+		if (!this.activityTypes.containsKey(key)) {
+			this.activityTypes.put(key, request);
+		}
+
+	}
+
+	private synchronized void registerWorkflowType(
+			final RegisterWorkflowTypeRequest request) {
+
+		final String key = key(request.getDomain(), request.getName(),
+				request.getVersion());
+		if (!this.workflowTypes.containsKey(key)) {
+			this.workflowTypes.put(key, request);
+		}
+
+	}
+
+	private synchronized void requestCancelWorkflowExecution(
+			final RequestCancelWorkflowExecutionRequest request) {
+
+		final Execution exec = find(request.getWorkflowId(),
+				request.getRunId());
+		if (exec == null) {
+			throw new UnknownResourceException("unknown execution");
+		}
+		append(exec, EventType.WorkflowExecutionCancelRequested)
+			.setWorkflowExecutionCancelRequestedEventAttributes(
+					new WorkflowExecutionCancelRequestedEventAttributes());
+		decisionNeeded(exec);
+
+	}
+
+	private synchronized void respondActivityTaskCanceled(
+			final RespondActivityTaskCanceledRequest request) {
+
+		final Activity act = startedActivity(request.getTaskToken());
+		append(act.exec, EventType.ActivityTaskCanceled)
+			.setActivityTaskCanceledEventAttributes(
+					new ActivityTaskCanceledEventAttributes()
+						.withDetails(request.getDetails())
+						.withScheduledEventId(act.scheduledEventId)
+						.withStartedEventId(act.startedEventId)
+						.withLatestCancelRequestedEventId(
+								act.cancelRequestedEventId == 0 ? null
+										: act.cancelRequestedEventId));
+		closeActivity(act);
+		decisionNeeded(act.exec);
+		this.activityTasksCompleted.incrementAndGet();
+
+	}
+
+	private synchronized void respondActivityTaskCompleted(
+			final RespondActivityTaskCompletedRequest request) {
+
+		final Activity act = startedActivity(request.getTaskToken());
+		append(act.exec, EventType.ActivityTaskCompleted)
+			.setActivityTaskCompletedEventAttributes(
+					new ActivityTaskCompletedEventAttributes()
+						.withResult(request.getResult())
+						.withScheduledEventId(act.scheduledEventId)
+						.withStartedEventId(act.startedEventId));
+		closeActivity(act);
+		decisionNeeded(act.exec);
+		this.activityTasksCompleted.incrementAndGet();
+
+	}
+
+	private synchronized void respondActivityTaskFailed(
+			final RespondActivityTaskFailedRequest request) {
+
+		final Activity act = startedActivity(request.getTaskToken());
+		append(act.exec, EventType.ActivityTaskFailed)
+			.setActivityTaskFailedEventAttributes(
+					new ActivityTaskFailedEventAttributes()
+						.withReason(request.getReason())
+						.withDetails(request.getDetails())
+						.withScheduledEventId(act.scheduledEventId)
+						.withStartedEventId(act.startedEventId));
+		closeActivity(act);
+		decisionNeeded(act.exec);
+		this.activityTasksCompleted.incrementAndGet();
+
+	}
+
+	private synchronized void respondDecisionTaskCompleted(
+			final RespondDecisionTaskCompletedRequest request) {
+
+		final String token = request.getTaskToken();
+		final int slash = token.lastIndexOf('/');
+		final Execution exec = this.openRuns.get(token.substring(0, slash));
+		if (exec == null
+				|| exec.decisionStartedEventId != Long.parseLong(token
+					.substring(slash + 1))) {
+			throw new UnknownResourceException("unknown decision task");
+		}
+
+		if (exec.decisionCpuStart >= 0
+				&& exec.decisionThread == Thread.currentThread().getId()) {
+			this.deciderCpuNanos.addAndGet(this.cpu.getCurrentThreadCpuTime()
+					- exec.decisionCpuStart);
+		}
+		if (exec.decisionTimer != null) {
+			exec.decisionTimer.cancel(false);
+		}
+
+		final HistoryEvent completed = append(exec,
+				EventType.DecisionTaskCompleted);
+		completed.setDecisionTaskCompletedEventAttributes(new DecisionTaskCompletedEventAttributes()
+			.withScheduledEventId(exec.decisionScheduledEventId)
+			.withStartedEventId(exec.decisionStartedEventId)
+			.withExecutionContext(request.getExecutionContext()));
+		if (request.getExecutionContext() != null) {
+			exec.executionContext = request.getExecutionContext();
+		}
+
+		exec.previousStartedEventId = exec.decisionStartedEventId;
+		exec.decisionScheduledEventId = 0;
+		exec.decisionStartedEventId = 0;
+		final boolean pending = exec.decisionPending;
+		exec.decisionPending = false;
+
+		if (request.getDecisions() != null) {
+			for (final Decision d : request.getDecisions()) {
+				if (exec.closed != null) {
+					break;
+				}
+				decide(exec, d, completed.getEventId(), pending);
+			}
+		}
+		if (pending) {
+			decisionNeeded(exec);
+		}
+		this.decisionTasksCompleted.incrementAndGet();
+
+	}
+
+	/**
+	 * Find an execution by run id, open or recently closed.
+	 */
+	private Execution run(final String runId) {
+
+		Execution rval = this.openRuns.get(runId);
+		if (rval == null) {
+			rval = this.closed.get(runId);
+		}
+		if (rval == null) {
+			throw new UnknownResourceException("unknown execution");
+		}
+		return rval;
+
+	}
+
+	private void scheduleActivity(final Execution exec,
+			final ScheduleActivityTaskDecisionAttributes a,
+			final long completedId) {
+
+		final RegisterActivityTypeRequest defaults = this.activityTypes
+			.get(key(exec.domain, a.getActivityType().getName(), a
+				.getActivityType().getVersion()));
+		final String taskList = a.getTaskList() != null ? a.getTaskList()
+			.getName() : defaults != null
+				&& defaults.getDefaultTaskList() != null ? defaults
+			.getDefaultTaskList().getName() : null;
+
+		final String cause;
+		if (defaults == null) {
+			cause = "ACTIVITY_TYPE_DOES_NOT_EXIST";
+		} else if (exec.activities.containsKey(a.getActivityId())) {
+			cause = "ACTIVITY_ID_ALREADY_IN_USE";
+		} else if (taskList == null) {
+			cause = "DEFAULT_TASK_LIST_UNDEFINED";
+		} else {
+			cause = null;
+		}
+		if (cause != null) {
+			append(exec, EventType.ScheduleActivityTaskFailed)
+				.setScheduleActivityTaskFailedEventAttributes(
+						new ScheduleActivityTaskFailedEventAttributes()
+							.withActivityType(a.getActivityType())
+							.withActivityId(a.getActivityId())
+							.withCause(cause)
+							.withDecisionTaskCompletedEventId(completedId));
+			decisionNeeded(exec);
+			return;
+		}
+
+		final Activity act = new Activity();
+		act.exec = exec;
+		act.token = exec.execution.getRunId() + "/" + newId();
+		act.activityId = a.getActivityId();
+		act.type = a.getActivityType();
+		act.input = a.getInput();
+		act.scheduleToStartTimeout = a.getScheduleToStartTimeout() != null ? a
+			.getScheduleToStartTimeout() : defaults
+			.getDefaultTaskScheduleToStartTimeout();
+		act.scheduleToCloseTimeout = a.getScheduleToCloseTimeout() != null ? a
+			.getScheduleToCloseTimeout() : defaults
+			.getDefaultTaskScheduleToCloseTimeout();
+		act.startToCloseTimeout = a.getStartToCloseTimeout() != null ? a
+			.getStartToCloseTimeout() : defaults
+			.getDefaultTaskStartToCloseTimeout();
+		act.heartbeatTimeout = a.getHeartbeatTimeout() != null ? a
+			.getHeartbeatTimeout() : defaults.getDefaultTaskHeartbeatTimeout();
+
+		final HistoryEvent e = append(exec, EventType.ActivityTaskScheduled);
+		e.setActivityTaskScheduledEventAttributes(new ActivityTaskScheduledEventAttributes()
+			.withActivityType(act.type)
+			.withActivityId(act.activityId)
+			.withInput(act.input)
+			.withControl(a.getControl())
+			.withScheduleToStartTimeout(act.scheduleToStartTimeout)
+			.withScheduleToCloseTimeout(act.scheduleToCloseTimeout)
+			.withStartToCloseTimeout(act.startToCloseTimeout)
+			.withHeartbeatTimeout(act.heartbeatTimeout)
+			.withTaskList(new TaskList().withName(taskList))
+			.withDecisionTaskCompletedEventId(completedId));
+		act.scheduledEventId = e.getEventId();
+
+		exec.activities.put(act.activityId, act);
+		this.activities.put(act.token, act);
+		timeout(act, act.scheduleToStartTimeout, "SCHEDULE_TO_START");
+		timeout(act, act.scheduleToCloseTimeout, "SCHEDULE_TO_CLOSE");
+		queue(this.activityQueues, exec.domain, taskList).add(act.token);
+
+	}
+
+	private void signal(final Execution target, final String signalName,
+			final String input, final WorkflowExecution external,
+			final Long externalInitiatedEventId) {
+
+		append(target, EventType.WorkflowExecutionSignaled)
+			.setWorkflowExecutionSignaledEventAttributes(
+					new WorkflowExecutionSignaledEventAttributes()
+						.withSignalName(signalName)
+						.withInput(input)
+						.withExternalWorkflowExecution(external)
+						.withExternalInitiatedEventId(externalInitiatedEventId));
+		decisionNeeded(target);
+
+	}
+
+	private void signalExternal(final Execution exec,
+			final SignalExternalWorkflowExecutionDecisionAttributes a,
+			final long completedId) {
+
+		final HistoryEvent init = append(exec,
+				EventType.SignalExternalWorkflowExecutionInitiated);
+		init.setSignalExternalWorkflowExecutionInitiatedEventAttributes(new SignalExternalWorkflowExecutionInitiatedEventAttributes()
+			.withWorkflowId(a.getWorkflowId())
+			.withRunId(a.getRunId())
+			.withSignalName(a.getSignalName())
+			.withInput(a.getInput())
+			.withControl(a.getControl())
+			.withDecisionTaskCompletedEventId(completedId));
+
+		final Execution target = find(a.getWorkflowId(), a.getRunId());
+		if (target == null) {
+			append(exec, EventType.SignalExternalWorkflowExecutionFailed)
+				.setSignalExternalWorkflowExecutionFailedEventAttributes(
+						new SignalExternalWorkflowExecutionFailedEventAttributes()
+							.withWorkflowId(a.getWorkflowId())
+							.withRunId(a.getRunId())
+							.withCause("UNKNOWN_EXTERNAL_WORKFLOW_EXECUTION")
+							.withInitiatedEventId(init.getEventId())
+							.withDecisionTaskCompletedEventId(completedId)
+							.withControl(a.getControl()));
+		} else {
+			signal(target, a.getSignalName(), a.getInput(), exec.execution,
+					init.getEventId());
+			append(exec, EventType.ExternalWorkflowExecutionSignaled)
+				.setExternalWorkflowExecutionSignaledEventAttributes(
+						new ExternalWorkflowExecutionSignaledEventAttributes()
+							.withWorkflowExecution(target.execution)
+							.withInitiatedEventId(init.getEventId()));
+		}
+		decisionNeeded(exec);
+
+	}
+
+	private synchronized void signalWorkflowExecution(
+			final SignalWorkflowExecutionRequest request) {
+
+		final Execution exec = find(request.getWorkflowId(),
+				request.getRunId());
+		if (exec == null) {
+			throw new UnknownResourceException("unknown execution");
+		}
+		signal(exec, request.getSignalName(), request.getInput(), null, null);
+
+	}
+
+	private ActivityTask startActivity(final Activity act, final String identity) {
+
+		final HistoryEvent e = append(act.exec, EventType.ActivityTaskStarted);
+		e.setActivityTaskStartedEventAttributes(new ActivityTaskStartedEventAttributes()
+			.withScheduledEventId(act.scheduledEventId)
+			.withIdentity(identity));
+		act.startedEventId = e.getEventId();
+		timeout(act, act.startToCloseTimeout, "START_TO_CLOSE");
+		timeout(act, act.heartbeatTimeout, "HEARTBEAT");
+
+		return new ActivityTask()
+			.withTaskToken(act.token)
+			.withActivityId(act.activityId)
+			.withStartedEventId(act.startedEventId)
+			.withWorkflowExecution(act.exec.execution)
+			.withActivityType(act.type)
+			.withInput(act.input);
+
+	}
+
+	private void startChild(final Execution exec,
+			final StartChildWorkflowExecutionDecisionAttributes a,
+			final long completedId) {
+
+		final HistoryEvent init = append(exec,
+				EventType.StartChildWorkflowExecutionInitiated);
+		init.setStartChildWorkflowExecutionInitiatedEventAttributes(new StartChildWorkflowExecutionInitiatedEventAttributes()
+			.withWorkflowId(a.getWorkflowId())
+			.withWorkflowType(a.getWorkflowType())
+			.withControl(a.getControl())
+			.withInput(a.getInput())
+			.withExecutionStartToCloseTimeout(
+					a.getExecutionStartToCloseTimeout())
+			.withTaskList(a.getTaskList())
+			.withDecisionTaskCompletedEventId(completedId)
+			.withChildPolicy(a.getChildPolicy())
+			.withTaskStartToCloseTimeout(a.getTaskStartToCloseTimeout())
+			.withTagList(a.getTagList()));
+
+		String cause = null;
+		Execution child = null;
+		if (this.open.containsKey(a.getWorkflowId())) {
+			cause = "WORKFLOW_ALREADY_RUNNING";
+		} else {
+			try {
+				child = startExecution(exec.domain, a.getWorkflowId(),
+						a.getWorkflowType(), a.getTaskList() == null ? null : a
+							.getTaskList().getName(), a.getInput(),
+						a.getExecutionStartToCloseTimeout(),
+						a.getTaskStartToCloseTimeout(), a.getChildPolicy(),
+						a.getTagList(), exec, init.getEventId(), null);
+			} catch (final UnknownResourceException e) {
+				cause = "WORKFLOW_TYPE_DOES_NOT_EXIST";
+			}
+		}
+
+		if (child == null) {
+			append(exec, EventType.StartChildWorkflowExecutionFailed)
+				.setStartChildWorkflowExecutionFailedEventAttributes(
+						new StartChildWorkflowExecutionFailedEventAttributes()
+							.withWorkflowType(a.getWorkflowType())
+							.withWorkflowId(a.getWorkflowId())
+							.withCause(cause)
+							.withInitiatedEventId(init.getEventId())
+							.withDecisionTaskCompletedEventId(completedId)
+							.withControl(a.getControl()));
+		} else {
+			final HistoryEvent started = append(exec,
+					EventType.ChildWorkflowExecutionStarted);
+			started.setChildWorkflowExecutionStartedEventAttributes(new ChildWorkflowExecutionStartedEventAttributes()
+				.withWorkflowExecution(child.execution)
+				.withWorkflowType(child.type)
+				.withInitiatedEventId(init.getEventId()));
+			child.parentStartedEventId = started.getEventId();
+		}
+		decisionNeeded(exec);
+
+	}
+
+	private DecisionTask startDecision(final Execution exec,
+			final String identity) {
+
+		final HistoryEvent e = append(exec, EventType.DecisionTaskStarted);
+		e.setDecisionTaskStartedEventAttributes(new DecisionTaskStartedEventAttributes()
+			.withScheduledEventId(exec.decisionScheduledEventId)
+			.withIdentity(identity));
+		exec.decisionStartedEventId = e.getEventId();
+		exec.decisionPending = false;
+		exec.decisionThread = Thread.currentThread().getId();
+		exec.decisionCpuStart = this.cpu.isCurrentThreadCpuTimeSupported() ? this.cpu
+			.getCurrentThreadCpuTime() : -1;
+
+		final long timeout = seconds(exec.taskStartToCloseTimeout);
+		if (timeout > 0) {
+			final long startedEventId = e.getEventId();
+			exec.decisionTimer = this.timerService.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					decisionTimedOut(exec, startedEventId);
+				}
+
+			}, timeout, TimeUnit.SECONDS);
+		}
+
+		return new DecisionTask()
+			.withTaskToken(exec.execution.getRunId() + "/" + e.getEventId())
+			.withWorkflowExecution(exec.execution)
+			.withWorkflowType(exec.type)
+			.withEvents(new ArrayList<>(exec.history))
+			.withPreviousStartedEventId(exec.previousStartedEventId)
+			.withStartedEventId(e.getEventId());
+
+	}
+
+	/**
+	 * Find an activity that a worker has started.
+	 */
+	private Activity startedActivity(final String token) {
+
+		final Activity rval = this.activities.get(token);
+		if (rval == null || rval.startedEventId == 0) {
+			throw new UnknownResourceException("unknown activity task");
+		}
+		return rval;
+
+	}
+
+	private Execution startExecution(final String domain,
+			final String workflowId, final WorkflowType type,
+			final String taskList, final String input,
+			final String executionStartToCloseTimeout,
+			final String taskStartToCloseTimeout, final String childPolicy,
+			final List<String> tagList, final Execution parent,
+			final long parentInitiatedEventId, final String continuedRunId) {
+
+		final RegisterWorkflowTypeRequest defaults = this.workflowTypes
+			.get(key(domain, type.getName(), type.getVersion()));
+		if (defaults == null) {
+			throw new UnknownResourceException("unknown workflow type");
+		}
+
+		final Execution exec = new Execution();
+		exec.domain = domain;
+		exec.type = type;
+		exec.execution = new WorkflowExecution().withWorkflowId(workflowId)
+			.withRunId(newId());
+		exec.taskList = taskList != null ? taskList : defaults
+			.getDefaultTaskList() == null ? null : defaults
+			.getDefaultTaskList().getName();
+		exec.executionStartToCloseTimeout = executionStartToCloseTimeout != null ? executionStartToCloseTimeout
+				: defaults.getDefaultExecutionStartToCloseTimeout();
+		exec.taskStartToCloseTimeout = taskStartToCloseTimeout != null ? taskStartToCloseTimeout
+				: defaults.getDefaultTaskStartToCloseTimeout();
+		exec.childPolicy = childPolicy != null ? childPolicy : defaults
+			.getDefaultChildPolicy();
+		exec.tagList = tagList;
+		exec.parent = parent;
+		exec.parentInitiatedEventId = parentInitiatedEventId;
+		exec.started = new Date();
+		if (exec.taskList == null) {
+			throw new UnknownResourceException("no task list for workflow");
+		}
+
+		append(exec, EventType.WorkflowExecutionStarted)
+			.setWorkflowExecutionStartedEventAttributes(
+					new WorkflowExecutionStartedEventAttributes()
+						.withWorkflowType(type)
+						.withInput(input)
+						.withTaskList(new TaskList().withName(exec.taskList))
+						.withExecutionStartToCloseTimeout(
+								exec.executionStartToCloseTimeout)
+						.withTaskStartToCloseTimeout(
+								exec.taskStartToCloseTimeout)
+						.withChildPolicy(exec.childPolicy)
+						.withTagList(tagList)
+						.withContinuedExecutionRunId(continuedRunId)
+						.withParentWorkflowExecution(
+								parent == null ? null : parent.execution)
+						.withParentInitiatedEventId(
+								parent == null ? null : parentInitiatedEventId));
+
+		this.open.put(workflowId, exec);
+		this.openRuns.put(exec.execution.getRunId(), exec);
+
+		final long timeout = seconds(exec.executionStartToCloseTimeout);
+		if (timeout > 0) {
+			exec.timeout = this.timerService.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					workflowTimedOut(exec);
+				}
+
+			}, timeout, TimeUnit.SECONDS);
+		}
+
+		decisionNeeded(exec);
+		return exec;
+
+	}
+
+	private void startTimer(final Execution exec,
+			final StartTimerDecisionAttributes a, final long completedId) {
+
+		if (exec.timers.containsKey(a.getTimerId())) {
+			append(exec, EventType.StartTimerFailed)
+				.setStartTimerFailedEventAttributes(
+						new StartTimerFailedEventAttributes()
+							.withTimerId(a.getTimerId())
+							.withCause("TIMER_ID_ALREADY_IN_USE")
+							.withDecisionTaskCompletedEventId(completedId));
+			decisionNeeded(exec);
+			return;
+		}
+
+		final HistoryEvent e = append(exec, EventType.TimerStarted);
+		e.setTimerStartedEventAttributes(new TimerStartedEventAttributes()
+			.withTimerId(a.getTimerId())
+			.withStartToFireTimeout(a.getStartToFireTimeout())
+			.withControl(a.getControl())
+			.withDecisionTaskCompletedEventId(completedId));
+
+		final Timer t = new Timer();
+		t.timerId = a.getTimerId();
+		t.startedEventId = e.getEventId();
+		t.future = this.timerService.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				timerFired(exec, t);
+			}
+
+		}, Math.max(0, seconds(a.getStartToFireTimeout())), TimeUnit.SECONDS);
+		exec.timers.put(t.timerId, t);
+
+	}
+
+	private synchronized Run startWorkflowExecution(
+			final StartWorkflowExecutionRequest request) {
+
+		if (this.open.containsKey(request.getWorkflowId())) {
+			throw new WorkflowExecutionAlreadyStartedException(
+					"workflow already running: " + request.getWorkflowId());
+		}
+		final Execution exec = startExecution(request.getDomain(),
+				request.getWorkflowId(), request.getWorkflowType(),
+				request.getTaskList() == null ? null : request.getTaskList()
+					.getName(), request.getInput(),
+				request.getExecutionStartToCloseTimeout(),
+				request.getTaskStartToCloseTimeout(),
+				request.getChildPolicy(), request.getTagList(), null, 0, null);
+		return new Run().withRunId(exec.execution.getRunId());
+
+	}
+
+	/**
+	 * Wait for a token on a task queue.
+	 *
+	 * @return the token or null if the poll timed out or was interrupted.
+	 */
+	private String take(final BlockingQueue<String> queue, final long deadline) {
+
+		final long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+			return null;
+		}
+		try {
+			return queue.poll(remaining, TimeUnit.NANOSECONDS);
+		} catch (final InterruptedException e) {
+			// re-assert
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+	}
+
+	private synchronized void terminateWorkflowExecution(
+			final TerminateWorkflowExecutionRequest request) {
+
+		final Execution exec = find(request.getWorkflowId(),
+				request.getRunId());
+		if (exec == null) {
+			throw new UnknownResourceException("unknown execution");
+		}
+		append(exec, EventType.WorkflowExecutionTerminated)
+			.setWorkflowExecutionTerminatedEventAttributes(
+					new WorkflowExecutionTerminatedEventAttributes()
+						.withReason(request.getReason())
+						.withDetails(request.getDetails())
+						.withChildPolicy(exec.childPolicy)
+						.withCause("OPERATOR_INITIATED"));
+		close(exec, "TERMINATED");
+		notifyParent(exec, null, null, null, null);
+
+	}
+
+	/**
+	 * Arm an activity timeout.
+	 */
+	private void timeout(final Activity act, final String duration,
+			final String timeoutType) {
+
+		final long secs = seconds(duration);
+		if (secs <= 0) {
+			return;
+		}
+		final long generation = act.heartbeatGeneration;
+		act.timers.add(this.timerService.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				activityTimedOut(act, timeoutType,
+						"HEARTBEAT".equals(timeoutType) ? generation
+								: act.heartbeatGeneration);
+			}
+
+		}, secs, TimeUnit.SECONDS));
+
+	}
+
+	private synchronized void timerFired(final Execution exec, final Timer t) {
+
+		if (exec.closed != null || exec.timers.get(t.timerId) != t) {
+			return;
+		}
+		exec.timers.remove(t.timerId);
+		append(exec, EventType.TimerFired).setTimerFiredEventAttributes(
+				new TimerFiredEventAttributes().withTimerId(t.timerId)
+					.withStartedEventId(t.startedEventId));
+		decisionNeeded(exec);
+
+	}
+
+	private synchronized void workflowTimedOut(final Execution exec) {
+
+		if (exec.closed != null) {
+			return;
+		}
+		append(exec, EventType.WorkflowExecutionTimedOut)
+			.setWorkflowExecutionTimedOutEventAttributes(
+					new WorkflowExecutionTimedOutEventAttributes()
+						.withTimeoutType("START_TO_CLOSE")
+						.withChildPolicy(exec.childPolicy));
+		close(exec, "TIMED_OUT");
+		notifyParent(exec, null, null, null, "START_TO_CLOSE");
+
+	}
+
+}
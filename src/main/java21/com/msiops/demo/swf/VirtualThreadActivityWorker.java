@@ -0,0 +1,85 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.flow.worker.ActivityTaskPoller;
+import com.amazonaws.services.simpleworkflow.flow.worker.GenericActivityWorker;
+import com.amazonaws.services.simpleworkflow.flow.worker.TaskPoller;
+
+/**
+ * <p>
+ * Activity worker that runs each task on its own virtual thread. Blocking
+ * activities such as the horses, which sleep for the length of a lap, then
+ * cost a small heap object per task in flight instead of a platform thread
+ * and its stack.
+ * </p>
+ * <p>
+ * The flow framework still bounds the tasks in flight by
+ * {@link #getTaskExecutorThreadPoolSize()}, which here is only a limit and
+ * not a number of threads, so it can be set far higher than with the
+ * platform thread pool.
+ * </p>
+ * <p>
+ * This class needs Java 21. It is compiled only by the {@code jdk21} build
+ * profile and is loaded by name so the rest of the project still targets
+ * Java 7.
+ * </p>
+ */
+public class VirtualThreadActivityWorker extends GenericActivityWorker {
+
+	public VirtualThreadActivityWorker(final AmazonSimpleWorkflow swf,
+			final String domain, final String taskList) {
+		super(swf, domain, taskList);
+	}
+
+	@Override
+	protected TaskPoller createPoller() {
+
+		/*
+		 * no core threads and no idle time, so every task gets a new virtual
+		 * thread. The poller sizes its poll semaphore, and so the tasks in
+		 * flight, from the maximum pool size, which must therefore be the
+		 * configured limit. A task handed over while every thread is busy
+		 * waits for one to finish, like the flow framework's own
+		 * BlockCallerPolicy, rather than being rejected.
+		 */
+		final ThreadPoolExecutor tasks = new ThreadPoolExecutor(0,
+				getTaskExecutorThreadPoolSize(), 0, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), (task, executor) -> {
+					try {
+						executor.getQueue().put(task);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException(e);
+					}
+				});
+		tasks.setThreadFactory(Thread.ofVirtual()
+			.name("SWF Activity " + getTaskListToPoll() + " ", 1)
+			.factory());
+
+		return new ActivityTaskPoller(this.service, this.domain,
+				getTaskListToPoll(), getActivityImplementationFactory(), tasks);
+
+	}
+
+}
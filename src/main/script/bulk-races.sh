@@ -0,0 +1,13 @@
+#!/bin/bash
+
+# naiive is good enough
+here=$(dirname $(readlink -f $0))
+
+# source the AWS credentials
+. ${here}/credentials.shinc
+
+# start every race on a card file, one per line as id,laps,horse,horse,...
+# or as JSON in a .jsonl file. run it again after a failure to pick up from
+# the checkpoint.
+# assume jar is in same directory as script
+java -cp ${here}/demo-swf-0.1-SNAPSHOT-jar-with-dependencies.jar com.msiops.demo.swf.horserace.BulkRaces "$1"
@@ -0,0 +1,13 @@
+#!/bin/bash
+
+# naiive is good enough
+here=$(dirname $(readlink -f $0))
+
+# source the AWS credentials
+. ${here}/credentials.shinc
+
+# start 600 races of 7 horses over 10 laps, 2 per second, and report
+# throughput and race latency once they have all finished. the workers must
+# already be running.
+# assume jar is in same directory as script
+java -cp ${here}/demo-swf-0.1-SNAPSHOT-jar-with-dependencies.jar com.msiops.demo.swf.horserace.RaceLoad 600 7 10 2
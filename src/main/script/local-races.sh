@@ -0,0 +1,10 @@
+#!/bin/bash
+
+# naiive is good enough
+here=$(dirname $(readlink -f $0))
+
+# run 1000 races of 7 horses over 10 laps, 100 at a time, entirely in this
+# process. no credentials needed. announcements are discarded, the summary is
+# printed on stderr.
+# assume jar is in same directory as script
+java -cp ${here}/demo-swf-0.1-SNAPSHOT-jar-with-dependencies.jar com.msiops.demo.swf.horserace.worker.LocalRaceTrack 1000 7 10 100 > /dev/null
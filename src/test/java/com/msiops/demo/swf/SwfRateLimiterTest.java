@@ -0,0 +1,232 @@
+/*
+ * Licensed to Media Science International (MSI) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. MSI
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.msiops.demo.swf;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
+import com.amazonaws.services.simpleworkflow.model.DescribeDomainRequest;
+import com.amazonaws.services.simpleworkflow.model.PollForActivityTaskRequest;
+import com.amazonaws.services.simpleworkflow.model.PollForDecisionTaskRequest;
+import com.amazonaws.services.simpleworkflow.model.RecordActivityTaskHeartbeatRequest;
+import com.amazonaws.services.simpleworkflow.model.TaskList;
+import com.msiops.demo.swf.local.LocalSwf;
+
+public class SwfRateLimiterTest {
+
+	private static final double DELTA = 1e-9;
+
+	/**
+	 * A client whose every call fails with the given error, or succeeds with
+	 * no result if it is null.
+	 */
+	private static AmazonSimpleWorkflow fake(final RuntimeException failure) {
+
+		return (AmazonSimpleWorkflow) Proxy.newProxyInstance(
+				AmazonSimpleWorkflow.class.getClassLoader(),
+				new Class<?>[] { AmazonSimpleWorkflow.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args) {
+						if (failure != null) {
+							throw failure;
+						}
+						return null;
+					}
+
+				});
+
+	}
+
+	private static AmazonServiceException throttling() {
+		final AmazonServiceException rval = new AmazonServiceException(
+				"Rate exceeded");
+		rval.setErrorCode("ThrottlingException");
+		return rval;
+	}
+
+	private static void describeThrottled(final AmazonSimpleWorkflow swf) {
+		try {
+			swf.describeDomain(new DescribeDomainRequest().withName("d"));
+			fail("throttling error was not passed to the caller");
+		} catch (final AmazonServiceException e) {
+			assertEquals("ThrottlingException", e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testAcquireWaitsOnceBurstIsSpent() {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(20, 1, 20, 2);
+
+		limiter.acquire();
+		limiter.acquire();
+		assertEquals(2, limiter.getPermitsGranted());
+		assertEquals(0, limiter.getPermitsDenied());
+
+		final long start = System.nanoTime();
+		limiter.acquire();
+		final long waited = System.nanoTime() - start;
+
+		assertEquals(1, limiter.getPermitsDenied());
+		assertTrue("waited " + waited + "ns",
+				waited >= TimeUnit.MILLISECONDS.toNanos(30));
+
+	}
+
+	@Test
+	public void testTokensRefillWhileIdle() throws InterruptedException {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(100, 1, 100, 1);
+
+		limiter.acquire();
+		TimeUnit.MILLISECONDS.sleep(50);
+		limiter.acquire();
+
+		assertEquals(2, limiter.getPermitsGranted());
+		assertEquals(0, limiter.getPermitsDenied());
+
+	}
+
+	@Test
+	public void testThrottlingHalvesRateOncePerInterval() {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(40, 1, 100, 10);
+		final AmazonSimpleWorkflow swf = limiter.wrap(fake(throttling()));
+
+		describeThrottled(swf);
+		assertEquals(20, limiter.getRate(), DELTA);
+		assertEquals(1, limiter.getThrottled());
+
+		/*
+		 * a burst of throttled calls cuts the rate only once.
+		 */
+		describeThrottled(swf);
+		assertEquals(20, limiter.getRate(), DELTA);
+		assertEquals(2, limiter.getThrottled());
+
+	}
+
+	@Test
+	public void testThrottlingStopsAtMinimumRate() {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(3, 2, 100, 10);
+
+		describeThrottled(limiter.wrap(fake(throttling())));
+		assertEquals(2, limiter.getRate(), DELTA);
+
+	}
+
+	@Test
+	public void testOtherErrorsDoNotCutRate() {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(40, 1, 100, 10);
+		final AmazonSimpleWorkflow swf = limiter
+			.wrap(fake(new AmazonServiceException("Unknown domain")));
+
+		try {
+			swf.describeDomain(new DescribeDomainRequest().withName("d"));
+			fail("error was not passed to the caller");
+		} catch (final AmazonServiceException e) {
+			// expected
+		}
+		assertEquals(40, limiter.getRate(), DELTA);
+		assertEquals(0, limiter.getThrottled());
+
+	}
+
+	@Test
+	public void testSuccessfulCallRaisesRate() {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(10, 1, 100, 10);
+
+		limiter.wrap(fake(null)).describeDomain(
+				new DescribeDomainRequest().withName("d"));
+
+		assertEquals(10.05, limiter.getRate(), 1e-6);
+		assertEquals(1, limiter.getPermitsGranted());
+
+	}
+
+	@Test
+	public void testSuccessesRecoverRateUpToMaximum() {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(40, 1, 22, 10);
+		limiter.onThrottled();
+		assertEquals(11, limiter.getRate(), DELTA);
+
+		for (int i = 0; i < 100; i = i + 1) {
+			limiter.onSuccess();
+		}
+		assertEquals(16, limiter.getRate(), 1e-6);
+
+		for (int i = 0; i < 200; i = i + 1) {
+			limiter.onSuccess();
+		}
+		assertEquals(22, limiter.getRate(), DELTA);
+
+	}
+
+	@Test
+	public void testLongPollsSkipLimiter() {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(10, 1, 100, 1);
+		final AmazonSimpleWorkflow swf = limiter.wrap(new LocalSwf(10)
+			.client());
+
+		for (int i = 0; i < 3; i = i + 1) {
+			swf.pollForActivityTask(new PollForActivityTaskRequest()
+				.withDomain("d").withTaskList(new TaskList().withName("a")));
+			swf.pollForDecisionTask(new PollForDecisionTaskRequest()
+				.withDomain("d").withTaskList(new TaskList().withName("w")));
+		}
+
+		assertEquals(0, limiter.getPermitsGranted());
+		assertEquals(0, limiter.getPermitsDenied());
+		assertEquals(10, limiter.getRate(), DELTA);
+
+	}
+
+	@Test
+	public void testHeartbeatsSkipLimiter() {
+
+		final SwfRateLimiter limiter = new SwfRateLimiter(10, 1, 100, 1);
+		final AmazonSimpleWorkflow swf = limiter.wrap(fake(null));
+
+		final RecordActivityTaskHeartbeatRequest heartbeat = new RecordActivityTaskHeartbeatRequest()
+			.withTaskToken("t");
+		for (int i = 0; i < 3; i = i + 1) {
+			swf.recordActivityTaskHeartbeat(heartbeat);
+		}
+
+		assertEquals(0, limiter.getPermitsGranted());
+		assertEquals(0, limiter.getPermitsDenied());
+		assertEquals(10, limiter.getRate(), DELTA);
+
+	}
+
+}